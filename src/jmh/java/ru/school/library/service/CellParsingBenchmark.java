@@ -0,0 +1,127 @@
+package ru.school.library.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Разбор ячеек одной строки реестра: прежние помощники ExcelImportService против CellParsing.
+// Аллокации на строку — gc.alloc.rate.norm из -prof gc (B/op, одна операция = одна строка)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellParsingBenchmark {
+
+    // Типичные строки: шаблон (корпус, параллель, год, количества) и МЭШ (параллель словами, несколько годов)
+    private final String[][] rows = {
+            {"1", "5", "2021", "25", "23", "2"},
+            {"сп2", "10-11", "2019, 2021", "1 200", "1 150", "50"},
+            {"Корпус 3", "7 класс", "", "12", "12", ""},
+            {"4", "9", "изд. 2020 г.", "40", "38", "2"},
+    };
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        for (String[] r : rows) {
+            bh.consume(Legacy.normalizeBuildingCode(r[0]));
+            bh.consume(Legacy.parseGrade(r[1]));
+            bh.consume(Legacy.parseYearCandidates(r[2]));
+            bh.consume(Legacy.parseInt(r[3]));
+            bh.consume(Legacy.parseInt(r[4]));
+            bh.consume(Legacy.parseIntNullable(r[5]));
+        }
+    }
+
+    @Benchmark
+    public void cellParsing(Blackhole bh) {
+        for (String[] r : rows) {
+            bh.consume(CellParsing.normalizeBuildingCode(r[0]));
+            bh.consume(CellParsing.parseGrade(r[1]));
+            bh.consume(CellParsing.parseYearCandidates(r[2]));
+            bh.consume(CellParsing.parseInt(r[3]));
+            bh.consume(CellParsing.parseInt(r[4]));
+            bh.consume(CellParsing.parseIntNullable(r[5]));
+        }
+    }
+
+    // Помощники ExcelImportService до CellParsing, без изменений
+    static final class Legacy {
+        static int parseGrade(String raw) {
+            if (raw == null) return 0;
+            String s = raw.trim();
+            if (s.isBlank()) return 0;
+            java.util.regex.Matcher m = java.util.regex.Pattern.compile("(\\d{1,2})").matcher(s);
+            if (m.find()) return Integer.parseInt(m.group(1));
+            return 0;
+        }
+
+        static int parseInt(String raw) {
+            if (raw == null) return 0;
+            String s = normalizeNumber(raw);
+            if (s.isBlank()) return 0;
+            return (int) Double.parseDouble(s);
+        }
+
+        static Integer parseIntNullable(String raw) {
+            if (raw == null) return null;
+            String s = normalizeNumber(raw);
+            if (s.isBlank()) return null;
+            return (int) Double.parseDouble(s);
+        }
+
+        static String normalizeNumber(String raw) {
+            if (raw == null) return "";
+            return raw
+                    .replace(' ', ' ')
+                    .replace(" ", "")
+                    .replace(",", ".")
+                    .trim();
+        }
+
+        static List<Integer> parseYearCandidates(String raw) {
+            if (raw == null || raw.isBlank()) {
+                List<Integer> single = new ArrayList<>();
+                single.add(null);
+                return single;
+            }
+            List<Integer> years = new ArrayList<>();
+            java.util.regex.Matcher m = java.util.regex.Pattern.compile("(19\\d{2}|20\\d{2})").matcher(raw);
+            while (m.find()) {
+                int y = Integer.parseInt(m.group(1));
+                if (!years.contains(y)) years.add(y);
+            }
+            if (years.isEmpty()) {
+                List<Integer> single = new ArrayList<>();
+                single.add(parseIntNullable(raw));
+                return single;
+            }
+            return years;
+        }
+
+        static String normalizeBuildingCode(String raw) {
+            if (raw == null) return "";
+            String s = raw.trim().toLowerCase();
+            s = s.replace("корпус", "").trim();
+            s = s.replace("сп", "sp");
+            if (s.startsWith("sp")) {
+                s = s.substring(2).trim();
+            }
+            String digits = s.replaceAll("[^0-9]", "");
+            if (!digits.isBlank()) return digits;
+            return raw.trim();
+        }
+    }
+}
@@ -2,8 +2,10 @@ package ru.school.library;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class SchoolLibraryApplication {
     public static void main(String[] args) {
         SpringApplication.run(SchoolLibraryApplication.class, args);
@@ -0,0 +1,91 @@
+package ru.school.library.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Configuration
+public class ExecutorConfig implements WebMvcConfigurer {
+
+    // Сверка по всем корпусам: один поток на корпус, но не больше 4 одновременно,
+    // чтобы не занять весь пул соединений с БД
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService reconExecutor() {
+        return boundedPool("recon-", 4, 32);
+    }
+
+    // Фоновые импорты (ImportJobService): два файла одновременно, остальные ждут в очереди.
+    // Переполнение очереди — отказ, а не выполнение в потоке запроса
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService importExecutor() {
+        return boundedPool("import-", 2, 20, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Пакетный импорт реестров (RegistryBatchImportService): все корпуса школы сразу, каждый в своей транзакции.
+    // Каждому потоку нужно соединение с БД (плюс одно на общий справочник пакета), см. hikari.maximum-pool-size
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService batchImportExecutor() {
+        return boundedPool("batch-import-", 9, 32);
+    }
+
+    // Разбор строк реестров (ImportPipeline) для всех импортов сразу: фоновых, пакетных и пробных.
+    // Общий предел потоков разбора; при полной очереди пачку разбирает сам поток импорта
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService importParseExecutor() {
+        int threads = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors() - 1));
+        return boundedPool("import-parse-", threads, 64);
+    }
+
+    // Перестройка индекса кодов сканера (AuditScanService): один поток, одна перестройка за раз
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService scanIndexExecutor() {
+        return boundedPool("scan-index-", 1, 1, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Потоковые Excel-выгрузки (StreamingResponseBody) пишутся в ответ на этом пуле, а не на потоках Tomcat
+    @Bean
+    public ThreadPoolTaskExecutor exportExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(4);
+        executor.setMaxPoolSize(8);
+        executor.setQueueCapacity(50);
+        executor.setThreadNamePrefix("export-");
+        executor.initialize();
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(exportExecutor());
+        configurer.setDefaultTimeout(TimeUnit.MINUTES.toMillis(10));
+    }
+
+    static ThreadPoolExecutor boundedPool(String prefix, int threads, int queueCapacity) {
+        return boundedPool(prefix, threads, queueCapacity, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    static ThreadPoolExecutor boundedPool(String prefix, int threads, int queueCapacity, RejectedExecutionHandler rejected) {
+        AtomicInteger seq = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, prefix + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                rejected);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,12 @@
+package ru.school.library.dto;
+
+// Посчитанное по одной книге в форме инвентаризации; scanned только для показа, из формы не приходит.
+// Пустые «У учеников»/«В кабинетах» — null: не вводили, при закрытии остаются как в остатках
+public record AuditCount(
+        Long bookTitleId,
+        int countFact,
+        Integer issuedToStudents,
+        Integer inCabinets,
+        String comment,
+        int scanned
+) {}
@@ -8,4 +8,7 @@ public class BuildingStockSummary {
     String code;
     long positions;
     long books;
+    long available;
+    long deficitPositions;
+    long deficit;
 }
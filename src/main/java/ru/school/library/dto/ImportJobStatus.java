@@ -0,0 +1,18 @@
+package ru.school.library.dto;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// Ответ /admin/import/jobs/{id}: состояние фоновой задачи импорта
+public record ImportJobStatus(
+        Long id,
+        String status,
+        String buildingCode,
+        String fileName,
+        int processed,
+        List<String> errors,
+        double rowsPerSecond,
+        LocalDateTime startedAt,
+        LocalDateTime finishedAt,
+        String message
+) {}
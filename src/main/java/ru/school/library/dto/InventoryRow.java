@@ -0,0 +1,22 @@
+package ru.school.library.dto;
+
+// Строка инвентаризации: остаток корпуса и расчётные поля (см. StockRepository.INVENTORY_ROW)
+public record InventoryRow(
+        Long stockId,
+        String buildingName,
+        String subject,
+        Integer grade,
+        String title,
+        int total,
+        int available,
+        int issuedToStudents,
+        int inCabinets,
+        String note,
+        int expectedTotal,
+        int diff,
+        String status,
+        int accuracyPercent,
+        int suufTotal,
+        int meshTotal,
+        boolean approvedByOrder
+) {}
@@ -0,0 +1,6 @@
+package ru.school.library.dto;
+
+import java.util.List;
+
+// Страница таблицы: строки и позиция для следующей страницы (null — дальше строк нет)
+public record KeysetPage<T>(List<T> rows, String next) {}
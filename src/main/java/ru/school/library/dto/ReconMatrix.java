@@ -0,0 +1,22 @@
+package ru.school.library.dto;
+
+import java.util.List;
+import java.util.Map;
+
+// Сверка по всем корпусам: строки учебного плана × корпуса
+public record ReconMatrix(
+        List<String> buildingCodes,
+        Map<String, List<ReconRow>> rowsByBuilding,
+        List<Line> lines,
+        List<SummaryRow> byBuilding
+) {
+    public record Line(
+            int grade,
+            String subject,
+            String title,
+            List<Integer> deficits,
+            int needed,
+            int available,
+            int deficit
+    ) {}
+}
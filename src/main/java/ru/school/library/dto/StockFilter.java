@@ -0,0 +1,12 @@
+package ru.school.library.dto;
+
+// Фильтр таблиц остатков и инвентаризации (GET-параметры страницы). Пустые поля не фильтруют;
+// desc — обратный порядок (корпус, параллель, предмет, название)
+public record StockFilter(
+        Long buildingId,
+        Integer grade,
+        String subject,
+        String title,
+        boolean problemsOnly,
+        boolean desc
+) {}
@@ -17,8 +17,18 @@ public class AuditLine {
     @ManyToOne(optional = false)
     private BookTitle bookTitle;
 
+    // Посчитано при инвентаризации: на полках (свободно), у учеников, в кабинетах
     @Column(nullable = false)
     private int countFact;
 
+    // Отсканировано на полках (AuditScanService) — отдельно от введённого вручную, на полках всего countFact + scanned
+    @Column(nullable = false, columnDefinition = "integer default 0")
+    private int scanned;
+
+    // null — не вводили: при расчёте и закрытии берётся значение из остатков корпуса
+    private Integer issuedToStudents;
+
+    private Integer inCabinets;
+
     private String comment;
 }
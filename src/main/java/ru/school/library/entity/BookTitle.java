@@ -11,7 +11,9 @@ import lombok.Setter;
         @Index(name = "idx_book_grade", columnList = "grade")
 })
 public class BookTitle {
-    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    // См. Stock: последовательность нужна для пакетной вставки при импорте
+    @Id @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "book_title_seq")
+    @SequenceGenerator(name = "book_title_seq", sequenceName = "book_title_seq", allocationSize = 50)
     private Long id;
 
     private String externalKey;
@@ -33,4 +35,28 @@ public class BookTitle {
 
     @Column(name = "approved_by_order", nullable = false, columnDefinition = "boolean default false")
     private boolean approvedByOrder;
+
+    // См. Stock: отпечаток строки реестра, правка описания книги его сбрасывает
+    @Column(length = 40)
+    private String importFingerprint;
+
+    public void setTitle(String title) {
+        this.title = title;
+        this.importFingerprint = null;
+    }
+
+    public void setAuthors(String authors) {
+        this.authors = authors;
+        this.importFingerprint = null;
+    }
+
+    public void setPublisher(String publisher) {
+        this.publisher = publisher;
+        this.importFingerprint = null;
+    }
+
+    public void setYear(Integer year) {
+        this.year = year;
+        this.importFingerprint = null;
+    }
 }
@@ -0,0 +1,44 @@
+package ru.school.library.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+// Фоновый импорт файла (см. ImportJobService)
+@Getter @Setter
+@Entity
+@Table(indexes = @Index(name = "idx_import_job_created", columnList = "createdAt"))
+public class ImportJob {
+    public enum Kind { REGISTRY }
+    public enum Status { QUEUED, RUNNING, DONE, DONE_WITH_ERRORS, FAILED }
+
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    private Kind kind;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 20)
+    private Status status = Status.QUEUED;
+
+    private String buildingCode;
+    private String fileName;
+    private String createdBy;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+
+    private int processed;
+    private int errorCount;
+
+    // Ошибки строк или причина падения
+    @Column(length = 10000)
+    private String message;
+}
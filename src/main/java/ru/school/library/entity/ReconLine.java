@@ -0,0 +1,36 @@
+package ru.school.library.entity;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.Setter;
+
+// Материализованная сверка: строка учебного плана × корпус.
+// Пересчитывается точечно при изменении остатков, численности и учебного плана (см. ReconLineService)
+@Getter @Setter
+@Entity
+@Table(name = "recon_line", uniqueConstraints = @UniqueConstraint(columnNames = {"building_id","curriculum_item_id"}))
+public class ReconLine {
+    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @ManyToOne(optional = false)
+    private Building building;
+
+    @ManyToOne(optional = false)
+    private CurriculumItem curriculumItem;
+
+    @Column(nullable = false)
+    private int needed;
+
+    @Column(nullable = false)
+    private int available;
+
+    @Column(nullable = false)
+    private int deficit;
+
+    @Column(nullable = false, columnDefinition = "integer default 0")
+    private int suufTotal;
+
+    @Column(nullable = false, columnDefinition = "integer default 0")
+    private int meshTotal;
+}
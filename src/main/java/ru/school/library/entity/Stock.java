@@ -7,9 +7,17 @@ import lombok.Setter;
 
 @Getter @Setter
 @Entity
-@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"building_id","book_title_id"}))
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"building_id","book_title_id"}),
+        indexes = {
+                // страницы таблиц остатков (InventoryService): по всему фонду и внутри корпуса
+                @Index(name = "idx_stock_sort", columnList = "sort_building, sort_grade, sort_subject, sort_title, id"),
+                @Index(name = "idx_stock_building_sort", columnList = "building_id, sort_building, sort_grade, sort_subject, sort_title, id"),
+                @Index(name = "idx_stock_book_title", columnList = "book_title_id")
+        })
 public class Stock {
-    @Id @GeneratedValue(strategy = GenerationType.IDENTITY)
+    // Последовательность с шагом 50, а не IDENTITY: иначе Hibernate не может пачкой вставлять строки при импорте
+    @Id @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "stock_seq")
+    @SequenceGenerator(name = "stock_seq", sequenceName = "stock_seq", allocationSize = 50)
     private Long id;
 
     @ManyToOne(optional = false)
@@ -39,4 +47,35 @@ public class Stock {
     private int inCabinets;
     @Column(length = 2000)
     private String note;
+
+    // Отпечаток строки реестра, из которой остаток загружен последний раз (SHA-1, hex).
+    // Повторный импорт пропускает строку с тем же отпечатком. Любая правка количеств сбрасывает его
+    @Column(length = 40)
+    private String importFingerprint;
+
+    // Ключ порядка таблиц остатков: название корпуса, параллель, предмет и название книги (строки в нижнем регистре).
+    // Копии полей корпуса и книги ведут триггеры БД (BootstrapService.stockSortKeys), Hibernate их не пишет
+    @Column(insertable = false, updatable = false)
+    private String sortBuilding;
+    @Column(insertable = false, updatable = false)
+    private Integer sortGrade;
+    @Column(insertable = false, updatable = false)
+    private String sortSubject;
+    @Column(insertable = false, updatable = false)
+    private String sortTitle;
+
+    public void setTotal(int total) {
+        this.total = total;
+        this.importFingerprint = null;
+    }
+
+    public void setAvailable(int available) {
+        this.available = available;
+        this.importFingerprint = null;
+    }
+
+    public void setInUse(int inUse) {
+        this.inUse = inUse;
+        this.importFingerprint = null;
+    }
 }
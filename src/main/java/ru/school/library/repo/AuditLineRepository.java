@@ -1 +1,58 @@
-package ru.school.library.repo; import org.springframework.data.jpa.repository.JpaRepository; import ru.school.library.entity.AuditLine; import java.util.*; public interface AuditLineRepository extends JpaRepository<AuditLine,Long>{ List<AuditLine> findByAuditSession_Id(Long auditSessionId);} 
\ No newline at end of file
+package ru.school.library.repo;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import ru.school.library.entity.AuditLine;
+
+import java.util.List;
+
+public interface AuditLineRepository extends JpaRepository<AuditLine, Long> {
+    List<AuditLine> findByAuditSession_Id(Long auditSessionId);
+
+    // Расхождения сессии одним запросом: посчитанное против остатков корпуса.
+    // На полках = введено вручную + отсканировано; всего по факту = на полках + у учеников + в кабинетах;
+    // расхождение = всего по факту − всего по учёту. Невведённые «у учеников»/«в кабинетах» (null) — как в остатках
+    @Query(value = """
+            select bt.grade as grade,
+                   subj.name as subject,
+                   bt.title as title,
+                   coalesce(s.total, 0) as total,
+                   coalesce(s.available, 0) as available,
+                   coalesce(s.issued_to_students, 0) as "issuedToStudents",
+                   coalesce(s.in_cabinets, 0) as "inCabinets",
+                   al.count_fact + al.scanned as "countFact",
+                   al.scanned as scanned,
+                   f.issued as "factIssued",
+                   f.cabinets as "factCabinets",
+                   al.count_fact + al.scanned + f.issued + f.cabinets as "factTotal",
+                   al.count_fact + al.scanned + f.issued + f.cabinets - coalesce(s.total, 0) as variance,
+                   al.comment as comment
+            from audit_line al
+                     join audit_session se on se.id = al.audit_session_id
+                     join book_title bt on bt.id = al.book_title_id
+                     join subject subj on subj.id = bt.subject_id
+                     left join stock s on s.building_id = se.building_id and s.book_title_id = al.book_title_id
+                     cross join lateral (select coalesce(al.issued_to_students, s.issued_to_students, 0) as issued,
+                                                coalesce(al.in_cabinets, s.in_cabinets, 0) as cabinets) f
+            where al.audit_session_id = :sessionId
+            order by bt.grade, subj.name, bt.title
+            """, nativeQuery = true)
+    List<Variance> variance(Long sessionId);
+
+    interface Variance {
+        int getGrade();
+        String getSubject();
+        String getTitle();
+        int getTotal();
+        int getAvailable();
+        int getIssuedToStudents();
+        int getInCabinets();
+        int getCountFact();
+        int getScanned();
+        int getFactIssued();
+        int getFactCabinets();
+        int getFactTotal();
+        int getVariance();
+        String getComment();
+    }
+}
@@ -1 +1,22 @@
-package ru.school.library.repo; import org.springframework.data.jpa.repository.JpaRepository; import ru.school.library.entity.AuditSession; import java.util.*; public interface AuditSessionRepository extends JpaRepository<AuditSession,Long>{ List<AuditSession> findByBuilding_IdOrderByCreatedAtDesc(Long buildingId);} 
\ No newline at end of file
+package ru.school.library.repo;
+
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import ru.school.library.entity.AuditSession;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+public interface AuditSessionRepository extends JpaRepository<AuditSession, Long> {
+    List<AuditSession> findByBuilding_IdOrderByCreatedAtDesc(Long buildingId);
+
+    Optional<AuditSession> findFirstByBuilding_IdAndStatusIn(Long buildingId, Collection<AuditSession.Status> statuses);
+
+    // select ... for update: запись пересчёта, сброс сканов и закрытие одной сессии идут по очереди
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select s from AuditSession s where s.id = :id")
+    Optional<AuditSession> findForUpdate(Long id);
+}
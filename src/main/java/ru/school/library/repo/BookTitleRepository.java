@@ -1,6 +1,17 @@
-package ru.school.library.repo; import org.springframework.data.jpa.repository.JpaRepository; import ru.school.library.entity.BookTitle; import java.util.*; public interface BookTitleRepository extends JpaRepository<BookTitle,Long>{
+package ru.school.library.repo; import org.springframework.data.jpa.repository.JpaRepository; import org.springframework.data.jpa.repository.Query; import ru.school.library.entity.BookTitle; import java.util.*; public interface BookTitleRepository extends JpaRepository<BookTitle,Long>{
   Optional<BookTitle> findByIsbnAndGradeAndSubject_Id(String isbn, Integer grade, Long subjectId);
   Optional<BookTitle> findByExternalKeyAndGradeAndSubject_Id(String externalKey, Integer grade, Long subjectId);
   Optional<BookTitle> findByTitleIgnoreCaseAndGradeAndSubject_Id(String title, Integer grade, Long subjectId);
+
+  // Справочник книг для импорта (см. ImportContext), по id
+  @Query("select bt from BookTitle bt join fetch bt.subject order by bt.id")
+  List<BookTitle> findAllWithSubject();
+
+  // Подбор учебника по части названия или предмета (q — уже в нижнем регистре и с %), размер — из page
+  @Query("""
+      select bt from BookTitle bt join fetch bt.subject subj
+      where lower(coalesce(bt.title, '')) like :q or lower(subj.name) like :q
+      order by lower(subj.name), bt.grade, lower(coalesce(bt.title, '')), bt.id
+      """)
+  List<BookTitle> search(String q, org.springframework.data.domain.Pageable page);
 }
- 
\ No newline at end of file
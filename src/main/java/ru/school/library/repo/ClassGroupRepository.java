@@ -1,6 +1,7 @@
 package ru.school.library.repo;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import ru.school.library.entity.ClassGroup;
 
 import java.util.List;
@@ -9,4 +10,12 @@ import java.util.Optional;
 public interface ClassGroupRepository extends JpaRepository<ClassGroup, Long> {
     List<ClassGroup> findByBuilding_Id(Long buildingId);
     Optional<ClassGroup> findByBuilding_IdAndGradeAndLetterIgnoreCase(Long buildingId, int grade, String letter);
+
+    @Query("select c.grade as grade, sum(c.students) as students from ClassGroup c where c.building.id = :buildingId group by c.grade")
+    List<GradeStudents> studentsByGrade(Long buildingId);
+
+    interface GradeStudents {
+        int getGrade();
+        long getStudents();
+    }
 }
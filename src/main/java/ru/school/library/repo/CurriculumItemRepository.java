@@ -1 +1,52 @@
-package ru.school.library.repo; import org.springframework.data.jpa.repository.JpaRepository; import ru.school.library.entity.CurriculumItem; import java.util.*; public interface CurriculumItemRepository extends JpaRepository<CurriculumItem,Long>{ List<CurriculumItem> findByGrade(int grade);} 
\ No newline at end of file
+package ru.school.library.repo;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import ru.school.library.entity.CurriculumItem;
+
+import java.util.List;
+
+public interface CurriculumItemRepository extends JpaRepository<CurriculumItem, Long> {
+    List<CurriculumItem> findByGrade(int grade);
+
+    // Учебный план целиком для сверки по всем корпусам (грузится один раз на весь расчёт)
+    @Query(value = """
+            select ci.grade as grade,
+                   subj.name as subject,
+                   bt.id as "bookTitleId",
+                   bt.title as title,
+                   ci.per_student as "perStudent",
+                   bt.approved_by_order as "approvedByOrder"
+            from curriculum_item ci
+                     join subject subj on subj.id = ci.subject_id
+                     join book_title bt on bt.id = ci.book_title_id
+            order by ci.id
+            """, nativeQuery = true)
+    List<CurriculumLine> curriculumLines();
+
+    // Ключи и нормы всех позиций плана без загрузки сущностей (сравнение при импорте)
+    @Query(value = """
+            select grade as grade,
+                   subject_id as "subjectId",
+                   book_title_id as "bookTitleId",
+                   per_student as "perStudent"
+            from curriculum_item
+            """, nativeQuery = true)
+    List<CurriculumKey> curriculumKeys();
+
+    interface CurriculumKey {
+        int getGrade();
+        Long getSubjectId();
+        Long getBookTitleId();
+        int getPerStudent();
+    }
+
+    interface CurriculumLine {
+        int getGrade();
+        String getSubject();
+        Long getBookTitleId();
+        String getTitle();
+        int getPerStudent();
+        boolean getApprovedByOrder();
+    }
+}
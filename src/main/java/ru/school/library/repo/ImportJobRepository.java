@@ -0,0 +1,13 @@
+package ru.school.library.repo;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import ru.school.library.entity.ImportJob;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface ImportJobRepository extends JpaRepository<ImportJob, Long> {
+    List<ImportJob> findTop20ByOrderByCreatedAtDesc();
+
+    List<ImportJob> findByStatusIn(Collection<ImportJob.Status> statuses);
+}
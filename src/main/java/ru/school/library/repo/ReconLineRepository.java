@@ -0,0 +1,84 @@
+package ru.school.library.repo;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import ru.school.library.entity.ReconLine;
+
+import java.util.List;
+
+public interface ReconLineRepository extends JpaRepository<ReconLine, Long> {
+
+    // Пересчёт строк сверки (корпус × позиция учебного плана); условие отбора дописывается в каждом методе
+    String UPSERT = """
+            insert into recon_line (building_id, curriculum_item_id, needed, available, deficit, suuf_total, mesh_total)
+            select b.id,
+                   ci.id,
+                   cast(coalesce(cg.students, 0) * ci.per_student as integer),
+                   coalesce(s.available, 0),
+                   greatest(0, cast(coalesce(cg.students, 0) * ci.per_student as integer) - coalesce(s.available, 0)),
+                   coalesce(s.suuf_total, 0),
+                   coalesce(s.mesh_total, 0)
+            from building b
+                     cross join curriculum_item ci
+                     left join (select building_id, grade, sum(students) as students
+                                from class_group
+                                group by building_id, grade) cg on cg.building_id = b.id and cg.grade = ci.grade
+                     left join stock s on s.building_id = b.id and s.book_title_id = ci.book_title_id
+            """;
+
+    String ON_CONFLICT = """
+             on conflict (building_id, curriculum_item_id) do update
+                set needed = excluded.needed,
+                    available = excluded.available,
+                    deficit = excluded.deficit,
+                    suuf_total = excluded.suuf_total,
+                    mesh_total = excluded.mesh_total
+            """;
+
+    @Modifying
+    @Query(value = UPSERT + " where true" + ON_CONFLICT, nativeQuery = true)
+    int refreshAll();
+
+    @Modifying
+    @Query(value = UPSERT + " where b.id = :buildingId" + ON_CONFLICT, nativeQuery = true)
+    int refreshBuilding(Long buildingId);
+
+    @Modifying
+    @Query(value = UPSERT + " where b.id = :buildingId and ci.grade = :grade" + ON_CONFLICT, nativeQuery = true)
+    int refreshGrade(Long buildingId, int grade);
+
+    @Modifying
+    @Query(value = UPSERT + " where b.id = :buildingId and ci.book_title_id = :bookTitleId" + ON_CONFLICT, nativeQuery = true)
+    int refreshStock(Long buildingId, Long bookTitleId);
+
+    @Query(value = """
+            select ci.grade as grade,
+                   subj.name as subject,
+                   bt.title as title,
+                   rl.needed as needed,
+                   rl.available as available,
+                   rl.suuf_total as "suufTotal",
+                   rl.mesh_total as "meshTotal",
+                   bt.approved_by_order as "approvedByOrder"
+            from recon_line rl
+                     join curriculum_item ci on ci.id = rl.curriculum_item_id
+                     join subject subj on subj.id = ci.subject_id
+                     join book_title bt on bt.id = ci.book_title_id
+            where rl.building_id = :buildingId
+            order by ci.id
+            """, nativeQuery = true)
+    List<ReconAggregate> findForBuilding(Long buildingId);
+
+    // Строка сверки корпуса
+    interface ReconAggregate {
+        int getGrade();
+        String getSubject();
+        String getTitle();
+        int getNeeded();
+        int getAvailable();
+        int getSuufTotal();
+        int getMeshTotal();
+        boolean getApprovedByOrder();
+    }
+}
@@ -2,17 +2,91 @@ package ru.school.library.repo;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import ru.school.library.dto.InventoryRow;
 import ru.school.library.entity.Stock;
 
 import java.util.List;
 import java.util.Optional;
 
 public interface StockRepository extends JpaRepository<Stock,Long> {
+    // Инвентаризация одним запросом: корпус, книга и предмет через join, расчётные поля считает БД.
+    // Ожидается = свободно + у учеников + в кабинетах; точность — ожидаемое к числящемуся, 0..100 %
+    String INVENTORY_ROW = """
+            select new ru.school.library.dto.InventoryRow(
+                s.id, coalesce(b.name, ''), subj.name, bt.grade, coalesce(bt.title, ''),
+                s.total, s.available, s.issuedToStudents, s.inCabinets, s.note,
+                s.available + s.issuedToStudents + s.inCabinets,
+                s.total - (s.available + s.issuedToStudents + s.inCabinets),
+                case when s.total = s.available + s.issuedToStudents + s.inCabinets then 'OK'
+                     when s.total > s.available + s.issuedToStudents + s.inCabinets then 'Излишек'
+                     else 'Недостача' end,
+                case when s.total <= 0 then
+                          case when s.available + s.issuedToStudents + s.inCabinets <= 0 then 100 else 0 end
+                     when s.available + s.issuedToStudents + s.inCabinets <= 0 then 0
+                     when s.available + s.issuedToStudents + s.inCabinets >= s.total then 100
+                     else cast(round((s.available + s.issuedToStudents + s.inCabinets) * 100.0 / s.total, 0) as integer) end,
+                s.suufTotal, s.meshTotal, bt.approvedByOrder)
+            from Stock s
+                join s.building b
+                join s.bookTitle bt
+                join bt.subject subj
+            """;
+
     List<Stock> findByBuilding_Id(Long buildingId);
 
+    @Query(INVENTORY_ROW + """
+            where b.id = :buildingId
+            order by bt.grade, lower(subj.name), lower(coalesce(bt.title, ''))
+            """)
+    List<InventoryRow> inventoryForBuilding(Long buildingId);
+
+    // Остатки корпуса для импорта (см. ImportContext)
+    @Query("select s from Stock s join fetch s.bookTitle where s.building.id = :buildingId")
+    List<Stock> findForImport(Long buildingId);
+
     @Query("select s from Stock s where s.building.id = :buildingId and s.bookTitle.id = :bookTitleId")
     Optional<Stock> findOne(Long buildingId, Long bookTitleId);
 
     @Query("select s.available from Stock s where s.building.id = :buildingId and s.bookTitle.id = :bookTitleId")
     Optional<Integer> findAvailable(Long buildingId, Long bookTitleId);
+
+    @Query("""
+            select s.bookTitle.id as bookTitleId, s.available as available, s.suufTotal as suufTotal, s.meshTotal as meshTotal
+            from Stock s where s.building.id = :buildingId
+            """)
+    List<StockSlice> reconSlice(Long buildingId);
+
+    // Сводка админ-панели: остатки по корпусам одним GROUP BY, дефицит — из материализованной сверки (recon_line)
+    @Query(value = """
+            select b.id as "buildingId",
+                   coalesce(s.positions, 0) as positions,
+                   coalesce(s.books, 0) as books,
+                   coalesce(s.available, 0) as available,
+                   coalesce(r.deficit_positions, 0) as "deficitPositions",
+                   coalesce(r.deficit, 0) as deficit
+            from building b
+                     left join (select building_id, count(*) as positions, sum(total) as books, sum(available) as available
+                                from stock
+                                group by building_id) s on s.building_id = b.id
+                     left join (select building_id, count(*) filter (where deficit > 0) as deficit_positions, sum(deficit) as deficit
+                                from recon_line
+                                group by building_id) r on r.building_id = b.id
+            """, nativeQuery = true)
+    List<BuildingTotals> buildingTotals();
+
+    interface BuildingTotals {
+        Long getBuildingId();
+        long getPositions();
+        long getBooks();
+        long getAvailable();
+        long getDeficitPositions();
+        long getDeficit();
+    }
+
+    interface StockSlice {
+        Long getBookTitleId();
+        int getAvailable();
+        int getSuufTotal();
+        int getMeshTotal();
+    }
 }
@@ -0,0 +1,347 @@
+package ru.school.library.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.school.library.entity.AuditSession;
+import ru.school.library.entity.User;
+import ru.school.library.repo.AuditSessionRepository;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Сканирование штрихкодов при инвентаризации. Сканеры шлют пачки кодов (ISBN или № ФПУ); код находим
+// в индексе код -> книга в памяти, а экземпляры копим в счётчиках LongAdder по сессии и книге.
+// В audit_line счётчики уходят раз в FLUSH_MS одной пачкой INSERT ... ON CONFLICT (scanned + n),
+// так что запрос сканера не ждёт записи в БД. Когда меняется DataVersion, индекс перестраивается фоном
+// на scanIndexExecutor, а сканы до конца перестройки ищут по прежнему; карту строим заново,
+// только если изменился сам справочник книг (отпечаток id, ISBN и № ФПУ), а не остатки.
+// Перед расчётом расхождений и закрытием AuditService сбрасывает накопленное по своей сессии.
+// Сброс и закрытие берут строку сессии select ... for update, поэтому идут строго по очереди:
+// сброс после закрытия видит CLOSED и ничего не пишет, а с начала закрытия сканы сессии отклоняются
+@Service
+public class AuditScanService {
+    private static final long FLUSH_MS = 2000;
+    private static final int MAX_BATCH = 5000;
+    // книга с таким кодом не одна — какую считать, непонятно
+    private static final long AMBIGUOUS = -1;
+
+    public record ScanResult(int accepted, List<String> unknown) {}
+
+    private record Index(long version, long catalog, Map<String, Long> titles) {}
+
+    // Счётчики одной сессии. Сканы прибавляют под общей блокировкой, сброс и закрытие забирают под исключительной:
+    // пока она взята, к счётчикам никто не прибавляет, а после начала закрытия сканы уже не принимаются.
+    // Опустевшие счётчики и счётчики закрытой сессии убираются из pending (retired) — сканы тогда заводят новые
+    private static final class Tally {
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        final Map<Long, LongAdder> counts = new ConcurrentHashMap<>();
+        boolean closing;
+        boolean retired;
+    }
+
+    private final AuditSessionRepository sessions;
+    private final DataVersion dataVersion;
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate newTx;
+    private final ExecutorService indexExecutor;
+
+    private final Map<Long, Tally> pending = new ConcurrentHashMap<>();
+    // Закрытые сессии: метка ставится до того, как счётчики убираются из pending. Растёт на одну запись
+    // за закрытие, а закрывают инвентаризации считанные разы в год
+    private final Set<Long> closed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Index index = new Index(-1, 0, Map.of());
+
+    public AuditScanService(AuditSessionRepository sessions, DataVersion dataVersion, JdbcTemplate jdbc,
+                            PlatformTransactionManager txManager,
+                            @Qualifier("scanIndexExecutor") ExecutorService indexExecutor) {
+        this.sessions = sessions;
+        this.dataVersion = dataVersion;
+        this.jdbc = jdbc;
+        this.indexExecutor = indexExecutor;
+        this.newTx = new TransactionTemplate(txManager);
+        this.newTx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    // Одно чтение сессии на пачку; каждый найденный код — один экземпляр «на полках»
+    public ScanResult scan(Long sessionId, User by, List<String> codes) {
+        if (codes.size() > MAX_BATCH) throw new RuntimeException("Слишком много кодов в одной пачке (больше " + MAX_BATCH + ")");
+        AuditSession s = sessions.findById(sessionId)
+                .orElseThrow(() -> new RuntimeException("Инвентаризация не найдена"));
+        if (by.getRole() == User.Role.LIBRARIAN
+                && (by.getBuilding() == null || !by.getBuilding().getId().equals(s.getBuilding().getId()))) {
+            throw new RuntimeException("Нет доступа к чужому корпусу");
+        }
+        if (s.getStatus() == AuditSession.Status.CLOSED) throw new RuntimeException("Инвентаризация уже закрыта");
+
+        Map<String, Long> titles = index().titles();
+        while (true) {
+            Tally tally = pending.computeIfAbsent(sessionId, k -> new Tally());
+            tally.lock.readLock().lock();
+            try {
+                if (tally.retired) continue;
+                // закрытие могло закоммититься после чтения сессии выше: тогда счётчики уже новые,
+                // и принятый в них скан сброс выбросил бы как скан закрытой сессии
+                if (closed.contains(sessionId)) throw new RuntimeException("Инвентаризация уже закрыта");
+                return count(tally, titles, codes);
+            } finally {
+                tally.lock.readLock().unlock();
+            }
+        }
+    }
+
+    private static ScanResult count(Tally tally, Map<String, Long> titles, List<String> codes) {
+        if (tally.closing) throw new RuntimeException("Инвентаризация закрывается, сканы больше не принимаются");
+        int accepted = 0;
+        List<String> unknown = new ArrayList<>();
+        for (String code : codes) {
+            Long titleId = code == null ? null : titles.get(normalize(code));
+            if (titleId == null || titleId == AMBIGUOUS) {
+                if (code != null && !code.isBlank()) unknown.add(code.trim());
+                continue;
+            }
+            tally.counts.computeIfAbsent(titleId, k -> new LongAdder()).increment();
+            accepted++;
+        }
+        return new ScanResult(accepted, unknown);
+    }
+
+    // Ошибка одной сессии не задерживает остальные; первая уходит в журнал планировщика
+    @Scheduled(fixedDelay = FLUSH_MS)
+    public void flushAll() {
+        RuntimeException failed = null;
+        for (Long sessionId : pending.keySet()) {
+            try {
+                flush(sessionId);
+            } catch (RuntimeException ex) {
+                if (failed == null) failed = ex;
+            }
+        }
+        if (failed != null) throw failed;
+    }
+
+    @PreDestroy
+    public void flushOnShutdown() {
+        flushAll();
+    }
+
+    // Своя короткая транзакция под блокировкой строки сессии. Если транзакция не закоммитилась,
+    // забранные счётчики возвращаются и уйдут следующей попыткой. Закрытой или удалённой сессии накопленное
+    // не пишется; её счётчики, как и опустевшие, убираются из pending, так что он не растёт со временем
+    public void flush(Long sessionId) {
+        Tally tally = pending.get(sessionId);
+        if (tally == null) return;
+        newTx.executeWithoutResult(tx -> {
+            AuditSession s = sessions.findForUpdate(sessionId).orElse(null);
+            boolean closed = s == null || s.getStatus() == AuditSession.Status.CLOSED;
+            Map<Long, Long> batch = take(sessionId, tally, false, closed);
+            if (closed || batch.isEmpty()) return;
+            restoreOnRollback(sessionId, batch);
+            write(sessionId, batch);
+            // новые экземпляры после расчёта расхождений: расхождения нужно пересчитать
+            if (s.getStatus() == AuditSession.Status.SUBMITTED) s.setStatus(AuditSession.Status.DRAFT);
+        });
+    }
+
+    // Вызывается из транзакции закрытия, уже взявшей строку сессии for update: сканы сессии больше не принимаются,
+    // остаток накопленного пишется в той же транзакции. После коммита счётчики сессии выбрасываются,
+    // после отката — приём сканов возобновляется, а забранное возвращается в счётчики
+    public void beginClose(Long sessionId) {
+        // строка сессии заблокирована, так что сброс не уберёт эти счётчики, пока закрытие не завершится
+        Tally tally = pending.computeIfAbsent(sessionId, k -> new Tally());
+        Map<Long, Long> batch = take(sessionId, tally, true, false);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                tally.lock.writeLock().lock();
+                try {
+                    if (status == STATUS_COMMITTED) {
+                        closed.add(sessionId);
+                        retire(sessionId, tally);
+                        return;
+                    }
+                    tally.closing = false;
+                } finally {
+                    tally.lock.writeLock().unlock();
+                }
+                addBack(sessionId, batch);
+            }
+        });
+        if (!batch.isEmpty()) write(sessionId, batch);
+    }
+
+    // closed — сессии больше нет или она закрыта: забранное выбрасывается вместе со счётчиками
+    private Map<Long, Long> take(Long sessionId, Tally tally, boolean closing, boolean closed) {
+        tally.lock.writeLock().lock();
+        try {
+            if (closing) tally.closing = true;
+            Map<Long, Long> batch = new HashMap<>();
+            tally.counts.forEach((titleId, adder) -> {
+                long n = adder.sum();
+                if (n > 0) batch.put(titleId, n);
+            });
+            tally.counts.clear();
+            if (closed || (batch.isEmpty() && !tally.closing)) retire(sessionId, tally);
+            return batch;
+        } finally {
+            tally.lock.writeLock().unlock();
+        }
+    }
+
+    // Под исключительной блокировкой счётчиков
+    private void retire(Long sessionId, Tally tally) {
+        tally.retired = true;
+        pending.remove(sessionId, tally);
+    }
+
+    private void restoreOnRollback(Long sessionId, Map<Long, Long> batch) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) addBack(sessionId, batch);
+            }
+        });
+    }
+
+    // Возврат забранного в действующие счётчики сессии (прежние могли уже убрать из pending)
+    private void addBack(Long sessionId, Map<Long, Long> batch) {
+        while (true) {
+            Tally tally = pending.computeIfAbsent(sessionId, k -> new Tally());
+            tally.lock.writeLock().lock();
+            try {
+                if (tally.retired) continue;
+                batch.forEach((titleId, n) -> tally.counts.computeIfAbsent(titleId, k -> new LongAdder()).add(n));
+                return;
+            } finally {
+                tally.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Строка, заведённая сканом, не знает «у учеников»/«в кабинетах» (null): при закрытии они остаются как в остатках
+    private void write(Long sessionId, Map<Long, Long> batch) {
+        List<Map.Entry<Long, Long>> rows = new ArrayList<>(batch.entrySet());
+        jdbc.batchUpdate("""
+                insert into audit_line (audit_session_id, book_title_id, count_fact, scanned, issued_to_students, in_cabinets)
+                values (?, ?, 0, ?, null, null)
+                on conflict (audit_session_id, book_title_id) do update
+                    set scanned = audit_line.scanned + excluded.scanned
+                """, rows, rows.size(), (ps, e) -> {
+            ps.setLong(1, sessionId);
+            ps.setLong(2, e.getKey());
+            ps.setInt(3, Math.toIntExact(e.getValue()));
+        });
+    }
+
+    // Ждёт только первый скан после запуска; дальше устаревший индекс отдаётся, пока фоном строится новый
+    private Index index() {
+        Index i = index;
+        long version = dataVersion.current();
+        if (i.version() == version) return i;
+        if (i.version() < 0) {
+            synchronized (this) {
+                if (index.version() < 0) index = loadIndex(version, index);
+                return index;
+            }
+        }
+        if (refreshing.compareAndSet(false, true)) {
+            try {
+                indexExecutor.execute(() -> {
+                    try {
+                        refresh();
+                    } finally {
+                        refreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                refreshing.set(false);
+            }
+        }
+        return i;
+    }
+
+    private void refresh() {
+        long version = dataVersion.current();
+        Index i = index;
+        if (i.version() != version) index = loadIndex(version, i);
+    }
+
+    // Справочник не менялся — прежняя карта остаётся под новой версией, без чтения всех книг
+    private Index loadIndex(long version, Index previous) {
+        long catalog = jdbc.queryForObject("""
+                select count(*) + coalesce(sum(hashtext(concat(id, '|', isbn, '|', external_key))), 0)
+                from book_title
+                """, Long.class);
+        if (previous.version() >= 0 && previous.catalog() == catalog) return new Index(version, catalog, previous.titles());
+        return new Index(version, catalog, loadTitles());
+    }
+
+    // ISBN индексируем в обеих формах (10 и 13 цифр): на обложке EAN-13, в реестре часто ISBN-10 с дефисами
+    private Map<String, Long> loadTitles() {
+        Map<String, Long> titles = new HashMap<>();
+        jdbc.query("select id, isbn, external_key from book_title", rs -> {
+            long id = rs.getLong(1);
+            String isbn = rs.getString(2);
+            if (isbn != null && !isbn.isBlank()) {
+                String code = normalize(isbn);
+                put(titles, code, id);
+                String other = code.length() == 10 ? isbn13(code) : code.length() == 13 ? isbn10(code) : null;
+                if (other != null) put(titles, other, id);
+            }
+            String key = rs.getString(3);
+            if (key != null && !key.isBlank()) put(titles, normalize(key), id);
+        });
+        return titles;
+    }
+
+    private static void put(Map<String, Long> titles, String code, long id) {
+        if (code.isEmpty()) return;
+        titles.merge(code, id, (a, b) -> a.equals(b) ? a : AMBIGUOUS);
+    }
+
+    // Без пробелов и дефисов, в верхнем регистре: "978-5-09-087654-3" -> "9785090876543"
+    static String normalize(String code) {
+        StringBuilder sb = new StringBuilder(code.length());
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            if (c != '-' && !Character.isWhitespace(c) && c != '\u00A0') sb.append(c);
+        }
+        return sb.toString().toUpperCase(Locale.ROOT);
+    }
+
+    static String isbn13(String isbn10) {
+        if (!isbn10.substring(0, 9).chars().allMatch(Character::isDigit)) return null;
+        String body = "978" + isbn10.substring(0, 9);
+        int sum = 0;
+        for (int i = 0; i < 12; i++) sum += (body.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        return body + (10 - sum % 10) % 10;
+    }
+
+    static String isbn10(String isbn13) {
+        if (!isbn13.startsWith("978") || !isbn13.chars().allMatch(Character::isDigit)) return null;
+        String body = isbn13.substring(3, 12);
+        int sum = 0;
+        for (int i = 0; i < 9; i++) sum += (body.charAt(i) - '0') * (10 - i);
+        int check = (11 - sum % 11) % 11;
+        return body + (check == 10 ? "X" : String.valueOf(check));
+    }
+}
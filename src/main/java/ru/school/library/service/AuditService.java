@@ -0,0 +1,218 @@
+package ru.school.library.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import ru.school.library.dto.AuditCount;
+import ru.school.library.entity.AuditSession;
+import ru.school.library.entity.User;
+import ru.school.library.repo.AuditLineRepository;
+import ru.school.library.repo.AuditSessionRepository;
+
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Инвентаризация с пересчётом: сессия корпуса DRAFT -> SUBMITTED -> CLOSED.
+// Посчитанное сохраняется пачкой (один batch INSERT ... ON CONFLICT на страницу формы), расхождения с остатками
+// считает один запрос (AuditLineRepository.variance), а закрытие одной транзакцией пишет корректировки в журнал
+// движений и переносит посчитанное в остатки — тоже set-based, без загрузки строк в память.
+// Отсканированное (AuditScanService) копится в памяти, поэтому расчёт и закрытие сначала сбрасывают его в audit_line.
+@Service
+@RequiredArgsConstructor
+public class AuditService {
+    private static final List<AuditSession.Status> OPEN = List.of(AuditSession.Status.DRAFT, AuditSession.Status.SUBMITTED);
+
+    private final AuditSessionRepository sessions;
+    private final AuditLineRepository lines;
+    private final ReconLineService reconLines;
+    private final AuditScanService scans;
+    private final JdbcTemplate jdbc;
+
+    @Transactional(readOnly = true)
+    public List<AuditSession> forBuilding(Long buildingId) {
+        return sessions.findByBuilding_IdOrderByCreatedAtDesc(buildingId);
+    }
+
+    @Transactional(readOnly = true)
+    public AuditSession session(Long sessionId, User by) {
+        return requireSession(sessionId, by);
+    }
+
+    // Одна незакрытая инвентаризация на корпус: две параллельные перетёрли бы остатки друг друга
+    @Transactional
+    public AuditSession open(User by) {
+        if (by.getBuilding() == null) throw new RuntimeException("Пользователю не назначен корпус");
+        sessions.findFirstByBuilding_IdAndStatusIn(by.getBuilding().getId(), OPEN).ifPresent(s -> {
+            throw new RuntimeException("Инвентаризация №" + s.getId() + " ещё не закрыта");
+        });
+        AuditSession s = new AuditSession();
+        s.setBuilding(by.getBuilding());
+        s.setCreatedBy(by);
+        s.setStatus(AuditSession.Status.DRAFT);
+        s.setCreatedAt(LocalDateTime.now());
+        return sessions.save(s);
+    }
+
+    // Повторный ввод той же книги заменяет прежний; отсканированное (scanned) не трогаем. Изменение после «Рассчитать расхождения»
+    // возвращает сессию в черновик: расхождения нужно пересчитать перед закрытием
+    @Transactional
+    public int saveCounts(Long sessionId, User by, List<AuditCount> counts) {
+        AuditSession s = lockSession(sessionId, by);
+        if (s.getStatus() == AuditSession.Status.CLOSED) throw new RuntimeException("Инвентаризация уже закрыта");
+        if (counts.isEmpty()) return 0;
+        for (AuditCount c : counts) {
+            if (c.countFact() < 0 || negative(c.issuedToStudents()) || negative(c.inCabinets())) {
+                throw new RuntimeException("Количество не может быть отрицательным");
+            }
+        }
+
+        jdbc.batchUpdate("""
+                insert into audit_line (audit_session_id, book_title_id, count_fact, issued_to_students, in_cabinets, comment)
+                values (?, ?, ?, ?, ?, ?)
+                on conflict (audit_session_id, book_title_id) do update
+                    set count_fact = excluded.count_fact,
+                        issued_to_students = excluded.issued_to_students,
+                        in_cabinets = excluded.in_cabinets,
+                        comment = excluded.comment
+                """, counts, counts.size(), (ps, c) -> {
+            ps.setLong(1, sessionId);
+            ps.setLong(2, c.bookTitleId());
+            ps.setInt(3, c.countFact());
+            ps.setObject(4, c.issuedToStudents(), Types.INTEGER);
+            ps.setObject(5, c.inCabinets(), Types.INTEGER);
+            ps.setString(6, c.comment() == null || c.comment().isBlank() ? null : c.comment().trim());
+        });
+
+        if (s.getStatus() == AuditSession.Status.SUBMITTED) s.setStatus(AuditSession.Status.DRAFT);
+        return counts.size();
+    }
+
+    // Уже введённое по сессии — для заполнения формы
+    @Transactional(readOnly = true)
+    public Map<Long, AuditCount> counts(Long sessionId) {
+        Map<Long, AuditCount> counts = new HashMap<>();
+        jdbc.query("""
+                select book_title_id, count_fact, issued_to_students, in_cabinets, comment, scanned
+                from audit_line
+                where audit_session_id = ?
+                """, rs -> {
+            AuditCount c = new AuditCount(rs.getLong(1), rs.getInt(2), rs.getObject(3, Integer.class),
+                    rs.getObject(4, Integer.class), rs.getString(5), rs.getInt(6));
+            counts.put(c.bookTitleId(), c);
+        }, sessionId);
+        return counts;
+    }
+
+    @Transactional
+    public List<AuditLineRepository.Variance> submit(Long sessionId, User by) {
+        scans.flush(sessionId);
+        AuditSession s = requireSession(sessionId, by);
+        if (s.getStatus() == AuditSession.Status.CLOSED) throw new RuntimeException("Инвентаризация уже закрыта");
+        List<AuditLineRepository.Variance> variance = lines.variance(sessionId);
+        if (variance.isEmpty()) throw new RuntimeException("Не введено ни одного пересчёта");
+        s.setStatus(AuditSession.Status.SUBMITTED);
+        return variance;
+    }
+
+    @Transactional(readOnly = true)
+    public List<AuditLineRepository.Variance> variance(Long sessionId) {
+        return lines.variance(sessionId);
+    }
+
+    // Всё или ничего: корректировки в журнал движений (излишек — приход в корпус, недостача — расход),
+    // затем посчитанное становится остатком. Непосчитанные книги не трогаем, невведённые «У учеников»/«В кабинетах»
+    // (null) остаются как в остатках.
+    // Возвращает число книг с расхождением
+    @Transactional
+    public int close(Long sessionId, User by) {
+        scans.flush(sessionId);
+        AuditSession s = lockSession(sessionId, by);
+        if (s.getStatus() != AuditSession.Status.SUBMITTED) {
+            throw new RuntimeException("Сначала рассчитайте расхождения");
+        }
+        // сканы, пришедшие после сброса, пишутся этой же транзакцией; новые с этого момента отклоняются
+        scans.beginClose(sessionId);
+        Long buildingId = s.getBuilding().getId();
+        LocalDateTime now = LocalDateTime.now();
+        String note = "Инвентаризация №" + sessionId + ": ";
+
+        int adjusted = jdbc.update("""
+                insert into movement (type, from_building_id, to_building_id, book_title_id, count, created_by_id, created_at, note)
+                select 'ADJUSTMENT',
+                       case when d.variance < 0 then d.building_id end,
+                       case when d.variance > 0 then d.building_id end,
+                       d.book_title_id,
+                       abs(d.variance),
+                       ?,
+                       ?,
+                       ? || case when d.variance > 0 then 'излишек' else 'недостача' end
+                from (select se.building_id,
+                             al.book_title_id,
+                             al.count_fact + al.scanned + coalesce(al.issued_to_students, s.issued_to_students, 0)
+                                 + coalesce(al.in_cabinets, s.in_cabinets, 0) - coalesce(s.total, 0) as variance
+                      from audit_line al
+                               join audit_session se on se.id = al.audit_session_id
+                               left join stock s on s.building_id = se.building_id and s.book_title_id = al.book_title_id
+                      where al.audit_session_id = ?) d
+                where d.variance <> 0
+                """, by.getId(), Timestamp.valueOf(now), note, sessionId);
+
+        // Отсканированные книги, которых не было в остатках корпуса
+        jdbc.update("""
+                insert into stock (id, building_id, book_title_id, total, available, in_use,
+                                   mesh_total, suuf_total, issued_to_students, in_cabinets)
+                select nextval('stock_seq'), ?, al.book_title_id, 0, 0, 0, 0, 0, 0, 0
+                from audit_line al
+                where al.audit_session_id = ?
+                  and not exists (select 1 from stock s where s.building_id = ? and s.book_title_id = al.book_title_id)
+                """, buildingId, sessionId, buildingId);
+
+        jdbc.update("""
+                update stock s
+                set available = al.count_fact + al.scanned,
+                    issued_to_students = coalesce(al.issued_to_students, s.issued_to_students),
+                    in_cabinets = coalesce(al.in_cabinets, s.in_cabinets),
+                    in_use = coalesce(al.issued_to_students, s.issued_to_students) + coalesce(al.in_cabinets, s.in_cabinets),
+                    total = al.count_fact + al.scanned + coalesce(al.issued_to_students, s.issued_to_students)
+                            + coalesce(al.in_cabinets, s.in_cabinets),
+                    import_fingerprint = null
+                from audit_line al
+                where al.audit_session_id = ?
+                  and s.building_id = ?
+                  and s.book_title_id = al.book_title_id
+                """, sessionId, buildingId);
+
+        s.setStatus(AuditSession.Status.CLOSED);
+        s.setClosedAt(now);
+        reconLines.buildingsChanged(List.of(buildingId));
+        return adjusted;
+    }
+
+    private static boolean negative(Integer n) {
+        return n != null && n < 0;
+    }
+
+    private AuditSession requireSession(Long sessionId, User by) {
+        return checkAccess(sessions.findById(sessionId), by);
+    }
+
+    // Строка сессии блокируется до конца транзакции: параллельный сброс сканов или закрытие ждут её
+    private AuditSession lockSession(Long sessionId, User by) {
+        return checkAccess(sessions.findForUpdate(sessionId), by);
+    }
+
+    private static AuditSession checkAccess(Optional<AuditSession> found, User by) {
+        AuditSession s = found.orElseThrow(() -> new RuntimeException("Инвентаризация не найдена"));
+        if (by.getRole() == User.Role.LIBRARIAN
+                && (by.getBuilding() == null || !by.getBuilding().getId().equals(s.getBuilding().getId()))) {
+            throw new RuntimeException("Нет доступа к чужому корпусу");
+        }
+        return s;
+    }
+}
@@ -0,0 +1,79 @@
+package ru.school.library.service;
+
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.school.library.entity.BookTitle;
+import ru.school.library.entity.Subject;
+import ru.school.library.repo.BookTitleRepository;
+import ru.school.library.repo.SubjectRepository;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Общий справочник пакетного импорта (RegistryBatchImportService). Корпуса грузятся параллельно, каждый
+// в своей транзакции, и незафиксированных книг друг друга не видят. Поэтому предметы и книги пакет меняет
+// только здесь: по одной, в отдельной короткой транзакции, которая сразу фиксируется. Книгу, уже заведённую
+// другим корпусом, находим по ключу (№ ФПУ или ISBN); книгу, которую уже завёл или обновил другой корпус,
+// второй раз не обновляем (owner — контекст импорта корпуса).
+// Транзакции корпусов при этом не держат блокировок строк book_title и не ждут друг друга.
+final class BatchCatalog {
+    record Title(long id, boolean created) {}
+
+    private final TransactionTemplate newTx;
+    private final SubjectRepository subjects;
+    private final BookTitleRepository bookTitles;
+
+    private final Map<String, Long> subjectIds = new HashMap<>();
+    private final Map<String, Long> titleIds = new HashMap<>();
+    private final Map<Long, Object> titleOwners = new HashMap<>();
+
+    BatchCatalog(PlatformTransactionManager txManager, SubjectRepository subjects, BookTitleRepository bookTitles) {
+        this.newTx = new TransactionTemplate(txManager);
+        this.newTx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.subjects = subjects;
+        this.bookTitles = bookTitles;
+    }
+
+    synchronized long subject(String name) {
+        return subjectIds.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> newTx.execute(tx -> {
+            Subject s = new Subject();
+            s.setName(name);
+            return subjects.save(s).getId();
+        }));
+    }
+
+    // null — у книги нет ключа, дубликатом её не найти: такие заводит сам импорт корпуса
+    static String key(BookTitle bt) {
+        String kind;
+        String value;
+        if (bt.getExternalKey() != null && !bt.getExternalKey().isBlank()) {
+            kind = "ext";
+            value = bt.getExternalKey();
+        } else if (bt.getIsbn() != null && !bt.getIsbn().isBlank()) {
+            kind = "isbn";
+            value = bt.getIsbn();
+        } else {
+            return null;
+        }
+        return kind + "|" + value + "|" + bt.getGrade() + "|" + bt.getSubject().getId();
+    }
+
+    synchronized Title create(String key, BookTitle bt, Object owner) {
+        Long id = titleIds.get(key);
+        if (id != null) return new Title(id, false);
+        id = newTx.execute(tx -> bookTitles.save(bt).getId());
+        titleIds.put(key, id);
+        titleOwners.put(id, owner);
+        return new Title(id, true);
+    }
+
+    // false — книгу в этом пакете уже завёл или обновил другой корпус
+    synchronized boolean update(BookTitle bt, Object owner) {
+        Object was = titleOwners.putIfAbsent(bt.getId(), owner);
+        if (was != null && was != owner) return false;
+        newTx.executeWithoutResult(tx -> bookTitles.save(bt));
+        return true;
+    }
+}
@@ -2,6 +2,7 @@ package ru.school.library.service;
 
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Component;
 import ru.school.library.entity.*;
@@ -16,6 +17,8 @@ public class BootstrapService {
     private final UserRepository users;
     private final SubjectRepository subjects;
     private final PasswordEncoder encoder;
+    private final ReconLineService reconLines;
+    private final JdbcTemplate jdbc;
 
 
     @PostConstruct
@@ -59,5 +62,104 @@ public class BootstrapService {
             lib1.setBuilding(b1);
             users.save(lib1);
         }
+
+        // stock и book_title раньше жили на IDENTITY: двигаем последовательности за уже выданные id
+        alignSequence("stock_seq", "stock");
+        alignSequence("book_title_seq", "book_title");
+
+        // recon_line появилась позже остальных таблиц — заполняем её один раз для существующих данных
+        reconLines.initIfEmpty();
+
+        stockSortKeys();
+
+        // «У учеников»/«В кабинетах» в пересчёте стали необязательными (null — берётся из остатков),
+        // а ddl-auto: update не снимает not null со старых столбцов
+        jdbc.execute("""
+                alter table audit_line
+                    alter column issued_to_students drop not null,
+                    alter column issued_to_students drop default,
+                    alter column in_cabinets drop not null,
+                    alter column in_cabinets drop default
+                """);
+    }
+
+    // Ключ порядка в stock (sort_*) — копии имён корпуса, предмета и книги. Страница остатков тогда читается
+    // по индексу idx_stock_sort без сортировки всего отфильтрованного фонда. Копии ведут триггеры: в stock
+    // пишут и Hibernate, и SQL импортов, а книги с предметами правят оба пути. Строки, созданные до появления
+    // столбцов, заполняются здесь же
+    private void stockSortKeys() {
+        jdbc.execute("""
+                create or replace function stock_sort_fill() returns trigger language plpgsql as $$
+                begin
+                    select lower(coalesce(b.name, '')), bt.grade, lower(coalesce(subj.name, '')), lower(coalesce(bt.title, ''))
+                    into new.sort_building, new.sort_grade, new.sort_subject, new.sort_title
+                    from building b, book_title bt join subject subj on subj.id = bt.subject_id
+                    where b.id = new.building_id and bt.id = new.book_title_id;
+                    return new;
+                end $$;
+
+                create or replace function book_title_sort_sync() returns trigger language plpgsql as $$
+                begin
+                    update stock
+                    set sort_grade = new.grade,
+                        sort_subject = (select lower(coalesce(name, '')) from subject where id = new.subject_id),
+                        sort_title = lower(coalesce(new.title, ''))
+                    where book_title_id = new.id;
+                    return null;
+                end $$;
+
+                create or replace function subject_sort_sync() returns trigger language plpgsql as $$
+                begin
+                    update stock s
+                    set sort_subject = lower(coalesce(new.name, ''))
+                    from book_title bt
+                    where bt.subject_id = new.id and s.book_title_id = bt.id;
+                    return null;
+                end $$;
+
+                create or replace function building_sort_sync() returns trigger language plpgsql as $$
+                begin
+                    update stock set sort_building = lower(coalesce(new.name, '')) where building_id = new.id;
+                    return null;
+                end $$;
+
+                drop trigger if exists stock_sort_insert on stock;
+                create trigger stock_sort_insert before insert on stock
+                    for each row execute function stock_sort_fill();
+                drop trigger if exists stock_sort_update on stock;
+                create trigger stock_sort_update before update of building_id, book_title_id on stock
+                    for each row when (old.building_id is distinct from new.building_id
+                                       or old.book_title_id is distinct from new.book_title_id)
+                    execute function stock_sort_fill();
+                drop trigger if exists book_title_sort_sync on book_title;
+                create trigger book_title_sort_sync after update of title, grade, subject_id on book_title
+                    for each row when (old.title is distinct from new.title or old.grade is distinct from new.grade
+                                       or old.subject_id is distinct from new.subject_id)
+                    execute function book_title_sort_sync();
+                drop trigger if exists subject_sort_sync on subject;
+                create trigger subject_sort_sync after update of name on subject
+                    for each row when (old.name is distinct from new.name)
+                    execute function subject_sort_sync();
+                drop trigger if exists building_sort_sync on building;
+                create trigger building_sort_sync after update of name on building
+                    for each row when (old.name is distinct from new.name)
+                    execute function building_sort_sync();
+                """);
+        jdbc.update("""
+                update stock s
+                set sort_building = lower(coalesce(b.name, '')),
+                    sort_grade = bt.grade,
+                    sort_subject = lower(coalesce(subj.name, '')),
+                    sort_title = lower(coalesce(bt.title, ''))
+                from building b, book_title bt join subject subj on subj.id = bt.subject_id
+                where s.sort_title is null and b.id = s.building_id and bt.id = s.book_title_id
+                """);
+    }
+
+    private void alignSequence(String sequence, String table) {
+        jdbc.queryForObject(
+                "select setval('" + sequence + "', greatest((select coalesce(max(id), 0) from " + table + "), " +
+                        "(select last_value from " + sequence + ")))",
+                Long.class);
     }
 }
@@ -0,0 +1,115 @@
+package ru.school.library.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Разбор значений ячеек импорта. Вызывается на каждую ячейку каждой строки (в потоках разбора ImportPipeline),
+// поэтому шаблоны скомпилированы один раз, а обычные числа и параллели разбираются по символам без
+// промежуточных строк. Необычный ввод (знак, дробь, запятая) уходит на прежний медленный путь через Double.
+final class CellParsing {
+    // тот же шаблон использует CsvRegistryImportService в SQL (regexp_matches)
+    static final Pattern YEAR = Pattern.compile("(19\\d{2}|20\\d{2})");
+    private static final Pattern CLASS_NAME = Pattern.compile("\\s*\\d{1,2}\\s*[-–]?\\s*[А-ЯA-Zа-яa-z]\\s*");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final List<Integer> NO_YEAR = Collections.singletonList(null);
+
+    private CellParsing() {
+    }
+
+    // Первое число из одной-двух цифр: "5", "5 класс", "10-11" -> 10
+    static int parseGrade(String raw) {
+        if (raw == null) return 0;
+        int len = raw.length();
+        for (int i = 0; i < len; i++) {
+            int d = digit(raw.charAt(i));
+            if (d < 0) continue;
+            int next = i + 1 < len ? digit(raw.charAt(i + 1)) : -1;
+            return next < 0 ? d : d * 10 + next;
+        }
+        return 0;
+    }
+
+    static int parseInt(String raw) {
+        Integer v = parseIntNullable(raw);
+        return v == null ? 0 : v;
+    }
+
+    // Пробелы (в т.ч. неразрывные) внутри числа не мешают: "1 200" -> 1200; дробная часть отбрасывается
+    static Integer parseIntNullable(String raw) {
+        if (raw == null) return null;
+        int v = 0;
+        int digits = 0;
+        for (int i = 0, len = raw.length(); i < len; i++) {
+            char c = raw.charAt(i);
+            int d = digit(c);
+            if (d >= 0) {
+                if (++digits > 9) return parseSlow(raw);
+                v = v * 10 + d;
+            } else if (c != ' ' && c != '\u00A0') {
+                return parseSlow(raw);
+            }
+        }
+        return digits == 0 ? null : v;
+    }
+
+    // Все годы из ячейки ("2019, 2021" -> [2019, 2021]); без года — один элемент (число или null)
+    static List<Integer> parseYearCandidates(String raw) {
+        if (raw == null || raw.isBlank()) return NO_YEAR;
+        List<Integer> years = null;
+        Matcher m = YEAR.matcher(raw);
+        while (m.find()) {
+            int y = Integer.parseInt(raw, m.start(1), m.end(1), 10);
+            if (years == null) years = new ArrayList<>(2);
+            if (!years.contains(y)) years.add(y);
+        }
+        return years != null ? years : Collections.singletonList(parseIntNullable(raw));
+    }
+
+    // "10-А", "10 А", "10А"
+    static boolean looksLikeClassName(String raw) {
+        return CLASS_NAME.matcher(raw).matches();
+    }
+
+    static String removeWhitespace(String raw) {
+        return WHITESPACE.matcher(raw).replaceAll("");
+    }
+
+    // Принимаем "сп1"/"sp1"/"корпус 1"/"1" и приводим к "1"
+    static String normalizeBuildingCode(String raw) {
+        if (raw == null) return "";
+        String s = raw.trim().toLowerCase(Locale.ROOT);
+        s = s.replace("корпус", "").trim();
+        // русское "сп" или латиница "sp"
+        s = s.replace("сп", "sp");
+        if (s.startsWith("sp")) {
+            s = s.substring(2).trim();
+        }
+        // если осталось число
+        StringBuilder digits = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            if (digit(s.charAt(i)) >= 0) digits.append(s.charAt(i));
+        }
+        if (!digits.isEmpty()) return digits.toString();
+        // иначе оставим как есть (на случай, если вы заведёте коды именно "сп1")
+        return raw.trim();
+    }
+
+    private static Integer parseSlow(String raw) {
+        String s = raw
+                .replace('\u00A0', ' ')
+                .replace(" ", "")
+                .replace(",", ".")
+                .trim();
+        if (s.isBlank()) return null;
+        return (int) Double.parseDouble(s);
+    }
+
+    private static int digit(char c) {
+        return c >= '0' && c <= '9' ? c - '0' : -1;
+    }
+}
@@ -0,0 +1,89 @@
+package ru.school.library.service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+// Записи CSV по одной: значение в кавычках может содержать разделитель, удвоенные кавычки и переводы строк,
+// поэтому запись бывает длиннее строки файла. Перевод строки — \n, \r\n или \r; BOM в начале файла пропускается
+final class CsvRecordReader {
+    private static final int NONE = -2;
+
+    private final Reader in;
+    private final char delimiter;
+    private int line;
+    private int recordLine;
+    private int pushback = NONE;
+    private boolean started;
+
+    CsvRecordReader(Reader in, char delimiter) {
+        this.in = in;
+        this.delimiter = delimiter;
+    }
+
+    // Строка файла (с нуля), с которой началась последняя прочитанная запись
+    int recordLine() {
+        return recordLine;
+    }
+
+    // null — конец файла
+    List<String> next() throws IOException {
+        int ch = read();
+        if (!started) {
+            started = true;
+            if (ch == '\uFEFF') ch = read();
+        }
+        if (ch == -1) return null;
+        recordLine = line;
+
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (ch == -1) {
+                out.add(cur.toString());
+                return out;
+            }
+            if (quoted) {
+                if (ch == '"') {
+                    int next = read();
+                    if (next != '"') {
+                        quoted = false;
+                        ch = next;
+                        continue;
+                    }
+                    cur.append('"');
+                } else {
+                    if (ch == '\n') line++;
+                    cur.append((char) ch);
+                }
+            } else if (ch == '"') {
+                quoted = true;
+            } else if (ch == delimiter) {
+                out.add(cur.toString());
+                cur.setLength(0);
+            } else if (ch == '\n' || ch == '\r') {
+                if (ch == '\r') {
+                    int next = read();
+                    if (next != '\n') pushback = next;
+                }
+                line++;
+                out.add(cur.toString());
+                return out;
+            } else {
+                cur.append((char) ch);
+            }
+            ch = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (pushback != NONE) {
+            int ch = pushback;
+            pushback = NONE;
+            return ch;
+        }
+        return in.read();
+    }
+}
@@ -0,0 +1,466 @@
+package ru.school.library.service;
+
+import lombok.RequiredArgsConstructor;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+import ru.school.library.entity.Building;
+import ru.school.library.repo.BuildingRepository;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Реестр в CSV (те же два формата, что и в Excel: шаблон и выгрузка МЭШ) без построчной записи:
+// файл целиком уходит в временную таблицу через COPY, дальше разбор и слияние с book_title/stock —
+// несколько запросов над всеми строками сразу. Правила поиска книг те же, что у importRegistry:
+// МЭШ — по № ФПУ (+ год, если в строке несколько годов), шаблон — по ISBN; при повторах в файле
+// побеждает последняя строка. Заголовок — первая строка файла, разделитель ';' или ','.
+@Service
+@RequiredArgsConstructor
+public class CsvRegistryImportService {
+    private static final int COPY_BUFFER = 1 << 16;
+
+    private final BuildingRepository buildings;
+    private final ReconLineService reconLines;
+    private final PlatformTransactionManager txManager;
+    private final JdbcTemplate jdbc;
+
+    // Разбор чисел так же, как CellParsing.parseInt/parseGrade и splitPart в ExcelImportService.
+    // Числа за пределами integer упираются в границу, как приведение (int) double в Java, а не срывают весь импорт
+    private static final String FUNCTIONS = """
+            create or replace function pg_temp.import_num(raw text) returns text language sql immutable as
+            $$ select replace(replace(replace(coalesce(raw, ''), chr(160), ''), ' ', ''), ',', '.') $$;
+            create or replace function pg_temp.import_is_num(raw text) returns boolean language sql immutable as
+            $$ select pg_temp.import_num(raw) ~ '^([-+]?([0-9]+[.]?[0-9]*|[.][0-9]+))?$' $$;
+            create or replace function pg_temp.import_int(raw text) returns integer language sql immutable as
+            $$ select case when pg_temp.import_num(raw) = '' then 0
+                else least(greatest(trunc(pg_temp.import_num(raw)::numeric), -2147483648), 2147483647)::integer end $$;
+            create or replace function pg_temp.import_int_or_null(raw text) returns integer language sql immutable as
+            $$ select case when pg_temp.import_num(raw) = '' then null else pg_temp.import_int(raw) end $$;
+            create or replace function pg_temp.import_split(total integer, parts bigint, idx bigint) returns integer language sql immutable as
+            $$ select (total / parts + case when idx - 1 < ((total % parts) + parts) % parts then 1 else 0 end)::integer $$;
+            """;
+
+    private static final String PARTS_TABLE = """
+            create temp table registry_csv_part (
+                line bigint not null,
+                part bigint not null,
+                building_id bigint not null,
+                subject_name text not null,
+                subject_id bigint,
+                grade integer not null,
+                title text not null,
+                authors text,
+                publisher text,
+                match_key text not null,
+                year integer,
+                total integer not null,
+                available integer not null,
+                in_use integer not null,
+                title_id bigint,
+                new_title boolean not null default false
+            ) on commit drop
+            """;
+
+    private static final String YEAR_PATTERN = CellParsing.YEAR.pattern();
+
+    public ImportReport importRegistry(MultipartFile file, String buildingCode, boolean dryRun) throws Exception {
+        Path tmp = ExcelImportService.copyToTemp(file);
+        try {
+            ImportReport report = new ImportReport();
+            importRegistry(tmp, buildingCode, dryRun, report);
+            if (!dryRun) report.throwIfErrors("Импорт CSV");
+            return report;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    public void importRegistry(Path file, String buildingCode, boolean dryRun, ImportReport report) throws IOException {
+        Building selectedBuilding = buildings.findByCode(CellParsing.normalizeBuildingCode(buildingCode))
+                .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
+        Building centralRegistry = buildings.findByCode("0").orElse(selectedBuilding);
+
+        String first;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            first = in.readLine();
+        }
+        if (first == null) throw new RuntimeException("Пустой файл CSV");
+        if (first.startsWith("\uFEFF")) first = first.substring(1);
+        char delimiter = count(first, ';') >= count(first, ',') ? ';' : ',';
+        List<String> header = new CsvRecordReader(new StringReader(first), delimiter).next();
+
+        Map<String, Integer> col = new HashMap<>();
+        for (int c = 0; c < header.size(); c++) {
+            String h = header.get(c).trim().toLowerCase(Locale.ROOT);
+            if (!h.isBlank()) col.putIfAbsent(h, c);
+        }
+        boolean mesh = col.containsKey("название") && col.containsKey("предмет") && col.containsKey("параллель");
+        String h0 = header.get(0).trim().toLowerCase(Locale.ROOT);
+        if (!mesh && !h0.equals("buildingcode") && !h0.contains("код корпуса")) {
+            throw new RuntimeException("Не смог найти строку заголовков в CSV. Ожидал либо шаблон, либо реестр МЭШ.");
+        }
+
+        Map<Long, String> codes = new HashMap<>();
+        for (Building b : buildings.findAll()) codes.put(b.getId(), b.getCode());
+        Set<Long> touchedBuildings = new HashSet<>();
+
+        new TransactionTemplate(txManager).executeWithoutResult(tx -> {
+            copyToStage(file, header.size(), delimiter, report);
+            jdbc.execute(FUNCTIONS);
+            jdbc.execute(PARTS_TABLE);
+
+            if (mesh) stageMeshParts(header.size(), col, centralRegistry.getId(), report);
+            else stageTemplateParts(header.size(), report);
+
+            Integer processed = jdbc.queryForObject("select count(distinct line) from registry_csv_part", Integer.class);
+            report.rowsProcessed(processed == null ? 0 : processed);
+
+            mergeSubjects(dryRun);
+            mergeTitles(mesh, dryRun, report);
+            mergeStocks(codes, dryRun, touchedBuildings, report);
+
+            if (dryRun) tx.setRollbackOnly();
+        });
+
+        if (!dryRun) reconLines.buildingsChanged(touchedBuildings);
+    }
+
+    // Файл как есть: столбцы c1..cN текстом, line — строка файла (с нуля), где начинается запись.
+    // Записи разбираем при потоковой передаче в COPY: запись с другим числом столбцов, чем в заголовке,
+    // уходит в ошибки отчёта со своим номером строки, а не срывает COPY целиком. Пустые строки пропускаем
+    private void copyToStage(Path file, int columns, char delimiter, ImportReport report) {
+        StringBuilder ddl = new StringBuilder("create temp table registry_stage (line bigint not null");
+        StringBuilder names = new StringBuilder("line");
+        for (int c = 1; c <= columns; c++) {
+            ddl.append(", c").append(c).append(" text");
+            names.append(", c").append(c);
+        }
+        jdbc.execute(ddl.append(") on commit drop").toString());
+
+        String copy = "copy registry_stage (" + names + ") from stdin with (format csv)";
+        jdbc.execute((ConnectionCallback<Void>) con -> {
+            try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+                 Writer out = new BufferedWriter(new OutputStreamWriter(
+                         new PGCopyOutputStream(con.unwrap(PGConnection.class), copy, COPY_BUFFER),
+                         StandardCharsets.UTF_8), COPY_BUFFER)) {
+                CsvRecordReader records = new CsvRecordReader(in, delimiter);
+                records.next();
+                for (List<String> r; (r = records.next()) != null; ) {
+                    if (r.size() == 1 && r.get(0).isBlank()) continue;
+                    if (r.size() != columns) {
+                        RuntimeException ex = new RuntimeException(
+                                "Неверное число столбцов: " + r.size() + " вместо " + columns);
+                        if (!report.rowFailed(records.recordLine(), ex)) break;
+                        continue;
+                    }
+                    out.write(Integer.toString(records.recordLine()));
+                    for (String v : r) {
+                        out.write(",\"");
+                        out.write(v.replace("\"", "\"\""));
+                        out.write('"');
+                    }
+                    out.write('\n');
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    // МЭШ: строка с несколькими годами издания делится на части, как в importMeshRow
+    private void stageMeshParts(int columns, Map<String, Integer> col, Long targetBuildingId, ImportReport report) {
+        String title = cell(columns, col.get("название"));
+        String subject = cell(columns, col.get("предмет"));
+        String grade = cell(columns, col.get("параллель"));
+        String authors = cell(columns, col.get("автор(-ы)"));
+        String publisher = cell(columns, col.get("издательство"));
+        String fpu = cell(columns, col.get("№ фпу"));
+        String total = cell(columns, col.get("общее кол-во экземпляров"));
+        String available = cell(columns, col.get("кол-во свободных экземпляров"));
+        String year = cell(columns, col.get("год издания"));
+
+        rejectRows(report, title + " <> ''", List.of(total, available),
+                "(" + year + " ~ '" + YEAR_PATTERN + "' or pg_temp.import_is_num(" + year + "))");
+
+        jdbc.update("""
+                insert into registry_csv_part (line, part, building_id, subject_name, grade, title, authors, publisher,
+                                               match_key, year, total, available, in_use)
+                select s.line, y.k, ?, %2$s, coalesce(substring(%3$s from '\\d{1,2}')::integer, 0), %1$s, %4$s, %5$s,
+                       case when y.n > 1 and %6$s <> '' and y.year is not null then %6$s || '#' || y.year else %6$s end,
+                       y.year,
+                       pg_temp.import_split(pg_temp.import_int(%7$s), y.n, y.k),
+                       pg_temp.import_split(pg_temp.import_int(%8$s), y.n, y.k),
+                       greatest(0, pg_temp.import_split(pg_temp.import_int(%7$s), y.n, y.k)
+                                   - pg_temp.import_split(pg_temp.import_int(%8$s), y.n, y.k))
+                from registry_stage s
+                         cross join lateral (
+                    select m.year, row_number() over (order by m.pos) as k, count(*) over () as n
+                    from (select r.m[1]::integer as year, min(r.pos) as pos
+                          from regexp_matches(%9$s, '%10$s', 'g') with ordinality as r(m, pos)
+                          group by 1) m
+                    union all
+                    select pg_temp.import_int_or_null(%9$s), 1, 1
+                    where %9$s !~ '%10$s'
+                    ) y
+                where %1$s <> ''
+                """.formatted(title, subject, grade, authors, publisher, fpu, total, available, year, YEAR_PATTERN),
+                targetBuildingId);
+    }
+
+    // Шаблон: buildingCode | grade | subject | title | authors | year | isbn | total | available | inUse
+    private void stageTemplateParts(int columns, ImportReport report) {
+        String notBlank = "trim(concat(" + String.join(", ", columnNames(columns)) + ")) <> ''";
+
+        // Коды корпусов в файле нормализуем в Java (normalizeBuildingCode), их всего несколько
+        jdbc.execute("create temp table registry_csv_building (raw text primary key, building_id bigint) on commit drop");
+        List<String> raws = jdbc.queryForList(
+                "select distinct " + cell(columns, 0) + " from registry_stage s where " + notBlank, String.class);
+        Map<String, Long> buildingIds = new HashMap<>();
+        for (Building b : buildings.findAll()) buildingIds.put(b.getCode(), b.getId());
+        jdbc.batchUpdate("insert into registry_csv_building (raw, building_id) values (?, ?)",
+                raws.stream().map(raw -> new Object[]{raw, buildingIds.get(CellParsing.normalizeBuildingCode(raw))}).toList());
+
+        for (var row : jdbc.queryForList("""
+                select s.line, %s as code from registry_stage s
+                join registry_csv_building b on b.raw = %s
+                where b.building_id is null and %s
+                order by s.line
+                """.formatted(cell(columns, 0), cell(columns, 0), notBlank))) {
+            if (!report.rowFailed(((Number) row.get("line")).intValue(), new RuntimeException("Unknown building code: " + row.get("code")))) break;
+        }
+
+        rejectRows(report, notBlank, List.of(cell(columns, 1), cell(columns, 5), cell(columns, 7), cell(columns, 8), cell(columns, 9)), null);
+
+        jdbc.update("""
+                insert into registry_csv_part (line, part, building_id, subject_name, grade, title, authors, publisher,
+                                               match_key, year, total, available, in_use)
+                select s.line, 1, b.building_id, %3$s, pg_temp.import_int(%2$s), %4$s, %5$s, null,
+                       %7$s, pg_temp.import_int_or_null(%6$s),
+                       pg_temp.import_int(%8$s), pg_temp.import_int(%9$s), pg_temp.import_int(%10$s)
+                from registry_stage s
+                         join registry_csv_building b on b.raw = %1$s and b.building_id is not null
+                where %11$s
+                """.formatted(cell(columns, 0), cell(columns, 1), cell(columns, 2), cell(columns, 3), cell(columns, 4),
+                cell(columns, 5), cell(columns, 6), cell(columns, 7), cell(columns, 8), cell(columns, 9), notBlank));
+    }
+
+    // Строки с нечисловыми количествами — в ошибки отчёта (первые MAX_ERRORS) и из разбора
+    private void rejectRows(ImportReport report, String rowFilter, List<String> numbers, String extraCheck) {
+        List<String> checks = new ArrayList<>();
+        for (String n : numbers) checks.add("pg_temp.import_is_num(" + n + ")");
+        if (extraCheck != null) checks.add(extraCheck);
+        String bad = rowFilter + " and not (" + String.join(" and ", checks) + ")";
+
+        for (Integer line : jdbc.queryForList("select s.line from registry_stage s where " + bad
+                + " order by s.line limit " + ImportReport.MAX_ERRORS, Integer.class)) {
+            report.rowFailed(line, new RuntimeException("Некорректное число в строке"));
+        }
+        jdbc.update("delete from registry_stage s where " + bad);
+    }
+
+    // Предметы сравниваются без учёта регистра, как в ImportContext.subject.
+    // Пробный прогон пишет только во временные таблицы: у новых предметов subject_id остаётся пустым
+    private void mergeSubjects(boolean dryRun) {
+        if (!dryRun) jdbc.update("""
+                insert into subject (name)
+                select distinct on (lower(p.subject_name)) p.subject_name
+                from registry_csv_part p
+                where not exists (select 1 from subject s where lower(s.name) = lower(p.subject_name))
+                order by lower(p.subject_name), p.line
+                """);
+        jdbc.update("""
+                update registry_csv_part p
+                set subject_id = s.id
+                from (select lower(name) as name, min(id) as id from subject group by 1) s
+                where s.name = lower(p.subject_name)
+                """);
+    }
+
+    // В пробном прогоне book_title не меняется: изменения считаются запросами, а новым книгам
+    // (одна на ключ, как при настоящей вставке) раздаются временные отрицательные id вместо book_title_seq
+    private void mergeTitles(boolean mesh, boolean dryRun, ImportReport report) {
+        // МЭШ ищет по external_key и обновляет издательство, шаблон ищет по isbn и издательство не трогает
+        String keyColumn = mesh ? "external_key" : "isbn";
+        String fields = mesh ? "title, authors, publisher, year" : "title, authors, year";
+        String match = """
+                update registry_csv_part p
+                set title_id = t.id
+                from (select %1$s as match_key, grade, subject_id, min(id) as id
+                      from book_title
+                      where %1$s <> ''
+                      group by 1, 2, 3) t
+                where p.title_id is null
+                  and p.match_key <> ''
+                  and t.match_key = p.match_key
+                  and t.grade = p.grade
+                  and t.subject_id = p.subject_id
+                """.formatted(keyColumn);
+
+        jdbc.update(match);
+        Integer existing = jdbc.queryForObject(
+                "select count(distinct title_id) from registry_csv_part where title_id is not null", Integer.class);
+
+        String changed = """
+                (select distinct on (title_id) title_id, title, authors, publisher, year
+                 from registry_csv_part
+                 where title_id is not null
+                 order by title_id, line desc, part desc) s
+                where bt.id = s.title_id
+                  and (bt.%1$s) is distinct from (s.%2$s)
+                """.formatted(fields.replace(", ", ", bt."), fields.replace(", ", ", s."));
+        int matched = existing == null ? 0 : existing;
+
+        if (dryRun) {
+            Integer updated = jdbc.queryForObject("select count(*) from book_title bt, " + changed, Integer.class);
+            jdbc.update("""
+                    update registry_csv_part p
+                    set title_id = -n.k, new_title = true
+                    from (select line, part,
+                                 dense_rank() over (order by nullif(match_key, ''), grade, lower(subject_name),
+                                     case when match_key = '' then line end, case when match_key = '' then part end) as k
+                          from registry_csv_part
+                          where title_id is null) n
+                    where p.line = n.line and p.part = n.part
+                    """);
+            Integer inserted = jdbc.queryForObject(
+                    "select count(distinct title_id) from registry_csv_part where new_title", Integer.class);
+            int u = updated == null ? 0 : updated;
+            report.getDiff().add(ImportDiff.TITLES, inserted == null ? 0 : inserted, u, matched - u);
+            return;
+        }
+
+        int updated = jdbc.update("""
+                update book_title bt
+                set %s = %s, import_fingerprint = null
+                from %s""".formatted(
+                        mesh ? "(title, authors, publisher, year)" : "(title, authors, year)",
+                        mesh ? "(s.title, s.authors, s.publisher, s.year)" : "(s.title, s.authors, s.year)",
+                        changed));
+
+        // Новые книги: по одной на ключ (значения из последней строки) и по одной на каждую строку без ключа
+        String newTitle = mesh
+                ? "match_key, null"
+                : "null, match_key";
+        int inserted = jdbc.update("""
+                insert into book_title (id, external_key, isbn, title, authors, publisher, year, subject_id, grade, approved_by_order)
+                select nextval('book_title_seq'), %s, title, authors, publisher, year, subject_id, grade, false
+                from (select distinct on (match_key, grade, subject_id) *
+                      from registry_csv_part
+                      where title_id is null and match_key <> ''
+                      order by match_key, grade, subject_id, line desc, part desc) p
+                """.formatted(newTitle));
+        jdbc.update(match);
+
+        jdbc.update("""
+                update registry_csv_part
+                set title_id = nextval('book_title_seq'), new_title = true
+                where title_id is null
+                """);
+        inserted += jdbc.update("""
+                insert into book_title (id, external_key, isbn, title, authors, publisher, year, subject_id, grade, approved_by_order)
+                select title_id, %s, title, authors, publisher, year, subject_id, grade, false
+                from registry_csv_part
+                where new_title
+                """.formatted(newTitle));
+
+        report.getDiff().add(ImportDiff.TITLES, inserted, updated, matched - updated);
+    }
+
+    private void mergeStocks(Map<Long, String> codes, boolean dryRun, Set<Long> touchedBuildings, ImportReport report) {
+        Map<Long, int[]> counts = new HashMap<>();
+        for (var row : jdbc.queryForList("""
+                select building_id, count(distinct title_id) as positions from registry_csv_part group by building_id
+                """)) {
+            counts.put(((Number) row.get("building_id")).longValue(), new int[]{((Number) row.get("positions")).intValue(), 0, 0});
+        }
+
+        // последняя строка файла на корпус и книгу
+        String last = """
+                select distinct on (building_id, title_id) building_id, title_id, total, available, in_use
+                from registry_csv_part
+                order by building_id, title_id, line desc, part desc
+                """;
+        // пробный прогон: те же итоги по левому соединению с stock, без INSERT ... ON CONFLICT
+        String merge = dryRun ? """
+                with s as (%s)
+                select s.building_id,
+                       count(*) filter (where st.id is null) as inserted,
+                       count(*) filter (where st.id is not null
+                                            and (st.total, st.available, st.in_use, st.mesh_total)
+                                                    is distinct from (s.total, s.available, s.in_use, s.total)) as updated
+                from s
+                         left join stock st on st.building_id = s.building_id and st.book_title_id = s.title_id
+                group by s.building_id
+                """.formatted(last) : """
+                with s as (%s),
+                     u as (insert into stock as st (id, building_id, book_title_id, total, available, in_use,
+                                                    mesh_total, suuf_total, issued_to_students, in_cabinets)
+                           select nextval('stock_seq'), building_id, title_id, total, available, in_use, total, 0, 0, 0
+                           from s
+                           on conflict (building_id, book_title_id) do update
+                               set total = excluded.total,
+                                   available = excluded.available,
+                                   in_use = excluded.in_use,
+                                   mesh_total = excluded.mesh_total,
+                                   import_fingerprint = null
+                               where (st.total, st.available, st.in_use, st.mesh_total)
+                                         is distinct from (excluded.total, excluded.available, excluded.in_use, excluded.mesh_total)
+                           returning st.building_id, (st.xmax = 0) as inserted)
+                select building_id,
+                       count(*) filter (where inserted) as inserted,
+                       count(*) filter (where not inserted) as updated
+                from u
+                group by building_id
+                """.formatted(last);
+        for (var row : jdbc.queryForList(merge)) {
+            Long buildingId = ((Number) row.get("building_id")).longValue();
+            int[] c = counts.get(buildingId);
+            c[1] = ((Number) row.get("inserted")).intValue();
+            c[2] = ((Number) row.get("updated")).intValue();
+            if (!dryRun) touchedBuildings.add(buildingId);
+        }
+
+        counts.forEach((buildingId, c) ->
+                report.getDiff().add(ImportDiff.building(codes.get(buildingId)), c[1], c[2], c[0] - c[1] - c[2]));
+    }
+
+    private static String cell(int columns, Integer idx) {
+        if (idx == null || idx >= columns) return "''";
+        return "coalesce(trim(s.c" + (idx + 1) + "), '')";
+    }
+
+    private static List<String> columnNames(int columns) {
+        List<String> names = new ArrayList<>(columns);
+        for (int c = 1; c <= columns; c++) names.add("s.c" + c);
+        return names;
+    }
+
+    private static int count(String s, char ch) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) if (s.charAt(i) == ch) n++;
+        return n;
+    }
+}
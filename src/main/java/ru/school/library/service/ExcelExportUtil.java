@@ -1,20 +1,28 @@
 package ru.school.library.service;
 
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 public class ExcelExportUtil {
 
+    // Сколько строк SXSSF держит в памяти; остальное сразу уходит во временный файл
+    public static final int ROW_WINDOW = 200;
+
     private ExcelExportUtil() {
     }
 
-    public static Workbook workbookWithHeader(String sheetName, String[] headers) {
-        Workbook wb = new XSSFWorkbook();
+    @FunctionalInterface
+    public interface WorkbookWriter {
+        void write(Workbook wb) throws Exception;
+    }
+
+    public static Sheet sheetWithHeader(Workbook wb, String sheetName, String[] headers) {
         Sheet sh = wb.createSheet(sheetName);
 
         Font headerFont = wb.createFont();
@@ -28,22 +36,35 @@ public class ExcelExportUtil {
             Cell c = hr.createCell(i);
             c.setCellValue(headers[i]);
             c.setCellStyle(headerStyle);
-            sh.autoSizeColumn(i);
+            sh.setColumnWidth(i, Math.max(12, headers[i].length() + 2) * 256);
         }
 
-        return wb;
+        return sh;
     }
 
-    public static ResponseEntity<byte[]> okXlsx(String fileName, Workbook wb) throws Exception {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            wb.write(bos);
-            wb.close();
+    // Книга строится потоково (SXSSF) прямо в выходной поток ответа:
+    // память на выгрузку не зависит от числа строк, промежуточных byte[] нет
+    public static ResponseEntity<StreamingResponseBody> streamXlsx(String fileName, WorkbookWriter writer) {
+        StreamingResponseBody body = out -> {
+            SXSSFWorkbook wb = new SXSSFWorkbook(ROW_WINDOW);
+            wb.setCompressTempFiles(true);
+            try {
+                writer.write(wb);
+                wb.write(out);
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            } finally {
+                wb.dispose();
+                wb.close();
+            }
+        };
 
-            return ResponseEntity.ok()
-                    .header(HttpHeaders.CONTENT_DISPOSITION,
-                            "attachment; filename=\"" + fileName + "\"")
-                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                    .body(bos.toByteArray());
-        }
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"" + fileName + "\"")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(body);
     }
 }
@@ -1,501 +1,429 @@
 package ru.school.library.service;
 
-import lombok.RequiredArgsConstructor;
+import jakarta.persistence.EntityManager;
 import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.web.multipart.MultipartFile;
 import ru.school.library.entity.*;
 import ru.school.library.repo.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 @Service
-@RequiredArgsConstructor
 public class ExcelImportService {
+    // пачек строк реестра в разборе на один импорт (см. ImportPipeline)
+    private static final int PARSE_IN_FLIGHT = 8;
+
     private final BuildingRepository buildings;
     private final SubjectRepository subjects;
     private final BookTitleRepository bookTitles;
     private final StockRepository stocks;
     private final CurriculumItemRepository curriculum;
-    private final ClassGroupRepository classes;
-    private final FutureClassGroupRepository futureClasses;
+    private final ReconLineService reconLines;
+    private final DataVersion dataVersion;
+    private final PlatformTransactionManager txManager;
+    private final EntityManager em;
+    private final JdbcTemplate jdbc;
+    private final UserRepository users;
+    private final ExecutorService importParseExecutor;
+
+    public ExcelImportService(BuildingRepository buildings,
+                              SubjectRepository subjects,
+                              BookTitleRepository bookTitles,
+                              StockRepository stocks,
+                              CurriculumItemRepository curriculum,
+                              ReconLineService reconLines,
+                              DataVersion dataVersion,
+                              PlatformTransactionManager txManager,
+                              EntityManager em,
+                              JdbcTemplate jdbc,
+                              UserRepository users,
+                              @Qualifier("importParseExecutor") ExecutorService importParseExecutor) {
+        this.buildings = buildings;
+        this.subjects = subjects;
+        this.bookTitles = bookTitles;
+        this.stocks = stocks;
+        this.curriculum = curriculum;
+        this.reconLines = reconLines;
+        this.dataVersion = dataVersion;
+        this.txManager = txManager;
+        this.em = em;
+        this.jdbc = jdbc;
+        this.users = users;
+        this.importParseExecutor = importParseExecutor;
+    }
+
+    private ImportContext openContext(boolean dryRun) {
+        return openContext(dryRun, null);
+    }
+
+    private ImportContext openContext(boolean dryRun, BatchCatalog catalog) {
+        return new ImportContext(txManager, em, buildings, subjects, bookTitles, stocks, dryRun, catalog);
+    }
+
+    // dryRun во всех импортах: файл разбирается и сверяется с текущими данными, в отчёт попадает
+    // ImportDiff (вставки/обновления/без изменений), но в БД ничего не пишется. Ошибки строк при
+    // пробном прогоне не бросаются, а остаются в отчёте
+    public ImportReport importLibrarianStock(MultipartFile file, Long buildingId, boolean dryRun) throws Exception {
+        Path tmp = copyToTemp(file);
+        try {
+            ImportReport report = new ImportReport();
+            importLibrarianStock(tmp, buildingId, dryRun, report);
+            if (!dryRun) report.throwIfErrors("Импорт остатков");
+            return report;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
 
-    public void importLibrarianStock(MultipartFile file, Long buildingId) throws Exception {
-        try (Workbook wb = WorkbookFactory.create(file.getInputStream())) {
-            Sheet sh = wb.getSheetAt(0);
-            Building building = buildings.findById(buildingId)
-                    .orElseThrow(() -> new RuntimeException("Корпус не найден"));
+    public void importLibrarianStock(Path file, Long buildingId, boolean dryRun, ImportReport report) throws Exception {
+        Building building = buildings.findById(buildingId)
+                .orElseThrow(() -> new RuntimeException("Корпус не найден"));
 
-            int headerRowIdx = findLibrarianHeaderRow(sh);
-            if (headerRowIdx < 0) {
+        java.util.Map<String, Integer> col = new java.util.HashMap<>();
+        try (ImportContext ctx = openContext(dryRun)) {
+            SheetReader.read(file, r -> {
+                if (col.isEmpty()) {
+                    if (r.rowNum() > 30) return false;
+                    if (isLibrarianHeader(r)) col.putAll(headerIndex(r));
+                    return true;
+                }
+                try {
+                    if (importLibrarianRow(ctx, r, col, building)) {
+                        ctx.rowDone();
+                        report.rowProcessed();
+                    }
+                    return true;
+                } catch (Exception ex) {
+                    return report.rowFailed(r.rowNum(), ex);
+                }
+            });
+            if (col.isEmpty()) {
                 throw new RuntimeException("Не найден заголовок шаблона остатков библиотекаря");
             }
+            ctx.collectDiff(report.getDiff());
+            ctx.commit();
+        }
 
-            Row header = sh.getRow(headerRowIdx);
-            java.util.Map<String, Integer> col = new java.util.HashMap<>();
-            for (Cell cell : header) {
-                String h = cell.getStringCellValue();
-                if (h != null) col.put(h.trim().toLowerCase(), cell.getColumnIndex());
-            }
-
-            java.util.List<String> errors = new java.util.ArrayList<>();
-            int processed = 0;
-            for (int rIdx = headerRowIdx + 1; rIdx <= sh.getLastRowNum(); rIdx++) {
-                Row r = sh.getRow(rIdx);
-                if (r == null) continue;
-                try {
-                    String subjectName = getStringByAnyHeader(r, col, "предмет", "subject");
-                    int grade = parseInt(getStringByAnyHeader(r, col, "параллель", "grade"));
-                    String title = getStringByAnyHeader(r, col, "название", "title");
-                    String authors = getStringByAnyHeader(r, col, "авторы", "authors");
-                    String publisher = getStringByAnyHeader(r, col, "издательство", "publisher");
-                    Integer year = parseIntNullable(getStringByAnyHeader(r, col, "год издания", "year"));
-                    String isbn = getStringByAnyHeader(r, col, "isbn");
-                    int total = parseInt(getStringByAnyHeader(r, col, "всего", "total"));
-                    int available = parseInt(getStringByAnyHeader(r, col, "свободно", "available"));
-                    int inUse = parseInt(getStringByAnyHeader(r, col, "в использовании", "inuse"));
-
-                    if ((title == null || title.isBlank()) && (subjectName == null || subjectName.isBlank())) {
-                        continue;
-                    }
+        if (!dryRun) reconLines.buildingsChanged(List.of(building.getId()));
+    }
 
-                    Subject subject = subjects.findByNameIgnoreCase(subjectName)
-                            .orElseGet(() -> {
-                                Subject s = new Subject();
-                                s.setName(subjectName);
-                                return subjects.save(s);
-                            });
+    // false — пустая строка, пропускаем
+    private boolean importLibrarianRow(ImportContext ctx, SheetRow r, java.util.Map<String, Integer> col, Building building) {
+        String subjectName = getStringByAnyHeader(r, col, "предмет", "subject");
+        int grade = CellParsing.parseInt(getStringByAnyHeader(r, col, "параллель", "grade"));
+        String title = getStringByAnyHeader(r, col, "название", "title");
+        String authors = getStringByAnyHeader(r, col, "авторы", "authors");
+        String publisher = getStringByAnyHeader(r, col, "издательство", "publisher");
+        Integer year = CellParsing.parseIntNullable(getStringByAnyHeader(r, col, "год издания", "year"));
+        String isbn = getStringByAnyHeader(r, col, "isbn");
+        int total = CellParsing.parseInt(getStringByAnyHeader(r, col, "всего", "total"));
+        int available = CellParsing.parseInt(getStringByAnyHeader(r, col, "свободно", "available"));
+        int inUse = CellParsing.parseInt(getStringByAnyHeader(r, col, "в использовании", "inuse"));
 
-                    BookTitle bt = null;
-                    if (isbn != null && !isbn.isBlank()) {
-                        bt = bookTitles.findByIsbnAndGradeAndSubject_Id(isbn.trim(), grade, subject.getId()).orElse(null);
-                    }
-                    if (bt == null) {
-                        bt = bookTitles.findByTitleIgnoreCaseAndGradeAndSubject_Id(title, grade, subject.getId()).orElse(null);
-                    }
-                    if (bt == null) {
-                        bt = new BookTitle();
-                        bt.setGrade(grade);
-                        bt.setSubject(subject);
-                    }
-                    bt.setTitle(title);
-                    bt.setAuthors(authors);
-                    bt.setPublisher(publisher);
-                    bt.setYear(year);
-                    bt.setIsbn(isbn == null || isbn.isBlank() ? null : isbn.trim());
-                    bt = bookTitles.save(bt);
+        if (title.isBlank() && subjectName.isBlank()) {
+            return false;
+        }
 
-                    Stock st = stocks.findOne(building.getId(), bt.getId()).orElseGet(Stock::new);
-                    st.setBuilding(building);
-                    st.setBookTitle(bt);
-                    st.setTotal(Math.max(0, total));
-                    st.setAvailable(Math.max(0, available));
-                    st.setInUse(Math.max(0, inUse));
-                    // Это инвентаризационные остатки от библиотекаря, а не импорт официальных
-                    // срезов МЭШ/СУУФ. Не перезаписываем source-поля meshTotal/suufTotal.
-                    stocks.save(st);
-                    processed++;
-                } catch (Exception ex) {
-                    errors.add("Строка " + (rIdx + 1) + ": " + ex.getMessage());
-                    if (errors.size() >= 30) break;
-                }
-            }
+        Subject subject = ctx.subject(subjectName);
 
-            if (!errors.isEmpty()) {
-                throw new RuntimeException("Импорт остатков завершён с ошибками. Обработано строк: " + processed + ". Примеры:\n" + String.join("\n", errors));
-            }
+        BookTitle bt = null;
+        if (!isbn.isBlank()) {
+            bt = ctx.titleByIsbn(isbn.trim(), grade, subject.getId());
+        }
+        if (bt == null) {
+            bt = ctx.titleByName(title, grade, subject.getId());
         }
+        if (bt == null) {
+            bt = new BookTitle();
+            bt.setGrade(grade);
+            bt.setSubject(subject);
+        }
+        bt.setTitle(title);
+        bt.setAuthors(authors);
+        bt.setPublisher(publisher);
+        bt.setYear(year);
+        bt.setIsbn(isbn.isBlank() ? null : isbn.trim());
+        bt = ctx.save(bt);
+
+        Stock st = ctx.stock(building.getId(), bt.getId());
+        if (st == null) st = new Stock();
+        st.setBuilding(building);
+        st.setBookTitle(bt);
+        st.setTotal(Math.max(0, total));
+        st.setAvailable(Math.max(0, available));
+        st.setInUse(Math.max(0, inUse));
+        // Это инвентаризационные остатки от библиотекаря, а не импорт официальных
+        // срезов МЭШ/СУУФ. Не перезаписываем source-поля meshTotal/suufTotal.
+        ctx.save(st);
+        return true;
     }
 
-// Реестр: buildingCode | grade | subject | title | authors | year | isbn | total | available | inUse
     // Реестр: поддерживаем 2 формата
-// Формат A (наш шаблон): buildingCode | grade | subject | title | authors | year | isbn | total | available | inUse
-// Формат B (реестр МЭШ): колонки (рус.): Название, Предмет, Параллель, Автор(-ы), Издательство, Год издания,
-//                         № ФПУ, Общее кол-во экземпляров, Кол-во свободных экземпляров
-// Для МЭШ buildingCode передаём отдельно (по умолчанию удобно грузить в "0" = Центральный фонд)
-public void importRegistry(MultipartFile file, String buildingCode) throws Exception {
-    try (Workbook wb = WorkbookFactory.create(file.getInputStream())) {
-        Sheet sh = wb.getSheetAt(0);
-
-        int headerRowIdx = findHeaderRow(sh);
-        if (headerRowIdx < 0) {
-            throw new RuntimeException("Не смог найти строку заголовков в реестре. Ожидал либо шаблон, либо реестр МЭШ.");
-        }
-
-        // Собираем мапу "название колонки -> индекс"
-        Row header = sh.getRow(headerRowIdx);
-        java.util.Map<String, Integer> col = new java.util.HashMap<>();
-        for (Cell cell : header) {
-            String h = cell.getStringCellValue();
-            if (h != null) col.put(h.trim().toLowerCase(), cell.getColumnIndex());
+    // Формат A (наш шаблон): buildingCode | grade | subject | title | authors | year | isbn | total | available | inUse
+    // Формат B (реестр МЭШ): колонки (рус.): Название, Предмет, Параллель, Автор(-ы), Издательство, Год издания,
+    //                         № ФПУ, Общее кол-во экземпляров, Кол-во свободных экземпляров
+    // Для МЭШ buildingCode передаём отдельно (по умолчанию удобно грузить в "0" = Центральный фонд)
+    public ImportReport importRegistry(MultipartFile file, String buildingCode, boolean dryRun) throws Exception {
+        Path tmp = copyToTemp(file);
+        try {
+            ImportReport report = new ImportReport();
+            importRegistry(tmp, buildingCode, dryRun, report);
+            if (!dryRun) report.throwIfErrors("Импорт");
+            return report;
+        } finally {
+            Files.deleteIfExists(tmp);
         }
+    }
 
-        boolean isMesh = col.containsKey("название") && col.containsKey("предмет") && col.containsKey("параллель");
+    // Ошибки строк остаются в report, исключение — только если файл не удалось разобрать целиком
+    public void importRegistry(Path file, String buildingCode, boolean dryRun, ImportReport report) throws Exception {
+        importRegistry(file, 0, buildingCode, dryRun, null, report);
+    }
 
-        Building selectedBuilding = buildings.findByCode(normalizeBuildingCode(buildingCode))
+    // Пакетный импорт (RegistryBatchImportService): у корпуса может быть свой лист книги,
+    // а предметы и книги идут через общий для пакета catalog
+    void importRegistry(Path file, int sheet, String buildingCode, boolean dryRun, BatchCatalog catalog,
+                        ImportReport report) throws Exception {
+        Building selectedBuilding = buildings.findByCode(CellParsing.normalizeBuildingCode(buildingCode))
                 .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
         Building centralRegistry = buildings.findByCode("0").orElse(selectedBuilding);
-        Building targetRegistry = isMesh ? centralRegistry : selectedBuilding;
-
-        java.util.List<String> errors = new java.util.ArrayList<>();
-        int processed = 0;
-
-        for (int rIdx = headerRowIdx + 1; rIdx <= sh.getLastRowNum(); rIdx++) {
-            Row r = sh.getRow(rIdx);
-            if (r == null) continue;
-
-            try {
-                if (isMesh) {
-                    // МЭШ
-                    String title = getStringByHeader(r, col, "название");
-                    if (title == null || title.isBlank()) continue; // пустая строка
-
-                    String subjectName = getStringByHeader(r, col, "предмет");
-                    int grade = parseGrade(getStringByHeader(r, col, "параллель"));
-                    String authors = getStringByHeader(r, col, "автор(-ы)");
-                    String publisher = getStringByHeader(r, col, "издательство");
-                    String yearRaw = getStringByHeader(r, col, "год издания");
-                    String fpu = getStringByHeader(r, col, "№ фпу");
-                    int total = parseInt(getStringByHeader(r, col, "общее кол-во экземпляров"));
-                    int available = parseInt(getStringByHeader(r, col, "кол-во свободных экземпляров"));
-                    int inUse = Math.max(0, total - available);
-                    List<Integer> years = parseYearCandidates(yearRaw);
-
-                    Subject subject = subjects.findByNameIgnoreCase(subjectName)
-                            .orElseGet(() -> {
-                                Subject s = new Subject();
-                                s.setName(subjectName);
-                                return subjects.save(s);
-                            });
-
-                    for (int i = 0; i < years.size(); i++) {
-                        Integer year = years.get(i);
-                        int totalPart = splitPart(total, years.size(), i);
-                        int availablePart = splitPart(available, years.size(), i);
-                        int inUsePart = Math.max(0, totalPart - availablePart);
-
-                        BookTitle bt = findOrCreateMeshTitle(fpu, grade, subject, title, authors, publisher, year, years.size() > 1);
-
-                        Stock st = stocks.findOne(targetRegistry.getId(), bt.getId()).orElse(null);
-                        if (st == null) {
-                            st = new Stock();
-                            st.setBuilding(targetRegistry);
-                            st.setBookTitle(bt);
-                            st.setTotal(0);
-                            st.setAvailable(0);
-                            st.setInUse(0);
-                        }
-                        st.setTotal(totalPart);
-                        st.setAvailable(availablePart);
-                        st.setInUse(inUsePart);
-                        st.setMeshTotal(totalPart);
-                        stocks.save(st);
-                    }
-
-                    processed++;
-                } else {
-                    // Наш шаблон (фиксированные позиции)
-                    String buildingCodeCell = getString(r,0);
-                    int grade = getInt(r,1);
-                    String subjectName = getString(r,2);
-                    String title = getString(r,3);
-                    String authors = getString(r,4);
-                    Integer year = getIntNullable(r,5);
-                    String isbn = getString(r,6);
-                    int total = getInt(r,7);
-                    int available = getInt(r,8);
-                    int inUse = getInt(r,9);
-
-                    Building b = buildings.findByCode(normalizeBuildingCode(buildingCodeCell))
-                            .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCodeCell));
-
-                    Subject subject = subjects.findByNameIgnoreCase(subjectName)
-                            .orElseGet(() -> {
-                                Subject s = new Subject();
-                                s.setName(subjectName);
-                                return subjects.save(s);
-                            });
-
-                    BookTitle bt;
-                    if (isbn != null && !isbn.isBlank()) {
-                        bt = bookTitles.findByIsbnAndGradeAndSubject_Id(isbn, grade, subject.getId()).orElse(null);
-                    } else {
-                        bt = null;
-                    }
 
-                    if (bt == null) {
-                        bt = new BookTitle();
-                        bt.setGrade(grade);
-                        bt.setSubject(subject);
-                        bt.setTitle(title);
-                        bt.setAuthors(authors);
-                        bt.setYear(year);
-                        bt.setIsbn(isbn);
-                        bt = bookTitles.save(bt);
-                    } else {
-                        bt.setTitle(title);
-                        bt.setAuthors(authors);
-                        bt.setYear(year);
-                        bookTitles.save(bt);
-                    }
-
-                    Stock st = stocks.findOne(b.getId(), bt.getId()).orElse(null);
-                    if (st == null) {
-                        st = new Stock();
-                        st.setBuilding(b);
-                        st.setBookTitle(bt);
-                        st.setTotal(0);
-                        st.setAvailable(0);
-                        st.setInUse(0);
-                    }
-                    st.setTotal(total);
-                    st.setAvailable(available);
-                    st.setInUse(inUse);
-                    st.setMeshTotal(total);
-                    stocks.save(st);
+        // Собираем мапу "название колонки -> индекс", как только встретим строку заголовков.
+        // Заполняется в потоке вызова до первой строки данных, задачи разбора её только читают
+        java.util.Map<String, Integer> col = new java.util.HashMap<>();
+        Set<Long> touchedBuildings = new HashSet<>();
+
+        try (ImportContext ctx = openContext(dryRun, catalog)) {
+            new ImportPipeline<RegistryRecord>(importParseExecutor, PARSE_IN_FLIGHT).run(
+                    file,
+                    sheet,
+                    r -> {
+                        if (!col.isEmpty()) return ImportPipeline.Route.PARSE;
+                        if (r.rowNum() > 50) return ImportPipeline.Route.STOP;
+                        if (isRegistryHeader(r)) col.putAll(headerIndex(r));
+                        return ImportPipeline.Route.SKIP;
+                    },
+                    r -> isMeshHeader(col) ? parseMeshRow(r, col) : parseTemplateRow(r),
+                    rec -> {
+                        if (rec instanceof MeshRecord m) importMeshRow(ctx, m, centralRegistry, touchedBuildings);
+                        else importTemplateRow(ctx, (TemplateRecord) rec, touchedBuildings);
+                        ctx.rowDone();
+                        return true;
+                    },
+                    report);
+            if (col.isEmpty()) {
+                throw new RuntimeException("Не смог найти строку заголовков в реестре. Ожидал либо шаблон, либо реестр МЭШ.");
+            }
+            ctx.collectDiff(report.getDiff());
+            ctx.commit();
+        }
 
-                    processed++;
-                }
-            } catch (Exception ex) {
-                errors.add("Строка " + (rIdx + 1) + ": " + ex.getMessage());
-                if (errors.size() >= 30) break;
+        if (!dryRun) reconLines.buildingsChanged(touchedBuildings);
+    }
+
+    // Строка реестра после разбора (разбираются параллельно в ImportPipeline, пишутся по порядку).
+    // Отпечатки считаются там же, при записи строка с прежним отпечатком пропускается (см. Fingerprint)
+    private sealed interface RegistryRecord permits MeshRecord, TemplateRecord {}
+
+    private record MeshRecord(String title, String subjectName, int grade, String authors, String publisher,
+                              String fpu, int total, int available, List<Integer> years,
+                              String fingerprint) implements RegistryRecord {}
+
+    // titleFingerprint — только описание книги: одна книга встречается в строках разных корпусов
+    private record TemplateRecord(String buildingCode, int grade, String subjectName, String title, String authors,
+                                  Integer year, String isbn, int total, int available, int inUse,
+                                  String titleFingerprint, String fingerprint) implements RegistryRecord {}
+
+    private boolean isMeshHeader(java.util.Map<String, Integer> col) {
+        return col.containsKey("название") && col.containsKey("предмет") && col.containsKey("параллель");
+    }
+
+    // МЭШ. null — пустая строка
+    private MeshRecord parseMeshRow(SheetRow r, java.util.Map<String, Integer> col) {
+        String title = getStringByHeader(r, col, "название");
+        if (title.isBlank()) return null; // пустая строка
+
+        String subjectName = getStringByHeader(r, col, "предмет");
+        int grade = CellParsing.parseGrade(getStringByHeader(r, col, "параллель"));
+        String authors = getStringByHeader(r, col, "автор(-ы)");
+        String publisher = getStringByHeader(r, col, "издательство");
+        String fpu = getStringByHeader(r, col, "№ фпу");
+        int total = CellParsing.parseInt(getStringByHeader(r, col, "общее кол-во экземпляров"));
+        int available = CellParsing.parseInt(getStringByHeader(r, col, "кол-во свободных экземпляров"));
+        List<Integer> years = CellParsing.parseYearCandidates(getStringByHeader(r, col, "год издания"));
+        return new MeshRecord(title, subjectName, grade, authors, publisher, fpu, total, available, years,
+                Fingerprint.of(title, subjectName, grade, authors, publisher, fpu, total, available, years));
+    }
+
+    // Наш шаблон (фиксированные позиции)
+    private TemplateRecord parseTemplateRow(SheetRow r) {
+        String buildingCode = CellParsing.normalizeBuildingCode(r.cell(0));
+        int grade = CellParsing.parseInt(r.cell(1));
+        String subjectName = r.cell(2);
+        String title = r.cell(3);
+        String authors = r.cell(4);
+        Integer year = CellParsing.parseIntNullable(r.cell(5));
+        String isbn = r.cell(6);
+        int total = CellParsing.parseInt(r.cell(7));
+        int available = CellParsing.parseInt(r.cell(8));
+        int inUse = CellParsing.parseInt(r.cell(9));
+        String titleFingerprint = Fingerprint.of(title, authors, year);
+        return new TemplateRecord(buildingCode, grade, subjectName, title, authors, year, isbn, total, available, inUse,
+                titleFingerprint, Fingerprint.of(buildingCode, grade, subjectName, isbn, titleFingerprint, total, available, inUse));
+    }
+
+    private void importMeshRow(ImportContext ctx, MeshRecord m, Building targetRegistry, Set<Long> touchedBuildings) {
+        Subject subject = ctx.subject(m.subjectName());
+        List<Integer> years = m.years();
+
+        for (int i = 0; i < years.size(); i++) {
+            Integer year = years.get(i);
+            int totalPart = splitPart(m.total(), years.size(), i);
+            int availablePart = splitPart(m.available(), years.size(), i);
+            int inUsePart = Math.max(0, totalPart - availablePart);
+            // строка с несколькими годами даёт несколько книг, у каждой свой отпечаток
+            String fingerprint = years.size() == 1 ? m.fingerprint() : Fingerprint.of(m.fingerprint(), i);
+
+            BookTitle bt = findOrCreateMeshTitle(ctx, m.fpu(), m.grade(), subject, m.title(), m.authors(), m.publisher(), year, years.size() > 1, fingerprint);
+
+            Stock st = ctx.stock(targetRegistry.getId(), bt.getId());
+            if (st != null && ctx.unchanged(st, fingerprint)) continue;
+            if (st == null) {
+                st = new Stock();
+                st.setBuilding(targetRegistry);
+                st.setBookTitle(bt);
+                st.setTotal(0);
+                st.setAvailable(0);
+                st.setInUse(0);
             }
+            st.setTotal(totalPart);
+            st.setAvailable(availablePart);
+            st.setInUse(inUsePart);
+            st.setMeshTotal(totalPart);
+            st.setImportFingerprint(fingerprint);
+            ctx.save(st);
+            touchedBuildings.add(targetRegistry.getId());
+        }
+    }
+
+    private void importTemplateRow(ImportContext ctx, TemplateRecord t, Set<Long> touchedBuildings) {
+        Building b = ctx.building(t.buildingCode());
+
+        Subject subject = ctx.subject(t.subjectName());
+
+        BookTitle bt = t.isbn().isBlank() ? null : ctx.titleByIsbn(t.isbn(), t.grade(), subject.getId());
+
+        if (bt == null) {
+            bt = new BookTitle();
+            bt.setGrade(t.grade());
+            bt.setSubject(subject);
+            bt.setTitle(t.title());
+            bt.setAuthors(t.authors());
+            bt.setYear(t.year());
+            bt.setIsbn(t.isbn());
+            bt.setImportFingerprint(t.titleFingerprint());
+            bt = ctx.save(bt);
+        } else if (!ctx.unchanged(bt, t.titleFingerprint())) {
+            bt.setTitle(t.title());
+            bt.setAuthors(t.authors());
+            bt.setYear(t.year());
+            bt.setImportFingerprint(t.titleFingerprint());
+            ctx.save(bt);
         }
 
-        if (!errors.isEmpty()) {
-            throw new RuntimeException("Импорт завершён с ошибками. Обработано строк: " + processed + ". Примеры:\n" + String.join("\n", errors));
+        Stock st = ctx.stock(b.getId(), bt.getId());
+        if (st != null && ctx.unchanged(st, t.fingerprint())) return;
+        if (st == null) {
+            st = new Stock();
+            st.setBuilding(b);
+            st.setBookTitle(bt);
+            st.setTotal(0);
+            st.setAvailable(0);
+            st.setInUse(0);
         }
+        st.setTotal(t.total());
+        st.setAvailable(t.available());
+        st.setInUse(t.inUse());
+        st.setMeshTotal(t.total());
+        st.setImportFingerprint(t.fingerprint());
+        ctx.save(st);
+        touchedBuildings.add(b.getId());
     }
-}
 
-private int findHeaderRow(Sheet sh) {
     // Ищем либо наш шаблон (первая строка: buildingCode...), либо МЭШ (есть "Название", "Предмет", "Параллель")
-    for (int i = 0; i <= Math.min(50, sh.getLastRowNum()); i++) {
-        Row r = sh.getRow(i);
-        if (r == null) continue;
-        String c0 = cellString(r,0).toLowerCase();
-        if (c0.equals("buildingcode") || c0.contains("код корпуса")) return i;
+    private boolean isRegistryHeader(SheetRow r) {
+        String c0 = r.cell(0).toLowerCase();
+        if (c0.equals("buildingcode") || c0.contains("код корпуса")) return true;
 
         // МЭШ: строка с заголовками на русском
         boolean hasName = false, hasSubject = false, hasGrade = false;
         for (int c = 0; c < 30; c++) {
-            String v = cellString(r,c).toLowerCase();
+            String v = r.cell(c).toLowerCase();
             if (v.equals("название")) hasName = true;
             if (v.equals("предмет")) hasSubject = true;
             if (v.equals("параллель")) hasGrade = true;
         }
-        if (hasName && hasSubject && hasGrade) return i;
-    }
-    return -1;
-}
-
-private String getStringByHeader(Row r, java.util.Map<String,Integer> col, String headerRu) {
-    Integer idx = col.get(headerRu.toLowerCase());
-    if (idx == null) return "";
-    return cellString(r, idx);
-}
-
-private String getStringByAnyHeader(Row r, java.util.Map<String,Integer> col, String... headers) {
-    for (String h : headers) {
-        Integer idx = col.get(h.toLowerCase());
-        if (idx != null) return cellString(r, idx);
+        return hasName && hasSubject && hasGrade;
     }
-    return "";
-}
 
-private int findLibrarianHeaderRow(Sheet sh) {
-    for (int i = 0; i <= Math.min(30, sh.getLastRowNum()); i++) {
-        Row r = sh.getRow(i);
-        if (r == null) continue;
+    private boolean isLibrarianHeader(SheetRow r) {
         boolean hasTitle = false;
         boolean hasSubject = false;
         for (int c = 0; c < 20; c++) {
-            String v = cellString(r, c).toLowerCase();
+            String v = r.cell(c).toLowerCase();
             if (v.equals("название") || v.equals("title")) hasTitle = true;
             if (v.equals("предмет") || v.equals("subject")) hasSubject = true;
         }
-        if (hasTitle && hasSubject) return i;
+        return hasTitle && hasSubject;
     }
-    return -1;
-}
-
-private String cellString(Row r, int idx) {
-    Cell c = r.getCell(idx);
-    if (c == null) return "";
-    if (c.getCellType() == CellType.NUMERIC) {
-        double d = c.getNumericCellValue();
-        long l = (long) d;
-        if (Math.abs(d - l) < 1e-9) return String.valueOf(l);
-        return String.valueOf(d);
-    }
-    if (c.getCellType() == CellType.BOOLEAN) return String.valueOf(c.getBooleanCellValue());
-    c.setCellType(CellType.STRING);
-    return c.getStringCellValue().trim();
-}
-
-private int parseGrade(String raw) {
-    if (raw == null) return 0;
-    String s = raw.trim();
-    if (s.isBlank()) return 0;
-    // берём первое число в строке
-    java.util.regex.Matcher m = java.util.regex.Pattern.compile("(\\d{1,2})").matcher(s);
-    if (m.find()) return Integer.parseInt(m.group(1));
-    return 0;
-}
-
-private int parseInt(String raw) {
-    if (raw == null) return 0;
-    String s = normalizeNumber(raw);
-    if (s.isBlank()) return 0;
-    return (int) Double.parseDouble(s);
-}
-
-private Integer parseIntNullable(String raw) {
-    if (raw == null) return null;
-    String s = normalizeNumber(raw);
-    if (s.isBlank()) return null;
-    return (int) Double.parseDouble(s);
-}
-
-private String normalizeNumber(String raw) {
-    if (raw == null) return "";
-    return raw
-            .replace('\u00A0', ' ')
-            .replace(" ", "")
-            .replace(",", ".")
-            .trim();
-}
 
-private String normalizeNumber(String raw) {
-    if (raw == null) return "";
-    return raw
-            .replace('\u00A0', ' ')
-            .replace(" ", "")
-            .replace(",", ".")
-            .trim();
-}
-
-
-private BookTitle findOrCreateMeshTitle(String fpu, int grade, Subject subject, String title, String authors, String publisher, Integer year, boolean splitByYears) {
-    String externalKey = fpu == null ? null : fpu.trim();
-    String effectiveKey = externalKey;
-    if (splitByYears && externalKey != null && !externalKey.isBlank() && year != null) {
-        effectiveKey = externalKey + "#" + year;
-    }
-    BookTitle bt = null;
-    if (effectiveKey != null && !effectiveKey.isBlank()) {
-        bt = bookTitles.findByExternalKeyAndGradeAndSubject_Id(effectiveKey, grade, subject.getId()).orElse(null);
-    }
-    if (bt == null) {
-        bt = new BookTitle();
-        bt.setExternalKey(effectiveKey);
-        bt.setGrade(grade);
-        bt.setSubject(subject);
-        bt.setTitle(title);
-        bt.setAuthors(authors);
-        bt.setPublisher(publisher);
-        bt.setYear(year);
-        bt.setIsbn(null);
-        return bookTitles.save(bt);
+    private java.util.Map<String, Integer> headerIndex(SheetRow header) {
+        java.util.Map<String, Integer> col = new java.util.HashMap<>();
+        for (int c = 0; c < header.size(); c++) {
+            String h = header.cell(c);
+            if (!h.isBlank()) col.put(h.trim().toLowerCase(), c);
+        }
+        return col;
     }
-    bt.setTitle(title);
-    bt.setAuthors(authors);
-    bt.setPublisher(publisher);
-    bt.setYear(year);
-    return bookTitles.save(bt);
-}
 
-private List<Integer> parseYearCandidates(String raw) {
-    if (raw == null || raw.isBlank()) {
-        List<Integer> single = new ArrayList<>();
-        single.add(null);
-        return single;
-    }
-    List<Integer> years = new ArrayList<>();
-    java.util.regex.Matcher m = java.util.regex.Pattern.compile("(19\\d{2}|20\\d{2})").matcher(raw);
-    while (m.find()) {
-        int y = Integer.parseInt(m.group(1));
-        if (!years.contains(y)) years.add(y);
-    }
-    if (years.isEmpty()) {
-        List<Integer> single = new ArrayList<>();
-        single.add(parseIntNullable(raw));
-        return single;
+    private String getStringByHeader(SheetRow r, java.util.Map<String,Integer> col, String headerRu) {
+        Integer idx = col.get(headerRu);
+        if (idx == null) return "";
+        return r.cell(idx);
     }
-    return years;
-}
-
-private int splitPart(int total, int parts, int idx) {
-    if (parts <= 1) return total;
-    int base = total / parts;
-    int remainder = Math.floorMod(total, parts);
-    return idx < remainder ? base + 1 : base;
-}
-
 
-private BookTitle findOrCreateMeshTitle(String fpu, int grade, Subject subject, String title, String authors, String publisher, Integer year, boolean splitByYears) {
-    String externalKey = fpu == null ? null : fpu.trim();
-    String effectiveKey = externalKey;
-    if (splitByYears && externalKey != null && !externalKey.isBlank() && year != null) {
-        effectiveKey = externalKey + "#" + year;
-    }
-    BookTitle bt = null;
-    if (effectiveKey != null && !effectiveKey.isBlank()) {
-        bt = bookTitles.findByExternalKeyAndGradeAndSubject_Id(effectiveKey, grade, subject.getId()).orElse(null);
-    }
-    if (bt == null) {
-        bt = new BookTitle();
-        bt.setExternalKey(effectiveKey);
-        bt.setGrade(grade);
-        bt.setSubject(subject);
-        bt.setTitle(title);
-        bt.setAuthors(authors);
-        bt.setPublisher(publisher);
-        bt.setYear(year);
-        bt.setIsbn(null);
-        return bookTitles.save(bt);
+    private String getStringByAnyHeader(SheetRow r, java.util.Map<String,Integer> col, String... headers) {
+        for (String h : headers) {
+            Integer idx = col.get(h);
+            if (idx != null) return r.cell(idx);
+        }
+        return "";
     }
-    bt.setTitle(title);
-    bt.setAuthors(authors);
-    bt.setPublisher(publisher);
-    bt.setYear(year);
-    return bookTitles.save(bt);
-}
 
-private List<Integer> parseYearCandidates(String raw) {
-    if (raw == null || raw.isBlank()) {
-        List<Integer> single = new ArrayList<>();
-        single.add(null);
-        return single;
-    }
-    List<Integer> years = new ArrayList<>();
-    java.util.regex.Matcher m = java.util.regex.Pattern.compile("(19\\d{2}|20\\d{2})").matcher(raw);
-    while (m.find()) {
-        int y = Integer.parseInt(m.group(1));
-        if (!years.contains(y)) years.add(y);
-    }
-    if (years.isEmpty()) {
-        List<Integer> single = new ArrayList<>();
-        single.add(parseIntNullable(raw));
-        return single;
+    public static Path copyToTemp(MultipartFile file) throws IOException {
+        Path tmp = Files.createTempFile("import-", ".tmp");
+        try (InputStream in = file.getInputStream()) {
+            Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return tmp;
     }
-    return years;
-}
-
-private int splitPart(int total, int parts, int idx) {
-    if (parts <= 1) return total;
-    int base = total / parts;
-    int remainder = Math.floorMod(total, parts);
-    return idx < remainder ? base + 1 : base;
-}
 
 
-
-
-private BookTitle findOrCreateMeshTitle(String fpu, int grade, Subject subject, String title, String authors, String publisher, Integer year, boolean splitByYears) {
+private BookTitle findOrCreateMeshTitle(ImportContext ctx, String fpu, int grade, Subject subject, String title, String authors, String publisher, Integer year, boolean splitByYears, String fingerprint) {
     String externalKey = fpu == null ? null : fpu.trim();
     String effectiveKey = externalKey;
     if (splitByYears && externalKey != null && !externalKey.isBlank() && year != null) {
@@ -503,7 +431,7 @@ private BookTitle findOrCreateMeshTitle(String fpu, int grade, Subject subject,
     }
     BookTitle bt = null;
     if (effectiveKey != null && !effectiveKey.isBlank()) {
-        bt = bookTitles.findByExternalKeyAndGradeAndSubject_Id(effectiveKey, grade, subject.getId()).orElse(null);
+        bt = ctx.titleByExternalKey(effectiveKey, grade, subject.getId());
     }
     if (bt == null) {
         bt = new BookTitle();
@@ -515,33 +443,16 @@ private BookTitle findOrCreateMeshTitle(String fpu, int grade, Subject subject,
         bt.setPublisher(publisher);
         bt.setYear(year);
         bt.setIsbn(null);
-        return bookTitles.save(bt);
+        bt.setImportFingerprint(fingerprint);
+        return ctx.save(bt);
     }
+    if (ctx.unchanged(bt, fingerprint)) return bt;
     bt.setTitle(title);
     bt.setAuthors(authors);
     bt.setPublisher(publisher);
     bt.setYear(year);
-    return bookTitles.save(bt);
-}
-
-private List<Integer> parseYearCandidates(String raw) {
-    if (raw == null || raw.isBlank()) {
-        List<Integer> single = new ArrayList<>();
-        single.add(null);
-        return single;
-    }
-    List<Integer> years = new ArrayList<>();
-    java.util.regex.Matcher m = java.util.regex.Pattern.compile("(19\\d{2}|20\\d{2})").matcher(raw);
-    while (m.find()) {
-        int y = Integer.parseInt(m.group(1));
-        if (!years.contains(y)) years.add(y);
-    }
-    if (years.isEmpty()) {
-        List<Integer> single = new ArrayList<>();
-        single.add(parseIntNullable(raw));
-        return single;
-    }
-    return years;
+    bt.setImportFingerprint(fingerprint);
+    return ctx.save(bt);
 }
 
 private int splitPart(int total, int parts, int idx) {
@@ -552,59 +463,51 @@ private int splitPart(int total, int parts, int idx) {
 }
 
 
-
-
     // Учебный план: grade | subject | isbn | perStudent
     
 // Старый реестр (закупки / суфф-шаблон):
 // Параллель: | Наименование учебника: | Предмет: | Издательство: | ФП: | ... | Количество учебников:
 // Лист1, заголовки обычно в первой строке.
-public void importLegacyRegistry(MultipartFile file, String buildingCode) throws Exception {
-    try (Workbook wb = WorkbookFactory.create(file.getInputStream())) {
-        Sheet sh = wb.getSheetAt(0);
-
-        int headerRowIdx = -1;
-        for (int i = 0; i <= Math.min(30, sh.getLastRowNum()); i++) {
-            Row r = sh.getRow(i);
-            if (r == null) continue;
-            String c0 = cellString(r,0).toLowerCase();
-            String c1 = cellString(r,1).toLowerCase();
-            if (c0.contains("паралл") && c1.contains("наимен")) { headerRowIdx = i; break; }
-        }
-        if (headerRowIdx < 0) throw new RuntimeException("Не найден заголовок старого реестра (ожидал: 'Параллель:' и 'Наименование учебника:')");
+// Файл читается потоково (SheetReader: .xls — событийный HSSF, .xlsx — SAX), в памяти только текущая строка
+public ImportReport importLegacyRegistry(MultipartFile file, String buildingCode, boolean dryRun) throws Exception {
+    Path tmp = copyToTemp(file);
+    try {
+        return importLegacyRegistry(tmp, buildingCode, dryRun);
+    } finally {
+        Files.deleteIfExists(tmp);
+    }
+}
 
-        Building selectedBuilding = buildings.findByCode(normalizeBuildingCode(buildingCode))
-                .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
-        Building suufRegistry = buildings.findByCode("0").orElse(selectedBuilding);
+private ImportReport importLegacyRegistry(Path file, String buildingCode, boolean dryRun) throws Exception {
+    int headerRowIdx = legacyHeaderRow(file);
+    if (headerRowIdx < 0) throw new RuntimeException("Не найден заголовок старого реестра (ожидал: 'Параллель:' и 'Наименование учебника:')");
+
+    Building selectedBuilding = buildings.findByCode(CellParsing.normalizeBuildingCode(buildingCode))
+            .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
+    Building suufRegistry = buildings.findByCode("0").orElse(selectedBuilding);
 
-        java.util.List<String> errors = new java.util.ArrayList<>();
-        int processed = 0;
+    ImportReport report = new ImportReport();
 
-        for (int rIdx = headerRowIdx + 1; rIdx <= sh.getLastRowNum(); rIdx++) {
-            Row r = sh.getRow(rIdx);
-            if (r == null) continue;
+    try (ImportContext ctx = openContext(dryRun)) {
+        SheetReader.read(file, r -> {
+            if (r.rowNum() <= headerRowIdx) return true;
             try {
-                String gradeRaw = cellString(r,0);
-                String title = cellString(r,1);
-                String subjectName = cellString(r,2);
-                String publisher = cellString(r,3);
-                String qtyRaw = cellString(r,7);
+                String gradeRaw = r.cell(0);
+                String title = r.cell(1);
+                String subjectName = r.cell(2);
+                String publisher = r.cell(3);
+                String qtyRaw = r.cell(7);
 
-                if ((title == null || title.isBlank()) && (gradeRaw == null || gradeRaw.isBlank())) continue;
+                if (title.isBlank() && gradeRaw.isBlank()) return true;
 
-                int grade = parseGrade(gradeRaw);
-                int total = parseInt(qtyRaw);
+                int grade = CellParsing.parseGrade(gradeRaw);
+                int total = CellParsing.parseInt(qtyRaw);
                 int available = total; // для старого реестра обычно это закупка/наличие, свободные считаем = total
                 int inUse = 0;
 
-                Subject subject = subjects.findByNameIgnoreCase(subjectName)
-                        .orElseGet(() -> {
-                            Subject s = new Subject();
-                            s.setName(subjectName);
-                            return subjects.save(s);
-                        });
+                Subject subject = ctx.subject(subjectName);
 
-                BookTitle bt = bookTitles.findByTitleIgnoreCaseAndGradeAndSubject_Id(title, grade, subject.getId()).orElse(null);
+                BookTitle bt = ctx.titleByName(title, grade, subject.getId());
                 if (bt == null) {
                     bt = new BookTitle();
                     bt.setGrade(grade);
@@ -615,15 +518,15 @@ public void importLegacyRegistry(MultipartFile file, String buildingCode) throws
                     bt.setYear(null);
                     bt.setIsbn(null);
                     bt.setExternalKey(null);
-                    bt = bookTitles.save(bt);
+                    bt = ctx.save(bt);
                 } else {
                     // обновим издательство/название при необходимости
                     bt.setPublisher(publisher);
                     bt.setTitle(title);
-                    bookTitles.save(bt);
+                    ctx.save(bt);
                 }
 
-                Stock st = stocks.findOne(suufRegistry.getId(), bt.getId()).orElse(null);
+                Stock st = ctx.stock(suufRegistry.getId(), bt.getId());
                 if (st == null) {
                     st = new Stock();
                     st.setBuilding(suufRegistry);
@@ -636,38 +539,38 @@ public void importLegacyRegistry(MultipartFile file, String buildingCode) throws
                 st.setAvailable(available);
                 st.setInUse(inUse);
                 st.setSuufTotal(total);
-                stocks.save(st);
+                ctx.save(st);
 
-                processed++;
+                ctx.rowDone();
+                report.rowProcessed();
+                return true;
             } catch (Exception ex) {
-                errors.add("Строка " + (rIdx + 1) + ": " + ex.getMessage());
-                if (errors.size() >= 30) break;
+                return report.rowFailed(r.rowNum(), ex);
             }
-        }
+        });
 
-        if (!errors.isEmpty()) {
-            throw new RuntimeException("Импорт старого реестра завершён с ошибками. Обработано строк: " + processed + ". Примеры:\n" + String.join("\n", errors));
-        }
+        ctx.collectDiff(report.getDiff());
+        ctx.commit();
     }
-}
 
-public byte[] convertLegacyToMesh(MultipartFile file, String buildingCode) throws Exception {
-    try (Workbook src = WorkbookFactory.create(file.getInputStream()); XSSFWorkbook outWb = new XSSFWorkbook()) {
-        Sheet sh = src.getSheetAt(0);
-
-        int headerRowIdx = -1;
-        for (int i = 0; i <= Math.min(30, sh.getLastRowNum()); i++) {
-            Row r = sh.getRow(i);
-            if (r == null) continue;
-            String c0 = cellString(r,0).toLowerCase();
-            String c1 = cellString(r,1).toLowerCase();
-            if (c0.contains("паралл") && c1.contains("наимен")) { headerRowIdx = i; break; }
-        }
-        if (headerRowIdx < 0) throw new RuntimeException("Не найден заголовок старого реестра для конвертации");
+    if (dryRun) return report;
 
-        Building building = buildings.findByCode(normalizeBuildingCode(buildingCode))
-                .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
+    reconLines.buildingsChanged(List.of(suufRegistry.getId()));
+
+    report.throwIfErrors("Импорт старого реестра");
+    return report;
+}
+
+// Конвертер СУУФ → МЭШ. Файл и корпус проверяются сразу (ошибку ещё можно показать на странице),
+// а сама книга пишется потом, при отдаче ответа: исходный файл читается потоково (SheetReader),
+// строки уходят в SXSSF-книгу ExcelExportUtil.streamXlsx — ни одна из книг целиком в памяти не лежит
+public ExcelExportUtil.WorkbookWriter convertLegacyToMesh(Path file, String buildingCode) throws Exception {
+    Building building = buildings.findByCode(CellParsing.normalizeBuildingCode(buildingCode))
+            .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
+    int headerRowIdx = legacyHeaderRow(file);
+    if (headerRowIdx < 0) throw new RuntimeException("Не найден заголовок старого реестра для конвертации");
 
+    return outWb -> {
         var outSh = outWb.createSheet("Реестр МЭШ (из СУУФ)");
         String[] cols = {
                 "Название", "Предмет", "Параллель", "Автор(-ы)", "Издательство", "Год издания", "№ ФПУ",
@@ -679,136 +582,286 @@ public byte[] convertLegacyToMesh(MultipartFile file, String buildingCode) throw
             outSh.setColumnWidth(i, Math.max(12, cols[i].length() + 2) * 256);
         }
 
-        int outR = 1;
-        for (int rIdx = headerRowIdx + 1; rIdx <= sh.getLastRowNum(); rIdx++) {
-            Row r = sh.getRow(rIdx);
-            if (r == null) continue;
+        int[] outR = {1};
+        SheetReader.read(file, r -> {
+            if (r.rowNum() <= headerRowIdx) return true;
 
-            String gradeRaw = cellString(r,0);
-            String title = cellString(r,1);
-            String subject = cellString(r,2);
-            String publisher = cellString(r,3);
-            String qtyRaw = cellString(r,7);
+            String gradeRaw = r.cell(0);
+            String title = r.cell(1);
+            String subject = r.cell(2);
+            String publisher = r.cell(3);
+            String qtyRaw = r.cell(7);
 
-            if ((title == null || title.isBlank()) && (gradeRaw == null || gradeRaw.isBlank())) continue;
+            if (title.isBlank() && gradeRaw.isBlank()) return true;
 
-            int grade = parseGrade(gradeRaw);
-            int total = parseInt(qtyRaw);
-            Row o = outSh.createRow(outR++);
-            o.createCell(0).setCellValue(title == null ? "" : title);
-            o.createCell(1).setCellValue(subject == null ? "" : subject);
+            int grade = CellParsing.parseGrade(gradeRaw);
+            int total = CellParsing.parseInt(qtyRaw);
+            Row o = outSh.createRow(outR[0]++);
+            o.createCell(0).setCellValue(title);
+            o.createCell(1).setCellValue(subject);
             o.createCell(2).setCellValue(grade);
             o.createCell(3).setCellValue("");
-            o.createCell(4).setCellValue(publisher == null ? "" : publisher);
+            o.createCell(4).setCellValue(publisher);
             o.createCell(5).setCellValue("");
             o.createCell(6).setCellValue("");
             o.createCell(7).setCellValue(total);
             o.createCell(8).setCellValue(total);
             o.createCell(9).setCellValue(building.getCode());
             o.createCell(10).setCellValue("СУУФ");
-        }
+            return true;
+        });
+    };
+}
 
-        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
-        outWb.write(out);
-        return out.toByteArray();
-    }
+// Строка заголовка старого реестра ("Параллель:" | "Наименование учебника:") среди первых 30, иначе -1
+private int legacyHeaderRow(Path file) throws Exception {
+    int[] header = {-1};
+    SheetReader.read(file, r -> {
+        if (r.rowNum() > 30) return false;
+        String c0 = r.cell(0).toLowerCase();
+        String c1 = r.cell(1).toLowerCase();
+        if (c0.contains("паралл") && c1.contains("наимен")) {
+            header[0] = r.rowNum();
+            return false;
+        }
+        return true;
+    });
+    return header[0];
 }
 
-public void importCurriculum(MultipartFile file) throws Exception {
-        try (Workbook wb = WorkbookFactory.create(file.getInputStream())) {
-            Sheet sh = wb.getSheetAt(0);
-            for (Row r : sh) {
-                if (r.getRowNum() == 0) continue;
-
-                int grade = getInt(r,0);
-                String subjectName = getString(r,1);
-                String isbn = getString(r,2);
-                int perStudent = getInt(r,3);
-
-                Subject subject = subjects.findByNameIgnoreCase(subjectName)
-                        .orElseGet(() -> {
-                            Subject s = new Subject();
-                            s.setName(subjectName);
-                            return subjects.save(s);
-                        });
-
-                // Находим книгу по isbn + grade + subject
-                BookTitle bt = bookTitles.findByIsbnAndGradeAndSubject_Id(isbn, grade, subject.getId())
-                        .orElseThrow(() -> new RuntimeException("Book not found for curriculum: isbn=" + isbn));
-
-                CurriculumItem item = new CurriculumItem();
-                item.setGrade(grade);
-                item.setSubject(subject);
-                item.setBookTitle(bt);
-                item.setPerStudent(perStudent);
-                curriculum.save(item);
+// Учебный план: grade | subject | isbn | perStudent.
+// Книги ищутся по справочникам ImportContext, строки сливаются в curriculum_item одним пакетом upsert
+// по уникальному ключу (grade, subject_id, book_title_id), поэтому повторная загрузка того же файла
+// ничего не меняет. Строки с ошибками пропускаются, в отчёт попадают все
+public ImportReport importCurriculum(MultipartFile file, boolean dryRun) throws Exception {
+    ImportReport report = new ImportReport();
+    Path tmp = copyToTemp(file);
+    try (ImportContext ctx = openContext(dryRun)) {
+        java.util.Map<String, Integer> existing = new java.util.HashMap<>();
+        for (var ci : curriculum.curriculumKeys()) {
+            existing.put(curriculumKey(ci.getGrade(), ci.getSubjectId(), ci.getBookTitleId()), ci.getPerStudent());
+        }
+
+        // ключ → {grade, subjectId, bookTitleId, perStudent}; при повторе в файле берём последнюю строку
+        java.util.Map<String, Object[]> items = new java.util.LinkedHashMap<>();
+        SheetReader.read(tmp, r -> {
+            if (r.rowNum() == 0 || r.isBlank()) return true;
+            try {
+                int grade = CellParsing.parseInt(r.cell(0));
+                String subjectName = r.cell(1);
+                String isbn = r.cell(2);
+                int perStudent = CellParsing.parseInt(r.cell(3));
+
+                Subject subject = ctx.subject(subjectName);
+                BookTitle bt = ctx.titleByIsbn(isbn, grade, subject.getId());
+                if (bt == null) throw new RuntimeException("Book not found for curriculum: isbn=" + isbn);
+
+                items.put(curriculumKey(grade, subject.getId(), bt.getId()), new Object[]{grade, subject.getId(), bt.getId(), perStudent});
+                report.rowProcessed();
+            } catch (Exception ex) {
+                report.rowFailed(r.rowNum(), ex);
             }
+            return true;
+        });
+
+        for (var e : items.entrySet()) {
+            Integer was = existing.get(e.getKey());
+            report.getDiff().record(ImportDiff.CURRICULUM, was == null, was != null && was != (int) e.getValue()[3]);
         }
+        if (!dryRun) {
+            jdbc.batchUpdate("""
+                    insert into curriculum_item (grade, subject_id, book_title_id, per_student)
+                    values (?, ?, ?, ?)
+                    on conflict (grade, subject_id, book_title_id) do update
+                        set per_student = excluded.per_student
+                        where curriculum_item.per_student <> excluded.per_student
+                    """, new ArrayList<>(items.values()));
+        }
+        ctx.commit();
+    } finally {
+        Files.deleteIfExists(tmp);
     }
 
+    if (dryRun) return report;
+
+    // новые позиции плана появляются во всех корпусах
+    reconLines.curriculumChanged();
+    report.throwIfErrors("Импорт учебного плана");
+    return report;
+}
+
+private static String curriculumKey(int grade, Long subjectId, Long bookTitleId) {
+    return grade + "|" + subjectId + "|" + bookTitleId;
+}
+
     // Численность (поддерживаем 2 формата):
 // Формат A (наш шаблон): buildingCode | grade | letter | students
 // Формат B (как у вас): "Номер и буква класса" | students | "корпус"
 // Примеры: "10-А" 29 "сп1"
-public void importClasses(MultipartFile file) throws Exception {
-    try (Workbook wb = WorkbookFactory.create(file.getInputStream())) {
-        Sheet sh = wb.getSheetAt(0);
-        for (Row r : sh) {
-            if (r.getRowNum() == 0) continue;
-
-            String a0 = getString(r, 0);
-            String b1 = getString(r, 1);
-            String c2 = getString(r, 2);
-
-            // Пропускаем пустые строки
-            if ((a0 == null || a0.isBlank()) && (b1 == null || b1.isBlank()) && (c2 == null || c2.isBlank())) {
-                continue;
-            }
+// Файл заменяет состав классов корпусов, которые в нём есть (см. applyEnrollment)
+public ImportReport importClasses(MultipartFile file, String username, boolean dryRun) throws Exception {
+    ImportReport report = new ImportReport();
+    java.util.Map<String, ClassRow> rows = readEnrollment(file, report);
+
+    java.util.Map<String, ClassState> existing = new java.util.HashMap<>();
+    jdbc.query("select id, building_id, grade, letter, students from class_group", rs -> {
+        ClassState st = new ClassState(rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getString(4), rs.getInt(5));
+        existing.put(classKey(st.buildingId(), st.grade(), st.letter()), st);
+    });
+
+    Set<Long> touchedBuildings = applyEnrollment(EnrollmentChangeLog.Scope.CURRENT, 0, rows, existing, username, dryRun, report);
+    if (dryRun) return report;
+
+    reconLines.buildingsChanged(touchedBuildings);
+    report.throwIfErrors("Импорт численности");
+    return report;
+}
+
+// Строка файла численности после разбора (формат A или B) и класс в БД до импорта
+private record ClassRow(Building building, int grade, String letter, int students) {}
+
+private record ClassState(long id, long buildingId, int grade, String letter, int students) {}
+
+private static String classKey(long buildingId, int grade, String letter) {
+    return buildingId + "|" + grade + "|" + (letter == null ? "" : letter.toUpperCase(Locale.ROOT));
+}
+
+// Весь файл в память: ключ корпус|параллель|буква → строка (при повторе берём последнюю)
+private java.util.Map<String, ClassRow> readEnrollment(MultipartFile file, ImportReport report) throws Exception {
+    java.util.Map<String, Building> buildingsByCode = new java.util.HashMap<>();
+    for (Building b : buildings.findAll()) buildingsByCode.put(b.getCode(), b);
 
-            // Определяем формат:
-            // Если первый столбец похож на класс (например 10-А), а третий похож на корпус (сп1/1/корпус 1),
-            // то это формат B.
-            boolean looksLikeClass = a0 != null && a0.matches("\\s*\\d{1,2}\\s*[-–]?\\s*[А-ЯA-Zа-яa-z]\\s*");
-            boolean looksLikeBuilding = c2 != null && !c2.isBlank();
-
-            if (looksLikeClass && looksLikeBuilding) {
-                // Формат B: className | students | building
-                ParsedClass pc = parseClassName(a0);
-                int students = parseIntSafe(b1);
-                String buildingCode = normalizeBuildingCode(c2);
-
-                Building building = buildings.findByCode(buildingCode)
-                        .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
-
-                ClassGroup cg = classes.findByBuilding_IdAndGradeAndLetterIgnoreCase(building.getId(), pc.grade, pc.letter)
-                        .orElseGet(ClassGroup::new);
-                cg.setBuilding(building);
-                cg.setGrade(pc.grade);
-                cg.setLetter(pc.letter);
-                cg.setStudents(students);
-                classes.save(cg);
-            } else {
-                // Формат A: buildingCode | grade | letter | students
-                String buildingCodeRaw = getString(r, 0);
-                String buildingCode = normalizeBuildingCode(buildingCodeRaw);
-                int grade = getInt(r, 1);
-                String letter = getString(r, 2);
-                int students = getInt(r, 3);
-
-                Building building = buildings.findByCode(buildingCode)
-                        .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
-
-                String normalizedLetter = letter == null ? "" : letter.trim().toUpperCase(Locale.ROOT);
-                ClassGroup cg = classes.findByBuilding_IdAndGradeAndLetterIgnoreCase(building.getId(), grade, normalizedLetter)
-                        .orElseGet(ClassGroup::new);
-                cg.setBuilding(building);
-                cg.setGrade(grade);
-                cg.setLetter(normalizedLetter);
-                cg.setStudents(students);
-                classes.save(cg);
+    java.util.Map<String, ClassRow> rows = new java.util.LinkedHashMap<>();
+    Path tmp = copyToTemp(file);
+    try {
+        SheetReader.read(tmp, r -> {
+            if (r.rowNum() == 0 || r.isBlank()) return true;
+            try {
+                ClassRow row = parseEnrollmentRow(r, buildingsByCode);
+                rows.put(classKey(row.building().getId(), row.grade(), row.letter()), row);
+                report.rowProcessed();
+            } catch (Exception ex) {
+                report.rowFailed(r.rowNum(), ex);
             }
+            return true;
+        });
+    } finally {
+        Files.deleteIfExists(tmp);
+    }
+    return rows;
+}
+
+private ClassRow parseEnrollmentRow(SheetRow r, java.util.Map<String, Building> buildingsByCode) {
+    String a0 = r.cell(0);
+    String c2 = r.cell(2);
+
+    // Определяем формат:
+    // Если первый столбец похож на класс (например 10-А), а третий похож на корпус (сп1/1/корпус 1),
+    // то это формат B.
+    boolean looksLikeClass = CellParsing.looksLikeClassName(a0);
+    boolean looksLikeBuilding = !c2.isBlank();
+
+    String buildingCode;
+    int grade;
+    String letter;
+    int students;
+    if (looksLikeClass && looksLikeBuilding) {
+        // Формат B: className | students | building
+        ParsedClass pc = parseClassName(a0);
+        buildingCode = CellParsing.normalizeBuildingCode(c2);
+        grade = pc.grade;
+        letter = pc.letter;
+        students = CellParsing.parseInt(r.cell(1));
+    } else {
+        // Формат A: buildingCode | grade | letter | students
+        buildingCode = CellParsing.normalizeBuildingCode(a0);
+        grade = CellParsing.parseInt(r.cell(1));
+        letter = c2.trim().toUpperCase(Locale.ROOT);
+        students = CellParsing.parseInt(r.cell(3));
+    }
+
+    Building building = buildingsByCode.get(buildingCode);
+    if (building == null) throw new RuntimeException("Unknown building code: " + buildingCode);
+    return new ClassRow(building, grade, letter, students);
+}
+
+// Сравнение файла с классами в БД в памяти, затем одна короткая транзакция с пакетами вставок,
+// обновлений и удалений и пакет записей журнала (Action.BULK). Классы корпусов (и года, для FUTURE),
+// которые есть в файле, но без строки для класса, удаляются — только если в файле не было ошибок,
+// иначе непрочитанная строка превратилась бы в удаление. Возвращает корпуса, где что-то поменялось
+private Set<Long> applyEnrollment(EnrollmentChangeLog.Scope scope, int academicYear,
+                                  java.util.Map<String, ClassRow> rows, java.util.Map<String, ClassState> existing,
+                                  String username, boolean dryRun, ImportReport report) {
+    boolean future = scope == EnrollmentChangeLog.Scope.FUTURE;
+    java.util.Map<Long, String> codes = new java.util.HashMap<>();
+    for (Building b : buildings.findAll()) codes.put(b.getId(), b.getCode());
+
+    List<Object[]> inserts = new ArrayList<>();
+    List<Object[]> updates = new ArrayList<>();
+    List<Object[]> deletes = new ArrayList<>();
+    // building_id, grade, letter, old, new
+    List<Object[]> changes = new ArrayList<>();
+    Set<Long> fileBuildings = new HashSet<>();
+    Set<Long> touchedBuildings = new HashSet<>();
+
+    for (var e : rows.entrySet()) {
+        ClassRow row = e.getValue();
+        Long buildingId = row.building().getId();
+        fileBuildings.add(buildingId);
+        ClassState was = existing.get(e.getKey());
+        String section = ImportDiff.building(row.building().getCode());
+        report.getDiff().record(section, was == null, was != null && was.students() != row.students());
+        if (was == null) {
+            inserts.add(future
+                    ? new Object[]{buildingId, academicYear, row.grade(), row.letter(), row.students()}
+                    : new Object[]{buildingId, row.grade(), row.letter(), row.students()});
+            changes.add(new Object[]{buildingId, row.grade(), row.letter(), 0, row.students()});
+        } else if (was.students() != row.students()) {
+            updates.add(new Object[]{row.students(), was.id()});
+            changes.add(new Object[]{buildingId, was.grade(), was.letter(), was.students(), row.students()});
+        } else {
+            continue;
+        }
+        touchedBuildings.add(buildingId);
+    }
+
+    if (report.getErrors().isEmpty()) {
+        for (var e : existing.entrySet()) {
+            ClassState was = e.getValue();
+            if (!fileBuildings.contains(was.buildingId()) || rows.containsKey(e.getKey())) continue;
+            report.getDiff().deleted(ImportDiff.building(codes.get(was.buildingId())));
+            deletes.add(new Object[]{was.id()});
+            changes.add(new Object[]{was.buildingId(), was.grade(), was.letter(), was.students(), 0});
+            touchedBuildings.add(was.buildingId());
         }
     }
+
+    if (dryRun || changes.isEmpty()) return touchedBuildings;
+
+    Long actorId = users.findByUsername(username).map(User::getId).orElse(null);
+    java.sql.Timestamp now = java.sql.Timestamp.from(java.time.Instant.now());
+    List<Object[]> log = new ArrayList<>(changes.size());
+    for (Object[] c : changes) {
+        log.add(new Object[]{now, actorId, c[0], scope.name(), academicYear, c[1], c[2], c[3], c[4],
+                EnrollmentChangeLog.Action.BULK.name(), "Импорт файла"});
+    }
+
+    String table = future ? "future_class_group" : "class_group";
+    new org.springframework.transaction.support.TransactionTemplate(txManager).executeWithoutResult(tx -> {
+        if (!deletes.isEmpty()) jdbc.batchUpdate("delete from " + table + " where id = ?", deletes);
+        if (!updates.isEmpty()) jdbc.batchUpdate("update " + table + " set students = ? where id = ?", updates);
+        if (!inserts.isEmpty()) {
+            jdbc.batchUpdate(future
+                    ? "insert into future_class_group (building_id, academic_year, grade, letter, students) values (?, ?, ?, ?, ?)"
+                    : "insert into class_group (building_id, grade, letter, students) values (?, ?, ?, ?)", inserts);
+        }
+        jdbc.batchUpdate("""
+                insert into enrollment_change_log (ts, actor_id, building_id, scope, academic_year, grade, letter,
+                                                   old_students, new_students, action, note)
+                values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+                """, log);
+    });
+    return touchedBuildings;
 }
 
 private static class ParsedClass {
@@ -821,7 +874,7 @@ private static class ParsedClass {
 private ParsedClass parseClassName(String raw) {
     String s = raw == null ? "" : raw.trim();
     s = s.replace("–", "-");
-    s = s.replaceAll("\\s+", "");
+    s = CellParsing.removeWhitespace(s);
     String[] parts = s.split("-");
     String left;
     String right;
@@ -840,130 +893,27 @@ private ParsedClass parseClassName(String raw) {
     return new ParsedClass(grade, letter);
 }
 
-private int parseIntSafe(String raw) {
-    if (raw == null) return 0;
-    String s = raw.trim();
-    if (s.isBlank()) return 0;
-    // иногда в заголовках бывает число/дата — тут мы уже на r>0, так что норм
-    return (int) Double.parseDouble(s.replace(",", "."));
-}
-
-// Принимаем "сп1"/"sp1"/"корпус 1"/"1" и приводим к "1"
-private String normalizeBuildingCode(String raw) {
-    if (raw == null) return "";
-    String s = raw.trim().toLowerCase();
-    s = s.replace("корпус", "").trim();
-    // русское "сп" или латиница "sp"
-    s = s.replace("сп", "sp");
-    if (s.startsWith("sp")) {
-        s = s.substring(2).trim();
-    }
-    // если осталось число
-    String digits = s.replaceAll("[^0-9]", "");
-    if (!digits.isBlank()) return digits;
-    // иначе оставим как есть (на случай, если вы заведёте коды именно "сп1")
-    return raw.trim();
-}
-
-
-    private String getString(Row r, int i) {
-        Cell c = r.getCell(i);
-        if (c == null) return "";
-        c.setCellType(CellType.STRING);
-        return c.getStringCellValue().trim();
-    }
-    private int getInt(Row r, int i) {
-        Cell c = r.getCell(i);
-        if (c == null) return 0;
-        if (c.getCellType() == CellType.NUMERIC) return (int)c.getNumericCellValue();
-        c.setCellType(CellType.STRING);
-        String s = c.getStringCellValue().trim();
-        if (s.isBlank()) return 0;
-        return Integer.parseInt(s);
-    }
-    private Integer getIntNullable(Row r, int i) {
-        Cell c = r.getCell(i);
-        if (c == null) return null;
-        if (c.getCellType() == CellType.NUMERIC) return (int)c.getNumericCellValue();
-        c.setCellType(CellType.STRING);
-        String s = c.getStringCellValue().trim();
-        if (s.isBlank()) return null;
-        return Integer.parseInt(s);
-    }
-
 // Будущий контингент (на следующий учебный год)
 // Поддерживаем те же 2 формата, что и для численности (importClasses):
 // Формат A: buildingCode | grade | letter | students
 // Формат B: "Номер и буква класса" | students | корпус (например 10-А | 29 | сп1)
 // academicYear — учебный год (например 2026 означает 2026/2027)
-public void importFutureClasses(MultipartFile file, int academicYear) throws Exception {
-    try (Workbook wb = WorkbookFactory.create(file.getInputStream())) {
-        Sheet sh = wb.getSheetAt(0);
-        java.util.List<String> errors = new java.util.ArrayList<>();
-        int processed = 0;
-
-        for (Row r : sh) {
-            if (r.getRowNum() == 0) continue;
-
-            String a0 = getString(r, 0);
-            String b1 = getString(r, 1);
-            String c2 = getString(r, 2);
-
-            if ((a0 == null || a0.isBlank()) && (b1 == null || b1.isBlank()) && (c2 == null || c2.isBlank())) {
-                continue;
-            }
-
-            boolean looksLikeClass = a0 != null && a0.matches("\\s*\\d{1,2}\\s*[-–]?\\s*[А-ЯA-Zа-яa-z]\\s*");
-            boolean looksLikeBuilding = c2 != null && !c2.isBlank();
-
-            try {
-                if (looksLikeClass && looksLikeBuilding) {
-                    ParsedClass pc = parseClassName(a0);
-                    int students = parseIntSafe(b1);
-                    String buildingCode = normalizeBuildingCode(c2);
-
-                    Building building = buildings.findByCode(buildingCode)
-                            .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
-
-                    FutureClassGroup cg = futureClasses.findByBuilding_IdAndAcademicYearAndGradeAndLetterIgnoreCase(building.getId(), academicYear, pc.grade, pc.letter)
-                            .orElseGet(FutureClassGroup::new);
-                    cg.setBuilding(building);
-                    cg.setAcademicYear(academicYear);
-                    cg.setGrade(pc.grade);
-                    cg.setLetter(pc.letter);
-                    cg.setStudents(students);
-                    futureClasses.save(cg);
-                } else {
-                    String buildingCodeRaw = getString(r,0);
-                    String buildingCode = normalizeBuildingCode(buildingCodeRaw);
-                    int grade = getInt(r,1);
-                    String letter = getString(r,2);
-                    int students = getInt(r,3);
-
-                    Building building = buildings.findByCode(buildingCode)
-                            .orElseThrow(() -> new RuntimeException("Unknown building code: " + buildingCode));
-
-                    String normalizedLetter = letter == null ? "" : letter.trim().toUpperCase(Locale.ROOT);
-                    FutureClassGroup cg = futureClasses.findByBuilding_IdAndAcademicYearAndGradeAndLetterIgnoreCase(building.getId(), academicYear, grade, normalizedLetter)
-                            .orElseGet(FutureClassGroup::new);
-                    cg.setBuilding(building);
-                    cg.setAcademicYear(academicYear);
-                    cg.setGrade(grade);
-                    cg.setLetter(normalizedLetter);
-                    cg.setStudents(students);
-                    futureClasses.save(cg);
-                }
-                processed++;
-            } catch (Exception ex) {
-                errors.add("Строка " + (r.getRowNum() + 1) + ": " + ex.getMessage());
-                if (errors.size() >= 30) break;
-            }
-        }
-
-        if (!errors.isEmpty()) {
-            throw new RuntimeException("Импорт будущего контингента завершён с ошибками. Обработано строк: " + processed + ". Примеры:\n" + String.join("\n", errors));
-        }
-    }
+public ImportReport importFutureClasses(MultipartFile file, int academicYear, String username, boolean dryRun) throws Exception {
+    ImportReport report = new ImportReport();
+    java.util.Map<String, ClassRow> rows = readEnrollment(file, report);
+
+    java.util.Map<String, ClassState> existing = new java.util.HashMap<>();
+    jdbc.query("select id, building_id, grade, letter, students from future_class_group where academic_year = ?", rs -> {
+        ClassState st = new ClassState(rs.getLong(1), rs.getLong(2), rs.getInt(3), rs.getString(4), rs.getInt(5));
+        existing.put(classKey(st.buildingId(), st.grade(), st.letter()), st);
+    }, academicYear);
+
+    applyEnrollment(EnrollmentChangeLog.Scope.FUTURE, academicYear, rows, existing, username, dryRun, report);
+    if (dryRun) return report;
+
+    dataVersion.bump();
+    report.throwIfErrors("Импорт будущего контингента");
+    return report;
 }
 
 }
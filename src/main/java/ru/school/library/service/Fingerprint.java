@@ -0,0 +1,29 @@
+package ru.school.library.service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Отпечаток содержимого строки импорта: SHA-1 от значений через разделитель, 40 hex-символов.
+// Считается в потоках разбора ImportPipeline, поэтому MessageDigest на каждый вызов
+final class Fingerprint {
+    private static final char SEP = '\u001F';
+
+    private Fingerprint() {
+    }
+
+    static String of(Object... parts) {
+        StringBuilder sb = new StringBuilder();
+        for (Object p : parts) {
+            if (p != null) sb.append(p);
+            sb.append(SEP);
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package ru.school.library.service;
+
+import jakarta.persistence.EntityManager;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.DefaultTransactionDefinition;
+import ru.school.library.entity.BookTitle;
+import ru.school.library.entity.Building;
+import ru.school.library.entity.Stock;
+import ru.school.library.entity.Subject;
+import ru.school.library.repo.BookTitleRepository;
+import ru.school.library.repo.BuildingRepository;
+import ru.school.library.repo.StockRepository;
+import ru.school.library.repo.SubjectRepository;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Контекст импорта одного файла: одна транзакция, FlushMode.COMMIT и справочники в памяти.
+// Предметы, корпуса и книги грузятся один раз при открытии, остатки — один раз на корпус при первом
+// обращении, поэтому строка файла разрешается по хеш-таблицам без запросов к БД. Созданные по ходу
+// сущности сразу попадают в те же таблицы. Hibernate копит вставки/обновления и отправляет их пачками
+// (hibernate.jdbc.batch_size) раз в FLUSH_EVERY строк; сессию не очищаем — справочники держат её сущности.
+//
+// Пробный прогон (dryRun): транзакция только на чтение, ничего не сохраняется и не сбрасывается,
+// новые сущности получают временные отрицательные id. Изменения в памяти пропадают при откате.
+// В обоих режимах collectDiff считает вставки/обновления/без изменений по снимкам, снятым при поиске.
+//
+// В пакетном импорте (catalog != null) несколько контекстов работают параллельно: предметы и книги с ключом
+// они заводят и обновляют через общий BatchCatalog, а в свою сессию берут уже зафиксированные строки.
+class ImportContext implements AutoCloseable {
+    static final int FLUSH_EVERY = 500;
+
+    private final PlatformTransactionManager txManager;
+    private final EntityManager em;
+    private final SubjectRepository subjects;
+    private final BookTitleRepository bookTitles;
+    private final StockRepository stocks;
+    private final boolean dryRun;
+    private final BatchCatalog catalog;
+    private final TransactionStatus tx;
+
+    private final Map<String, Building> buildingsByCode = new HashMap<>();
+    private final Map<String, Subject> subjectsByName = new HashMap<>();
+    private final Map<String, BookTitle> titles = new HashMap<>();
+    private final Map<Long, Map<Long, Stock>> stocksByBuilding = new HashMap<>();
+
+    // Состояние до импорта (снимается при поиске) и сущности, переданные в save
+    private final Map<Object, Object> before = new IdentityHashMap<>();
+    private final Map<BookTitle, Boolean> savedTitles = new IdentityHashMap<>();
+    private final Map<Stock, Boolean> savedStocks = new IdentityHashMap<>();
+    // книги без ключа, заведённые этим контекстом мимо catalog: пока не зафиксированы, обновлять их только здесь
+    private final Map<BookTitle, Boolean> localTitles = new IdentityHashMap<>();
+    private long fakeId;
+    private int rows;
+    private boolean done;
+
+    ImportContext(PlatformTransactionManager txManager, EntityManager em, BuildingRepository buildings,
+                  SubjectRepository subjects, BookTitleRepository bookTitles, StockRepository stocks,
+                  boolean dryRun, BatchCatalog catalog) {
+        this.txManager = txManager;
+        this.em = em;
+        this.subjects = subjects;
+        this.bookTitles = bookTitles;
+        this.stocks = stocks;
+        this.dryRun = dryRun;
+        this.catalog = catalog;
+        DefaultTransactionDefinition def = new DefaultTransactionDefinition();
+        def.setReadOnly(dryRun);
+        this.tx = txManager.getTransaction(def);
+        // до конца конструктора close() не вызовут: транзакцию, сорвавшуюся на справочниках, откатываем сами,
+        // иначе она останется привязанной к потоку пула и достанется следующему импорту
+        try {
+            em.unwrap(Session.class).setHibernateFlushMode(dryRun ? FlushMode.MANUAL : FlushMode.COMMIT);
+
+            for (Building b : buildings.findAll()) buildingsByCode.put(b.getCode(), b);
+            for (Subject s : subjects.findAll()) subjectsByName.put(s.getName().toLowerCase(Locale.ROOT), s);
+            for (BookTitle bt : bookTitles.findAllWithSubject()) index(bt);
+        } catch (RuntimeException e) {
+            txManager.rollback(tx);
+            throw e;
+        }
+    }
+
+    boolean isDryRun() {
+        return dryRun;
+    }
+
+    Building building(String code) {
+        Building b = buildingsByCode.get(code);
+        if (b == null) throw new RuntimeException("Unknown building code: " + code);
+        return b;
+    }
+
+    Subject subject(String name) {
+        return subjectsByName.computeIfAbsent(name.toLowerCase(Locale.ROOT), k -> {
+            Subject s = new Subject();
+            s.setName(name);
+            if (dryRun) {
+                s.setId(--fakeId);
+                return s;
+            }
+            if (catalog != null) return em.find(Subject.class, catalog.subject(name));
+            return subjects.save(s);
+        });
+    }
+
+    BookTitle titleByIsbn(String isbn, int grade, Long subjectId) {
+        return remember(titles.get(titleKey("isbn", isbn, grade, subjectId)));
+    }
+
+    BookTitle titleByExternalKey(String externalKey, int grade, Long subjectId) {
+        return remember(titles.get(titleKey("ext", externalKey, grade, subjectId)));
+    }
+
+    BookTitle titleByName(String title, int grade, Long subjectId) {
+        return remember(titles.get(titleKey("title", title.toLowerCase(Locale.ROOT), grade, subjectId)));
+    }
+
+    Stock stock(Long buildingId, Long bookTitleId) {
+        Stock st = stocksOf(buildingId).get(bookTitleId);
+        if (st != null && !savedStocks.containsKey(st)) before.putIfAbsent(st, StockState.of(st));
+        return st;
+    }
+
+    // id из последовательности выдаётся сразу, сам INSERT уйдёт при сбросе пачки
+    BookTitle save(BookTitle bt) {
+        BookTitle saved = bt;
+        if (dryRun) {
+            if (bt.getId() == null) bt.setId(--fakeId);
+        } else if (catalog != null && !localTitles.containsKey(bt)) {
+            saved = saveShared(bt);
+        } else {
+            saved = bookTitles.save(bt);
+        }
+        savedTitles.put(saved, Boolean.TRUE);
+        index(saved);
+        return saved;
+    }
+
+    Stock save(Stock st) {
+        Stock saved = st;
+        if (!dryRun) saved = stocks.save(st);
+        else if (st.getId() == null) st.setId(--fakeId);
+        savedStocks.put(saved, Boolean.TRUE);
+        stocksOf(saved.getBuilding().getId()).put(saved.getBookTitle().getId(), saved);
+        return saved;
+    }
+
+    // Строка файла та же, что при прошлом импорте: сущность не трогаем, в итоге она «без изменений»
+    boolean unchanged(BookTitle bt, String fingerprint) {
+        if (!fingerprint.equals(bt.getImportFingerprint())) return false;
+        savedTitles.put(bt, Boolean.TRUE);
+        return true;
+    }
+
+    boolean unchanged(Stock st, String fingerprint) {
+        if (!fingerprint.equals(st.getImportFingerprint())) return false;
+        savedStocks.put(st, Boolean.TRUE);
+        return true;
+    }
+
+    void rowDone() {
+        if (++rows % FLUSH_EVERY == 0 && !dryRun) em.flush();
+    }
+
+    // Итог по сущностям, прошедшим через save: новая, изменённая или без изменений
+    void collectDiff(ImportDiff diff) {
+        for (BookTitle bt : savedTitles.keySet()) {
+            Object was = before.get(bt);
+            diff.record(ImportDiff.TITLES, was == null, was != null && !was.equals(TitleState.of(bt)));
+        }
+        for (Stock st : savedStocks.keySet()) {
+            Object was = before.get(st);
+            diff.record(ImportDiff.building(st.getBuilding().getCode()), was == null, was != null && !was.equals(StockState.of(st)));
+        }
+    }
+
+    // Пробный прогон ничего не фиксирует
+    void commit() {
+        done = true;
+        if (dryRun) txManager.rollback(tx);
+        else txManager.commit(tx);
+    }
+
+    @Override
+    public void close() {
+        if (!done) {
+            done = true;
+            txManager.rollback(tx);
+        }
+    }
+
+    // Книгу, которую в этом пакете уже обновил другой корпус, перечитываем: его значения зафиксированы,
+    // а наши изменения не должны уйти в UPDATE при фиксации транзакции корпуса
+    private BookTitle saveShared(BookTitle bt) {
+        if (bt.getId() != null) {
+            catalog.update(bt, this);
+            em.refresh(bt);
+            return bt;
+        }
+        String key = BatchCatalog.key(bt);
+        if (key == null) {
+            BookTitle saved = bookTitles.save(bt);
+            localTitles.put(saved, Boolean.TRUE);
+            return saved;
+        }
+        BatchCatalog.Title created = catalog.create(key, bt, this);
+        BookTitle saved = em.find(BookTitle.class, created.id());
+        if (!created.created()) before.putIfAbsent(saved, TitleState.of(saved));
+        return saved;
+    }
+
+    private BookTitle remember(BookTitle bt) {
+        if (bt != null && !savedTitles.containsKey(bt)) before.putIfAbsent(bt, TitleState.of(bt));
+        return bt;
+    }
+
+    private Map<Long, Stock> stocksOf(Long buildingId) {
+        return stocksByBuilding.computeIfAbsent(buildingId, id -> {
+            Map<Long, Stock> m = new HashMap<>();
+            for (Stock st : stocks.findForImport(id)) m.put(st.getBookTitle().getId(), st);
+            return m;
+        });
+    }
+
+    // Из нескольких книг с одним ключом берётся первая по id — как min(id) в CSV-импорте
+    private void index(BookTitle bt) {
+        Long subjectId = bt.getSubject().getId();
+        if (bt.getIsbn() != null) {
+            titles.putIfAbsent(titleKey("isbn", bt.getIsbn(), bt.getGrade(), subjectId), bt);
+        }
+        if (bt.getExternalKey() != null) {
+            titles.putIfAbsent(titleKey("ext", bt.getExternalKey(), bt.getGrade(), subjectId), bt);
+        }
+        if (bt.getTitle() != null) {
+            titles.putIfAbsent(titleKey("title", bt.getTitle().toLowerCase(Locale.ROOT), bt.getGrade(), subjectId), bt);
+        }
+    }
+
+    private static String titleKey(String kind, String value, int grade, Long subjectId) {
+        return kind + "|" + value + "|" + grade + "|" + subjectId;
+    }
+
+    private record TitleState(String title, String authors, String publisher, Integer year, String isbn, String externalKey) {
+        static TitleState of(BookTitle bt) {
+            return new TitleState(bt.getTitle(), bt.getAuthors(), bt.getPublisher(), bt.getYear(), bt.getIsbn(), bt.getExternalKey());
+        }
+    }
+
+    private record StockState(int total, int available, int inUse, int meshTotal, int suufTotal) {
+        static StockState of(Stock st) {
+            return new StockState(st.getTotal(), st.getAvailable(), st.getInUse(), st.getMeshTotal(), st.getSuufTotal());
+        }
+    }
+}
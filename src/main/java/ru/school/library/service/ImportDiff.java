@@ -0,0 +1,77 @@
+package ru.school.library.service;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Что импорт меняет (или изменил бы при пробном прогоне): по разделам — корпусам, справочнику книг, плану
+public class ImportDiff implements Serializable {
+    public static final String TITLES = "Справочник книг";
+    public static final String CURRICULUM = "Учебный план";
+
+    private final Map<String, Counts> sections = new TreeMap<>();
+
+    public static String building(String code) {
+        return "Корпус " + code;
+    }
+
+    void record(String section, boolean inserted, boolean changed) {
+        Counts c = sections.computeIfAbsent(section, k -> new Counts());
+        if (inserted) c.inserts++;
+        else if (changed) c.updates++;
+        else c.unchanged++;
+    }
+
+    void deleted(String section) {
+        sections.computeIfAbsent(section, k -> new Counts()).deletes++;
+    }
+
+    // Итог целиком, когда строки обрабатываются не по одной, а запросом (см. CsvRegistryImportService)
+    void add(String section, int inserted, int changed, int unchanged) {
+        Counts c = sections.computeIfAbsent(section, k -> new Counts());
+        c.inserts += inserted;
+        c.updates += changed;
+        c.unchanged += unchanged;
+    }
+
+    void addAll(ImportDiff other) {
+        other.sections.forEach((section, o) -> {
+            Counts c = sections.computeIfAbsent(section, k -> new Counts());
+            c.inserts += o.inserts;
+            c.updates += o.updates;
+            c.unchanged += o.unchanged;
+            c.deletes += o.deletes;
+        });
+    }
+
+    public Map<String, Counts> getSections() {
+        return sections;
+    }
+
+    public boolean isEmpty() {
+        return sections.isEmpty();
+    }
+
+    public static class Counts implements Serializable {
+        private int inserts;
+        private int updates;
+        private int unchanged;
+        private int deletes;
+
+        public int getInserts() {
+            return inserts;
+        }
+
+        public int getUpdates() {
+            return updates;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public int getDeletes() {
+            return deletes;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.school.library.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import ru.school.library.dto.ImportJobStatus;
+import ru.school.library.entity.ImportJob;
+import ru.school.library.repo.ImportJobRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Импорт реестра в фоне: запрос только сохраняет файл и ставит задачу, импорт идёт на importExecutor.
+// Состояние задачи хранится в import_job, живой прогресс выполняющихся задач — в running
+@Service
+public class ImportJobService {
+    private static final int MESSAGE_LIMIT = 10000;
+
+    private final ImportJobRepository jobs;
+    private final ExcelImportService excel;
+    private final ExecutorService importExecutor;
+    private final Map<Long, ImportReport> running = new ConcurrentHashMap<>();
+
+    public ImportJobService(ImportJobRepository jobs,
+                            ExcelImportService excel,
+                            @Qualifier("importExecutor") ExecutorService importExecutor) {
+        this.jobs = jobs;
+        this.excel = excel;
+        this.importExecutor = importExecutor;
+    }
+
+    // Задачи, которые шли в момент остановки приложения, уже не завершатся
+    @PostConstruct
+    public void failInterrupted() {
+        for (ImportJob job : jobs.findByStatusIn(List.of(ImportJob.Status.QUEUED, ImportJob.Status.RUNNING))) {
+            job.setStatus(ImportJob.Status.FAILED);
+            job.setFinishedAt(LocalDateTime.now());
+            job.setMessage("Прервано перезапуском приложения");
+            jobs.save(job);
+        }
+    }
+
+    public Long submitRegistry(MultipartFile file, String buildingCode, String username) throws IOException {
+        Path tmp = ExcelImportService.copyToTemp(file);
+
+        ImportJob job = new ImportJob();
+        job.setKind(ImportJob.Kind.REGISTRY);
+        job.setBuildingCode(buildingCode);
+        job.setFileName(file.getOriginalFilename());
+        job.setCreatedBy(username);
+        job.setCreatedAt(LocalDateTime.now());
+        job = jobs.save(job);
+
+        Long jobId = job.getId();
+        try {
+            importExecutor.execute(() -> run(jobId, tmp, buildingCode));
+        } catch (RejectedExecutionException e) {
+            Files.deleteIfExists(tmp);
+            job.setStatus(ImportJob.Status.FAILED);
+            job.setFinishedAt(LocalDateTime.now());
+            job.setMessage("Очередь импорта заполнена, попробуйте позже");
+            jobs.save(job);
+            throw new RuntimeException("Очередь импорта заполнена, попробуйте позже");
+        }
+        return jobId;
+    }
+
+    public Optional<ImportJobStatus> status(Long id) {
+        return jobs.findById(id).map(job -> {
+            ImportReport live = running.get(id);
+            int processed = live != null ? live.getProcessed() : job.getProcessed();
+            List<String> errors = live != null
+                    ? live.getErrors()
+                    : job.getStatus() == ImportJob.Status.DONE_WITH_ERRORS ? List.of(job.getMessage().split("\n")) : List.of();
+            return new ImportJobStatus(
+                    job.getId(),
+                    job.getStatus().name(),
+                    job.getBuildingCode(),
+                    job.getFileName(),
+                    processed,
+                    errors,
+                    rowsPerSecond(processed, job.getStartedAt(), job.getFinishedAt()),
+                    job.getStartedAt(),
+                    job.getFinishedAt(),
+                    job.getStatus() == ImportJob.Status.FAILED ? job.getMessage() : null
+            );
+        });
+    }
+
+    public List<ImportJob> recent() {
+        return jobs.findTop20ByOrderByCreatedAtDesc();
+    }
+
+    private void run(Long jobId, Path file, String buildingCode) {
+        ImportJob job = jobs.findById(jobId).orElseThrow();
+        ImportReport report = new ImportReport();
+        job.setStatus(ImportJob.Status.RUNNING);
+        job.setStartedAt(LocalDateTime.now());
+        job = jobs.save(job);
+        running.put(jobId, report);
+        try {
+            excel.importRegistry(file, buildingCode, false, report);
+            if (report.getErrors().isEmpty()) {
+                job.setStatus(ImportJob.Status.DONE);
+            } else {
+                job.setStatus(ImportJob.Status.DONE_WITH_ERRORS);
+                job.setMessage(limit(String.join("\n", report.getErrors())));
+            }
+        } catch (Exception e) {
+            job.setStatus(ImportJob.Status.FAILED);
+            job.setMessage(limit(e.getMessage() == null ? e.toString() : e.getMessage()));
+        } finally {
+            job.setProcessed(report.getProcessed());
+            job.setErrorCount(report.getErrors().size());
+            job.setFinishedAt(LocalDateTime.now());
+            jobs.save(job);
+            running.remove(jobId);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+                // временный файл уберёт ОС
+            }
+        }
+    }
+
+    private static double rowsPerSecond(int processed, LocalDateTime startedAt, LocalDateTime finishedAt) {
+        if (startedAt == null) return 0;
+        long ms = Duration.between(startedAt, finishedAt != null ? finishedAt : LocalDateTime.now()).toMillis();
+        return ms <= 0 ? 0 : processed * 1000.0 / ms;
+    }
+
+    private static String limit(String s) {
+        return s.length() <= MESSAGE_LIMIT ? s : s.substring(0, MESSAGE_LIMIT);
+    }
+}
@@ -0,0 +1,127 @@
+package ru.school.library.service;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Конвейер импорта: строки листа разбираются пачками по CHUNK на общем пуле importParseExecutor
+// (ExecutorConfig), а чтение и запись идут в потоке вызова, где открыта транзакция ImportContext.
+// Пачки пишутся в порядке подачи, поэтому порядок строк файла сохраняется без сортировки.
+// В работе не больше inFlight пачек: быстрый читатель ждёт медленного писателя, память ограничена.
+// Задачи пула только разбирают строки и никого не ждут, так что общий пул не может зависнуть,
+// сколько бы импортов ни шло одновременно; при переполнении очереди пачку разбирает поток вызова.
+final class ImportPipeline<T> {
+    static final int CHUNK = 256;
+
+    enum Route { SKIP, PARSE, STOP }
+
+    // Вызывается в потоке вызова по порядку строк: заголовки, пустые строки, конец данных
+    @FunctionalInterface
+    interface Gate {
+        Route route(SheetRow row);
+    }
+
+    // null — строку пропускаем
+    @FunctionalInterface
+    interface Parser<T> {
+        T parse(SheetRow row) throws Exception;
+    }
+
+    // false — строка пустая, в обработанные не считаем
+    @FunctionalInterface
+    interface Writer<T> {
+        boolean write(T record) throws Exception;
+    }
+
+    // Источник строк; для файла — SheetReader.read
+    @FunctionalInterface
+    interface Source {
+        void read(SheetReader.RowHandler handler) throws Exception;
+    }
+
+    private record Parsed<T>(int rowNum, T value, Exception error) {}
+
+    private final ExecutorService pool;
+    private final int inFlight;
+
+    ImportPipeline(ExecutorService pool, int inFlight) {
+        this.pool = pool;
+        this.inFlight = inFlight;
+    }
+
+    void run(Path file, int sheet, Gate gate, Parser<T> parser, Writer<T> writer, ImportReport report) throws Exception {
+        run(handler -> SheetReader.read(file, sheet, handler), gate, parser, writer, report);
+    }
+
+    void run(Source source, Gate gate, Parser<T> parser, Writer<T> writer, ImportReport report) throws Exception {
+        Deque<Future<List<Parsed<T>>>> chunks = new ArrayDeque<>();
+        List<SheetRow> chunk = new ArrayList<>(CHUNK);
+        // писатель выставляет, когда ошибок набралось достаточно: чтение прекращается
+        boolean[] stopped = {false};
+
+        try {
+            source.read(row -> {
+                Route route = gate.route(row);
+                if (route == Route.STOP) return false;
+                if (route == Route.PARSE) {
+                    chunk.add(row);
+                    if (chunk.size() == CHUNK) {
+                        chunks.add(submit(List.copyOf(chunk), parser));
+                        chunk.clear();
+                        if (chunks.size() > inFlight) stopped[0] = !write(chunks.poll(), writer, report);
+                    }
+                }
+                return !stopped[0];
+            });
+            if (!stopped[0] && !chunk.isEmpty()) chunks.add(submit(List.copyOf(chunk), parser));
+            while (!stopped[0] && !chunks.isEmpty()) {
+                stopped[0] = !write(chunks.poll(), writer, report);
+            }
+        } finally {
+            for (Future<?> f : chunks) f.cancel(true);
+        }
+    }
+
+    private Future<List<Parsed<T>>> submit(List<SheetRow> rows, Parser<T> parser) {
+        return pool.submit(() -> {
+            List<Parsed<T>> out = new ArrayList<>(rows.size());
+            for (SheetRow row : rows) {
+                try {
+                    out.add(new Parsed<>(row.rowNum(), parser.parse(row), null));
+                } catch (Exception e) {
+                    out.add(new Parsed<>(row.rowNum(), null, e));
+                }
+            }
+            return out;
+        });
+    }
+
+    // false — набран предел ошибок, дальше не пишем
+    private static <T> boolean write(Future<List<Parsed<T>>> chunk, Writer<T> writer, ImportReport report) throws Exception {
+        for (Parsed<T> p : await(chunk)) {
+            try {
+                if (p.error() != null) throw p.error();
+                if (p.value() != null && writer.write(p.value())) report.rowProcessed();
+            } catch (Exception e) {
+                if (!report.rowFailed(p.rowNum(), e)) return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> T await(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Импорт прерван", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : new RuntimeException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.school.library.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Итог построчного импорта: сколько строк принято и первые ошибки.
+// Пишет один поток импорта, читать можно из любого (прогресс фоновой задачи, см. ImportJobService)
+public class ImportReport {
+    static final int MAX_ERRORS = 30;
+
+    private volatile int processed;
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+    private final ImportDiff diff = new ImportDiff();
+
+    void rowProcessed() {
+        processed++;
+    }
+
+    void rowsProcessed(int count) {
+        processed += count;
+    }
+
+    // false — ошибок уже достаточно, дальше не читаем
+    boolean rowFailed(int rowNum, Exception ex) {
+        errors.add("Строка " + (rowNum + 1) + ": " + ex.getMessage());
+        return errors.size() < MAX_ERRORS;
+    }
+
+    // Пакетный импорт: отчёт части (корпуса) добавляется к общему, ошибки помечаются названием части
+    void add(String part, ImportReport other) {
+        processed += other.processed;
+        for (String e : other.errors) errors.add(part + ": " + e);
+        diff.addAll(other.diff);
+    }
+
+    // Часть не загрузилась целиком (файл не разобран, транзакция откатилась)
+    void partFailed(String part, Exception ex) {
+        errors.add(part + ": " + (ex.getMessage() == null ? ex.toString() : ex.getMessage()));
+    }
+
+    public int getProcessed() {
+        return processed;
+    }
+
+    public List<String> getErrors() {
+        return List.copyOf(errors);
+    }
+
+    public ImportDiff getDiff() {
+        return diff;
+    }
+
+    void throwIfErrors(String what) {
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(what + " завершён с ошибками. Обработано строк: " + processed + ". Примеры:\n" + String.join("\n", errors));
+        }
+    }
+}
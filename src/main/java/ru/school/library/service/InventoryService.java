@@ -1,87 +1,149 @@
 package ru.school.library.service;
 
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.TypedQuery;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
+import ru.school.library.dto.InventoryRow;
+import ru.school.library.dto.KeysetPage;
+import ru.school.library.dto.StockFilter;
 import ru.school.library.entity.Stock;
 import ru.school.library.repo.StockRepository;
 
-import java.util.Comparator;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Locale;
+import java.util.Map;
 
+// Строки, расчётные поля и порядок даёт один запрос (StockRepository.INVENTORY_ROW), без загрузки сущностей.
+//
+// Таблицы остатков и инвентаризации листаются по ключу (keyset): порядок — корпус, параллель, предмет, название
+// (без учёта регистра), id остатка, а следующая страница начинается строго после ключа последней строки.
+// Ключ хранится в самой stock (sort_*, см. Stock) и покрыт индексом, так что страница — чтение индекса с места
+// курсора, а не сортировка всего фонда: стоимость ответа не зависит от размера фонда и номера страницы.
+// Фильтры — условия того же запроса.
 @Service
 @RequiredArgsConstructor
 public class InventoryService {
+    public static final int PAGE_SIZE = 100;
 
-    private final StockRepository stocks;
+    // Порядок без учёта регистра, как в StockRepository.inventoryForBuilding; одни и те же столбцы
+    // в ключе, в ORDER BY и в индексах idx_stock_sort / idx_stock_building_sort
+    private static final String KEY = "(s.sortBuilding, s.sortGrade, s.sortSubject, s.sortTitle, s.id)";
+    private static final String ORDER = " order by s.sortBuilding, s.sortGrade, s.sortSubject, s.sortTitle, s.id";
+    private static final String ORDER_DESC = " order by s.sortBuilding desc, s.sortGrade desc, s.sortSubject desc,"
+            + " s.sortTitle desc, s.id desc";
+    private static final String PROBLEM = "s.total <> s.available + s.issuedToStudents + s.inCabinets";
+    private static final char SEP = '\u001F';
 
-    public record InventoryRow(
-            Long stockId,
-            String buildingName,
-            String subject,
-            Integer grade,
-            String title,
-            int total,
-            int available,
-            int issuedToStudents,
-            int inCabinets,
-            String note,
-            int expectedTotal,
-            int diff,
-            String status,
-            int accuracyPercent,
-            int suufTotal,
-            int meshTotal,
-            boolean approvedByOrder
-    ) {}
+    private final StockRepository stocks;
+    private final EntityManager em;
 
     public List<InventoryRow> forBuilding(Long buildingId) {
-        return stocks.findByBuilding_Id(buildingId).stream()
-                .map(this::map)
-                .sorted(Comparator.comparing((InventoryRow r) -> r.grade() == null ? 0 : r.grade())
-                        .thenComparing(InventoryRow::subject, Comparator.nullsLast(String::compareToIgnoreCase))
-                        .thenComparing(InventoryRow::title, Comparator.nullsLast(String::compareToIgnoreCase)))
-                .collect(Collectors.toList());
+        return stocks.inventoryForBuilding(buildingId);
+    }
+
+    public KeysetPage<InventoryRow> inventoryPage(StockFilter filter, String after) {
+        List<InventoryRow> rows = page(StockRepository.INVENTORY_ROW, InventoryRow.class, filter, after);
+        return page(rows, r -> key(r.buildingName(), r.grade(), r.subject(), r.title(), r.stockId()));
+    }
+
+    // Остатки корпуса сущностями: страница остатков редактирует их формами прямо в таблице
+    public KeysetPage<Stock> stockPage(StockFilter filter, String after) {
+        List<Stock> rows = page("""
+                select s from Stock s
+                    join fetch s.building b
+                    join fetch s.bookTitle bt
+                    join fetch bt.subject subj
+                """, Stock.class, filter, after);
+        return page(rows, s -> key(s.getBuilding().getName(), s.getBookTitle().getGrade(),
+                s.getBookTitle().getSubject().getName(), s.getBookTitle().getTitle(), s.getId()));
+    }
+
+    // Строки с расхождением по всем страницам фильтра
+    public long problems(StockFilter filter) {
+        Map<String, Object> params = new HashMap<>();
+        String where = where(filter, params) + " and " + PROBLEM;
+        TypedQuery<Long> q = em.createQuery("""
+                select count(s) from Stock s
+                    join s.building b
+                    join s.bookTitle bt
+                    join bt.subject subj
+                """ + where, Long.class);
+        params.forEach(q::setParameter);
+        return q.getSingleResult();
+    }
+
+    private <T> List<T> page(String select, Class<T> type, StockFilter filter, String after) {
+        Map<String, Object> params = new HashMap<>();
+        StringBuilder jpql = new StringBuilder(select).append(where(filter, params));
+        if (after != null && !after.isBlank()) {
+            String[] k = decode(after);
+            jpql.append(" and ").append(KEY).append(filter.desc() ? " < " : " > ")
+                    .append("(lower(:kBuilding), :kGrade, lower(:kSubject), lower(:kTitle), :kId)");
+            params.put("kBuilding", k[0]);
+            params.put("kGrade", Integer.valueOf(k[1]));
+            params.put("kSubject", k[2]);
+            params.put("kTitle", k[3]);
+            params.put("kId", Long.valueOf(k[4]));
+        }
+        jpql.append(filter.desc() ? ORDER_DESC : ORDER);
+
+        TypedQuery<T> q = em.createQuery(jpql.toString(), type);
+        params.forEach(q::setParameter);
+        // на одну строку больше: так видно, есть ли следующая страница
+        return q.setMaxResults(PAGE_SIZE + 1).getResultList();
+    }
+
+    private static <T> KeysetPage<T> page(List<T> rows, java.util.function.Function<T, String> key) {
+        if (rows.size() <= PAGE_SIZE) return new KeysetPage<>(rows, null);
+        List<T> page = rows.subList(0, PAGE_SIZE);
+        return new KeysetPage<>(page, key.apply(page.get(PAGE_SIZE - 1)));
+    }
+
+    private static String where(StockFilter f, Map<String, Object> params) {
+        StringBuilder w = new StringBuilder(" where 1 = 1");
+        if (f.buildingId() != null) {
+            w.append(" and s.building.id = :buildingId");
+            params.put("buildingId", f.buildingId());
+        }
+        if (f.grade() != null) {
+            w.append(" and s.sortGrade = :grade");
+            params.put("grade", f.grade());
+        }
+        if (f.subject() != null && !f.subject().isBlank()) {
+            w.append(" and s.sortSubject like :subject");
+            params.put("subject", like(f.subject()));
+        }
+        if (f.title() != null && !f.title().isBlank()) {
+            w.append(" and s.sortTitle like :title");
+            params.put("title", like(f.title()));
+        }
+        if (f.problemsOnly()) w.append(" and ").append(PROBLEM);
+        return w.toString();
+    }
+
+    private static String like(String s) {
+        return "%" + s.trim().toLowerCase(Locale.ROOT) + "%";
     }
 
-    public List<InventoryRow> all() {
-        return stocks.findAll().stream()
-                .map(this::map)
-                .sorted(Comparator.comparing(InventoryRow::buildingName, Comparator.nullsLast(String::compareToIgnoreCase))
-                        .thenComparing(r -> r.grade() == null ? 0 : r.grade())
-                        .thenComparing(InventoryRow::subject, Comparator.nullsLast(String::compareToIgnoreCase))
-                        .thenComparing(InventoryRow::title, Comparator.nullsLast(String::compareToIgnoreCase)))
-                .collect(Collectors.toList());
+    // Ключ строки для параметра after: значения через разделитель, в base64 для URL
+    static String key(String building, Integer grade, String subject, String title, Long id) {
+        String raw = (building == null ? "" : building) + SEP + grade + SEP + subject + SEP
+                + (title == null ? "" : title) + SEP + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
     }
 
-    private InventoryRow map(Stock s) {
-        String buildingName = s.getBuilding() != null ? s.getBuilding().getName() : "";
-        String subject = (s.getBookTitle()!=null && s.getBookTitle().getSubject()!=null) ? s.getBookTitle().getSubject().getName() : "";
-        Integer grade = s.getBookTitle()!=null ? s.getBookTitle().getGrade() : null;
-        String title = s.getBookTitle()!=null ? s.getBookTitle().getTitle() : "";
-        int expected = s.getAvailable() + s.getIssuedToStudents() + s.getInCabinets();
-        int diff = s.getTotal() - expected;
-        String status = diff == 0 ? "OK" : (diff > 0 ? "Излишек" : "Недостача");
-        int accuracyPercent = s.getTotal() <= 0 ? (expected <= 0 ? 100 : 0)
-                : (int) Math.max(0, Math.min(100, Math.round((expected * 100.0f) / s.getTotal())));
-        return new InventoryRow(
-                s.getId(),
-                buildingName,
-                subject,
-                grade,
-                title,
-                s.getTotal(),
-                s.getAvailable(),
-                s.getIssuedToStudents(),
-                s.getInCabinets(),
-                s.getNote(),
-                expected,
-                diff,
-                status,
-                accuracyPercent,
-                s.getSuufTotal(),
-                s.getMeshTotal(),
-                s.getBookTitle() != null && s.getBookTitle().isApprovedByOrder()
-        );
+    static String[] decode(String after) {
+        String[] k;
+        try {
+            k = new String(Base64.getUrlDecoder().decode(after), StandardCharsets.UTF_8).split(String.valueOf(SEP), -1);
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Неверная ссылка на страницу");
+        }
+        if (k.length != 5) throw new RuntimeException("Неверная ссылка на страницу");
+        return k;
     }
 }
@@ -16,8 +16,13 @@ public class PlanningService {
     private final CurriculumItemRepository curriculum;
     private final FutureClassGroupRepository futureClasses;
     private final StockRepository stocks;
+    private final ResultCache resultCache;
 
     public List<PlanRow> calcForBuilding(Long buildingId, int academicYear) {
+        return resultCache.get("plan", buildingId, academicYear, () -> calc(buildingId, academicYear));
+    }
+
+    private List<PlanRow> calc(Long buildingId, int academicYear) {
         buildings.findById(buildingId).orElseThrow();
 
         // будущий контингент
@@ -84,7 +89,7 @@ public class PlanningService {
                 .thenComparing(PlanRow::subject, Comparator.nullsLast(String::compareToIgnoreCase))
                 .thenComparing(PlanRow::title, Comparator.nullsLast(String::compareToIgnoreCase)));
 
-        return rows;
+        return List.copyOf(rows);
     }
 
     // DTO для экрана и Excel
@@ -0,0 +1,51 @@
+package ru.school.library.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import ru.school.library.repo.ReconLineRepository;
+
+import java.util.Collection;
+
+// Поддержка таблицы recon_line: вызывается после записи остатков, численности и учебного плана.
+// Каждый метод пересчитывает только затронутый срез, а не всю сверку, и сдвигает DataVersion для ResultCache
+@Service
+@RequiredArgsConstructor
+public class ReconLineService {
+
+    private final ReconLineRepository reconLines;
+    private final DataVersion dataVersion;
+
+    @Transactional
+    public void stockChanged(Long buildingId, Long bookTitleId) {
+        reconLines.refreshStock(buildingId, bookTitleId);
+        dataVersion.bump();
+    }
+
+    @Transactional
+    public void classesChanged(Long buildingId, int grade) {
+        reconLines.refreshGrade(buildingId, grade);
+        dataVersion.bump();
+    }
+
+    @Transactional
+    public void buildingsChanged(Collection<Long> buildingIds) {
+        for (Long id : buildingIds) {
+            reconLines.refreshBuilding(id);
+        }
+        dataVersion.bump();
+    }
+
+    @Transactional
+    public void curriculumChanged() {
+        reconLines.refreshAll();
+        dataVersion.bump();
+    }
+
+    @Transactional
+    public void initIfEmpty() {
+        if (reconLines.count() == 0) {
+            reconLines.refreshAll();
+        }
+    }
+}
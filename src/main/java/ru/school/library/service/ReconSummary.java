@@ -0,0 +1,78 @@
+package ru.school.library.service;
+
+import ru.school.library.dto.ReconRow;
+import ru.school.library.dto.SummaryRow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Итоги сверки за один проход по строкам: по предметам, по параллелям и по предмету×параллели.
+// Для каждого ключа держим int[] со счётчиками, промежуточные списки строк не строим
+public final class ReconSummary {
+    private static final int NEEDED = 0, AVAILABLE = 1, DEFICIT = 2, SUUF = 3, MESH = 4;
+
+    private final List<SummaryRow> bySubject;
+    private final List<SummaryRow> byGrade;
+    private final List<SummaryRow> bySubjectGrade;
+
+    private ReconSummary(List<SummaryRow> bySubject, List<SummaryRow> byGrade, List<SummaryRow> bySubjectGrade) {
+        this.bySubject = bySubject;
+        this.byGrade = byGrade;
+        this.bySubjectGrade = bySubjectGrade;
+    }
+
+    public static ReconSummary of(List<ReconRow> rows) {
+        Map<String, int[]> subject = new HashMap<>();
+        Map<String, int[]> grade = new HashMap<>();
+        Map<String, int[]> subjectGrade = new HashMap<>();
+        for (ReconRow r : rows) {
+            String g = String.valueOf(r.grade());
+            add(subject, r.subject(), r);
+            add(grade, g, r);
+            add(subjectGrade, r.subject() + " / " + g, r);
+        }
+        return new ReconSummary(toRows(subject), toRows(grade), toRows(subjectGrade));
+    }
+
+    // Итоги по одному произвольному ключу (например, по корпусу) тем же способом
+    public static List<SummaryRow> by(List<ReconRow> rows, Function<ReconRow, String> keyFn) {
+        Map<String, int[]> acc = new HashMap<>();
+        for (ReconRow r : rows) add(acc, keyFn.apply(r), r);
+        return toRows(acc);
+    }
+
+    public List<SummaryRow> bySubject() {
+        return bySubject;
+    }
+
+    public List<SummaryRow> byGrade() {
+        return byGrade;
+    }
+
+    public List<SummaryRow> bySubjectGrade() {
+        return bySubjectGrade;
+    }
+
+    private static void add(Map<String, int[]> acc, String key, ReconRow r) {
+        int[] a = acc.computeIfAbsent(key, k -> new int[5]);
+        a[NEEDED] += r.needed();
+        a[AVAILABLE] += r.available();
+        a[DEFICIT] += r.deficit();
+        a[SUUF] += r.suufTotal();
+        a[MESH] += r.meshTotal();
+    }
+
+    private static List<SummaryRow> toRows(Map<String, int[]> acc) {
+        List<String> keys = new ArrayList<>(acc.keySet());
+        keys.sort(null);
+        List<SummaryRow> out = new ArrayList<>(keys.size());
+        for (String k : keys) {
+            int[] a = acc.get(k);
+            out.add(new SummaryRow(k, a[NEEDED], a[AVAILABLE], a[DEFICIT], a[SUUF], a[MESH]));
+        }
+        return List.copyOf(out);
+    }
+}
@@ -1,136 +1,232 @@
 package ru.school.library.service;
 
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
+import ru.school.library.dto.ReconMatrix;
 import ru.school.library.dto.ReconRow;
 import ru.school.library.dto.SummaryRow;
-import ru.school.library.entity.ClassGroup;
+import ru.school.library.entity.Building;
+import ru.school.library.repo.BuildingRepository;
 import ru.school.library.repo.ClassGroupRepository;
 import ru.school.library.repo.CurriculumItemRepository;
+import ru.school.library.repo.CurriculumItemRepository.CurriculumLine;
+import ru.school.library.repo.ReconLineRepository;
 import ru.school.library.repo.StockRepository;
 
-import java.io.ByteArrayOutputStream;
 import java.util.*;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 @Service
 public class ReconciliationService {
     private final CurriculumItemRepository curriculum;
+    private final BuildingRepository buildings;
     private final ClassGroupRepository classes;
     private final StockRepository stocks;
+    private final ReconLineRepository reconLines;
+    private final ResultCache resultCache;
+    private final ExecutorService reconExecutor;
 
-    public ReconciliationService(CurriculumItemRepository curriculum, ClassGroupRepository classes, StockRepository stocks) {
+    public ReconciliationService(CurriculumItemRepository curriculum,
+                                 BuildingRepository buildings,
+                                 ClassGroupRepository classes,
+                                 StockRepository stocks,
+                                 ReconLineRepository reconLines,
+                                 ResultCache resultCache,
+                                 @Qualifier("reconExecutor") ExecutorService reconExecutor) {
         this.curriculum = curriculum;
+        this.buildings = buildings;
         this.classes = classes;
         this.stocks = stocks;
+        this.reconLines = reconLines;
+        this.resultCache = resultCache;
+        this.reconExecutor = reconExecutor;
     }
 
     public List<ReconRow> calcForBuilding(Long buildingId, String buildingCode) {
-        var classList = classes.findByBuilding_Id(buildingId);
-        var studentsByGrade = classList.stream()
-                .collect(Collectors.groupingBy(ClassGroup::getGrade, Collectors.summingInt(ClassGroup::getStudents)));
-
-        List<ReconRow> rows = new ArrayList<>();
-        for (var item : curriculum.findAll()) {
-            int students = studentsByGrade.getOrDefault(item.getGrade(), 0);
-            int needed = students * item.getPerStudent();
-            int available = stocks.findAvailable(buildingId, item.getBookTitle().getId()).orElse(0);
-            int deficit = Math.max(0, needed - available);
-            var st = stocks.findOne(buildingId, item.getBookTitle().getId()).orElse(null);
-            int suufTotal = st == null ? 0 : st.getSuufTotal();
-            int meshTotal = st == null ? 0 : st.getMeshTotal();
+        return resultCache.get("recon", buildingId, 0, () -> readForBuilding(buildingId, buildingCode));
+    }
+
+    private List<ReconRow> readForBuilding(Long buildingId, String buildingCode) {
+        return reconLines.findForBuilding(buildingId).stream()
+                .map(a -> new ReconRow(
+                        buildingCode,
+                        a.getGrade(),
+                        a.getSubject(),
+                        a.getTitle(),
+                        a.getNeeded(),
+                        a.getAvailable(),
+                        Math.max(0, a.getNeeded() - a.getAvailable()),
+                        a.getSuufTotal(),
+                        a.getMeshTotal(),
+                        a.getApprovedByOrder()
+                ))
+                .toList();
+    }
+
+    // Сверка сразу по всем корпусам: учебный план читаем один раз,
+    // остатки и численность каждого корпуса считаем параллельно на reconExecutor
+    public ReconMatrix calcAllBuildings() {
+        List<CurriculumLine> lines = curriculum.curriculumLines();
+        List<Building> bs = buildings.findAll().stream()
+                .sorted(Comparator.comparing(Building::getCode))
+                .toList();
+
+        Map<String, Future<List<ReconRow>>> futures = new LinkedHashMap<>();
+        for (Building b : bs) {
+            futures.put(b.getCode(), reconExecutor.submit(() -> calcFromLines(b.getId(), b.getCode(), lines)));
+        }
+
+        Map<String, List<ReconRow>> rowsByBuilding = new LinkedHashMap<>();
+        for (var e : futures.entrySet()) {
+            rowsByBuilding.put(e.getKey(), await(e.getValue()));
+        }
+
+        // строки всех корпусов идут в порядке учебного плана, поэтому i-я строка везде про одну позицию
+        List<ReconMatrix.Line> matrix = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            CurriculumLine line = lines.get(i);
+            List<Integer> deficits = new ArrayList<>(rowsByBuilding.size());
+            int needed = 0, available = 0, deficit = 0;
+            for (List<ReconRow> rows : rowsByBuilding.values()) {
+                ReconRow row = rows.get(i);
+                deficits.add(row.deficit());
+                needed += row.needed();
+                available += row.available();
+                deficit += row.deficit();
+            }
+            matrix.add(new ReconMatrix.Line(line.getGrade(), line.getSubject(), line.getTitle(),
+                    deficits, needed, available, deficit));
+        }
+
+        List<ReconRow> all = rowsByBuilding.values().stream().flatMap(List::stream).toList();
+        return new ReconMatrix(
+                List.copyOf(rowsByBuilding.keySet()),
+                rowsByBuilding,
+                matrix,
+                ReconSummary.by(all, ReconRow::buildingCode)
+        );
+    }
+
+    private List<ReconRow> calcFromLines(Long buildingId, String buildingCode, List<CurriculumLine> lines) {
+        Map<Integer, Long> studentsByGrade = new HashMap<>();
+        for (var g : classes.studentsByGrade(buildingId)) {
+            studentsByGrade.put(g.getGrade(), g.getStudents());
+        }
+        Map<Long, StockRepository.StockSlice> stockByTitle = new HashMap<>();
+        for (var s : stocks.reconSlice(buildingId)) {
+            stockByTitle.put(s.getBookTitleId(), s);
+        }
+
+        List<ReconRow> rows = new ArrayList<>(lines.size());
+        for (CurriculumLine line : lines) {
+            int students = studentsByGrade.getOrDefault(line.getGrade(), 0L).intValue();
+            int needed = students * line.getPerStudent();
+            var st = stockByTitle.get(line.getBookTitleId());
+            int available = st == null ? 0 : st.getAvailable();
             rows.add(new ReconRow(
                     buildingCode,
-                    item.getGrade(),
-                    item.getSubject().getName(),
-                    item.getBookTitle().getTitle(),
+                    line.getGrade(),
+                    line.getSubject(),
+                    line.getTitle(),
                     needed,
                     available,
-                    deficit,
-                    suufTotal,
-                    meshTotal,
-                    item.getBookTitle() != null && item.getBookTitle().isApprovedByOrder()
+                    Math.max(0, needed - available),
+                    st == null ? 0 : st.getSuufTotal(),
+                    st == null ? 0 : st.getMeshTotal(),
+                    line.getApprovedByOrder()
             ));
         }
         return rows;
     }
 
-    public List<SummaryRow> summarize(List<ReconRow> rows, Function<ReconRow,String> keyFn) {
-        return rows.stream()
-                .collect(Collectors.groupingBy(keyFn))
-                .entrySet().stream()
-                .map(e -> {
-                    int needed = e.getValue().stream().mapToInt(ReconRow::needed).sum();
-                    int available = e.getValue().stream().mapToInt(ReconRow::available).sum();
-                    int deficit = e.getValue().stream().mapToInt(ReconRow::deficit).sum();
-                    int suufTotal = e.getValue().stream().mapToInt(ReconRow::suufTotal).sum();
-                    int meshTotal = e.getValue().stream().mapToInt(ReconRow::meshTotal).sum();
-                    return new SummaryRow(e.getKey(), needed, available, deficit, suufTotal, meshTotal);
-                })
-                .sorted(Comparator.comparing(SummaryRow::key))
-                .toList();
+    private static <T> T await(Future<T> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Расчёт сверки прерван", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+        }
     }
 
-    public byte[] exportExcel(String buildingCode, List<ReconRow> rows) throws Exception {
-        try (var wb = new XSSFWorkbook()) {
-            var sheet = wb.createSheet("Сверка " + buildingCode);
-            var header = sheet.createRow(0);
-            String[] cols = {"Корпус","Параллель","Предмет","Учебник","Нужно","Есть","Дефицит","СУУФ","МЭШ","Разрешён приказом"};
-            for (int i=0;i<cols.length;i++) header.createCell(i).setCellValue(cols[i]);
-
-            int r = 1;
-            for (var row : rows) {
-                var x = sheet.createRow(r++);
-                x.createCell(0).setCellValue(row.buildingCode());
-                x.createCell(1).setCellValue(row.grade());
-                x.createCell(2).setCellValue(row.subject());
-                x.createCell(3).setCellValue(row.title());
-                x.createCell(4).setCellValue(row.needed());
-                x.createCell(5).setCellValue(row.available());
-                x.createCell(6).setCellValue(row.deficit());
-                x.createCell(7).setCellValue(row.suufTotal());
-                x.createCell(8).setCellValue(row.meshTotal());
-                x.createCell(9).setCellValue(row.approvedByOrder() ? "Да" : "Нет");
-            }
+    // Книгу создаёт и пишет в ответ ExcelExportUtil.streamXlsx, здесь только листы
+    public void writeExcel(Workbook wb, String buildingCode, List<ReconRow> rows) {
+        writeDetailSheet(wb, "Сверка " + buildingCode, rows);
+        var summary = ReconSummary.of(rows);
+        writeSummarySheet(wb, "Итоги по предметам", "Предмет", summary.bySubject());
+        writeSummarySheet(wb, "Итоги по параллелям", "Параллель", summary.byGrade());
+        writeSummarySheet(wb, "Предмет × параллель", "Предмет / параллель", summary.bySubjectGrade());
+    }
 
-            // Итоги по предметам
-            var subj = summarize(rows, ReconRow::subject);
-            var s2 = wb.createSheet("Итоги по предметам");
-            var h2 = s2.createRow(0);
-            String[] c2 = {"Предмет","Нужно","Есть","Дефицит","СУУФ","МЭШ"};
-            for (int i=0;i<c2.length;i++) h2.createCell(i).setCellValue(c2[i]);
-            int rr=1;
-            for (var s : subj) {
-                var x = s2.createRow(rr++);
-                x.createCell(0).setCellValue(s.key());
-                x.createCell(1).setCellValue(s.needed());
-                x.createCell(2).setCellValue(s.available());
-                x.createCell(3).setCellValue(s.deficit());
-                x.createCell(4).setCellValue(s.suufTotal());
-                x.createCell(5).setCellValue(s.meshTotal());
-            }
+    // Одна книга на все корпуса: сводка, матрица дефицита и лист детализации на каждый корпус
+    public void writeAllExcel(Workbook wb, ReconMatrix m) {
+        writeSummarySheet(wb, "Сводка по корпусам", "Корпус", m.byBuilding());
 
-            // Итоги по параллелям
-            var gr = summarize(rows, r0 -> String.valueOf(r0.grade()));
-            var s3 = wb.createSheet("Итоги по параллелям");
-            var h3 = s3.createRow(0);
-            String[] c3 = {"Параллель","Нужно","Есть","Дефицит","СУУФ","МЭШ"};
-            for (int i=0;i<c3.length;i++) h3.createCell(i).setCellValue(c3[i]);
-            rr=1;
-            for (var s : gr) {
-                var x = s3.createRow(rr++);
-                x.createCell(0).setCellValue(s.key());
-                x.createCell(1).setCellValue(s.needed());
-                x.createCell(2).setCellValue(s.available());
-                x.createCell(3).setCellValue(s.deficit());
-                x.createCell(4).setCellValue(s.suufTotal());
-                x.createCell(5).setCellValue(s.meshTotal());
-            }
+        var sheet = wb.createSheet("Дефицит по корпусам");
+        var header = sheet.createRow(0);
+        List<String> cols = new ArrayList<>(List.of("Параллель", "Предмет", "Учебник"));
+        m.buildingCodes().forEach(code -> cols.add("Корпус " + code));
+        cols.addAll(List.of("Нужно (всего)", "Есть (всего)", "Дефицит (всего)"));
+        for (int i = 0; i < cols.size(); i++) header.createCell(i).setCellValue(cols.get(i));
+
+        int r = 1;
+        for (var line : m.lines()) {
+            var x = sheet.createRow(r++);
+            int c = 0;
+            x.createCell(c++).setCellValue(line.grade());
+            x.createCell(c++).setCellValue(line.subject());
+            x.createCell(c++).setCellValue(line.title());
+            for (int d : line.deficits()) x.createCell(c++).setCellValue(d);
+            x.createCell(c++).setCellValue(line.needed());
+            x.createCell(c++).setCellValue(line.available());
+            x.createCell(c).setCellValue(line.deficit());
+        }
+
+        for (var e : m.rowsByBuilding().entrySet()) {
+            writeDetailSheet(wb, "Сверка " + e.getKey(), e.getValue());
+        }
+    }
+
+    private void writeDetailSheet(Workbook wb, String name, List<ReconRow> rows) {
+        var sheet = wb.createSheet(name);
+        var header = sheet.createRow(0);
+        String[] cols = {"Корпус","Параллель","Предмет","Учебник","Нужно","Есть","Дефицит","СУУФ","МЭШ","Разрешён приказом"};
+        for (int i=0;i<cols.length;i++) header.createCell(i).setCellValue(cols[i]);
+
+        int r = 1;
+        for (var row : rows) {
+            var x = sheet.createRow(r++);
+            x.createCell(0).setCellValue(row.buildingCode());
+            x.createCell(1).setCellValue(row.grade());
+            x.createCell(2).setCellValue(row.subject());
+            x.createCell(3).setCellValue(row.title());
+            x.createCell(4).setCellValue(row.needed());
+            x.createCell(5).setCellValue(row.available());
+            x.createCell(6).setCellValue(row.deficit());
+            x.createCell(7).setCellValue(row.suufTotal());
+            x.createCell(8).setCellValue(row.meshTotal());
+            x.createCell(9).setCellValue(row.approvedByOrder() ? "Да" : "Нет");
+        }
+    }
 
-            var out = new ByteArrayOutputStream();
-            wb.write(out);
-            return out.toByteArray();
+    private void writeSummarySheet(Workbook wb, String name, String keyHeader, List<SummaryRow> summary) {
+        var sheet = wb.createSheet(name);
+        var header = sheet.createRow(0);
+        String[] cols = {keyHeader,"Нужно","Есть","Дефицит","СУУФ","МЭШ"};
+        for (int i=0;i<cols.length;i++) header.createCell(i).setCellValue(cols[i]);
+        int r = 1;
+        for (var s : summary) {
+            var x = sheet.createRow(r++);
+            x.createCell(0).setCellValue(s.key());
+            x.createCell(1).setCellValue(s.needed());
+            x.createCell(2).setCellValue(s.available());
+            x.createCell(3).setCellValue(s.deficit());
+            x.createCell(4).setCellValue(s.suufTotal());
+            x.createCell(5).setCellValue(s.meshTotal());
         }
     }
 }
@@ -0,0 +1,182 @@
+package ru.school.library.service;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.multipart.MultipartFile;
+import ru.school.library.repo.BookTitleRepository;
+import ru.school.library.repo.BuildingRepository;
+import ru.school.library.repo.SubjectRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+// Пакетный импорт реестров: ZIP с файлом на корпус ("1.xlsx", "сп2.xls") или книга с листом на корпус.
+// Код корпуса берём из имени файла или листа. Корпуса грузятся параллельно на batchImportExecutor,
+// каждый своим ImportContext (своя транзакция), так что пакет идёт примерно столько, сколько самый большой
+// корпус. Ошибка одного корпуса не откатывает остальные — она попадает в общий отчёт.
+@Service
+public class RegistryBatchImportService {
+    // Имена в ZIP из Проводника Windows — в CP866, если архиватор не пометил их как UTF-8
+    private static final Charset ZIP_NAMES = Charset.forName("CP866");
+    // Пределы распаковки: маленький архив не должен развернуться во временные файлы на весь диск
+    static final int MAX_ZIP_ENTRIES = 100;
+    static final long MAX_PART_BYTES = 128L << 20;
+    static final long MAX_UNZIPPED_BYTES = 512L << 20;
+
+    record Part(String buildingCode, String label, Path file, int sheet) {}
+
+    private final ExcelImportService excel;
+    private final BuildingRepository buildings;
+    private final SubjectRepository subjects;
+    private final BookTitleRepository bookTitles;
+    private final PlatformTransactionManager txManager;
+    private final ExecutorService batchImportExecutor;
+
+    public RegistryBatchImportService(ExcelImportService excel,
+                                      BuildingRepository buildings,
+                                      SubjectRepository subjects,
+                                      BookTitleRepository bookTitles,
+                                      PlatformTransactionManager txManager,
+                                      @Qualifier("batchImportExecutor") ExecutorService batchImportExecutor) {
+        this.excel = excel;
+        this.buildings = buildings;
+        this.subjects = subjects;
+        this.bookTitles = bookTitles;
+        this.txManager = txManager;
+        this.batchImportExecutor = batchImportExecutor;
+    }
+
+    public ImportReport importBatch(MultipartFile file, boolean dryRun) throws Exception {
+        Path tmp = ExcelImportService.copyToTemp(file);
+        List<Path> temps = new ArrayList<>(List.of(tmp));
+        try {
+            String name = file.getOriginalFilename() == null ? "" : file.getOriginalFilename();
+            List<Part> parts = name.toLowerCase(Locale.ROOT).endsWith(".zip") ? unzip(tmp, temps) : sheets(tmp);
+            checkParts(parts);
+
+            // Пробный прогон ничего не пишет, общий справочник ему не нужен
+            BatchCatalog catalog = dryRun ? null : new BatchCatalog(txManager, subjects, bookTitles);
+            Map<Part, Future<ImportReport>> futures = new LinkedHashMap<>();
+            for (Part p : parts) {
+                futures.put(p, batchImportExecutor.submit(() -> {
+                    ImportReport report = new ImportReport();
+                    excel.importRegistry(p.file(), p.sheet(), p.buildingCode(), dryRun, catalog, report);
+                    return report;
+                }));
+            }
+
+            ImportReport combined = new ImportReport();
+            for (var e : futures.entrySet()) {
+                try {
+                    combined.add(e.getKey().label(), await(e.getValue()));
+                } catch (Exception ex) {
+                    combined.partFailed(e.getKey().label(), ex);
+                }
+            }
+            if (!dryRun) combined.throwIfErrors("Пакетный импорт");
+            return combined;
+        } finally {
+            for (Path p : temps) Files.deleteIfExists(p);
+        }
+    }
+
+    // Каждый лист книги — реестр корпуса с кодом из названия листа
+    private List<Part> sheets(Path file) throws Exception {
+        List<Part> parts = new ArrayList<>();
+        List<String> names = SheetReader.sheetNames(file);
+        for (int i = 0; i < names.size(); i++) {
+            String sheet = names.get(i);
+            parts.add(new Part(CellParsing.normalizeBuildingCode(sheet), "Лист «" + sheet + "»", file, i));
+        }
+        return parts;
+    }
+
+    // Каждый .xlsx/.xls в архиве — реестр корпуса с кодом из имени файла; папки и прочие файлы пропускаем.
+    // Размеры в заголовках ZIP могут врать, поэтому пределы проверяем по реально распакованным байтам
+    static List<Part> unzip(Path zip, List<Path> temps) throws Exception {
+        List<Part> parts = new ArrayList<>();
+        long unzipped = 0;
+        int entries = 0;
+        try (InputStream in = Files.newInputStream(zip); ZipInputStream zin = new ZipInputStream(in, ZIP_NAMES)) {
+            for (ZipEntry entry; (entry = zin.getNextEntry()) != null; ) {
+                if (++entries > MAX_ZIP_ENTRIES) {
+                    throw new RuntimeException("В архиве больше " + MAX_ZIP_ENTRIES + " файлов");
+                }
+                String path = entry.getName();
+                String fileName = path.substring(path.lastIndexOf('/') + 1);
+                String lower = fileName.toLowerCase(Locale.ROOT);
+                if (entry.isDirectory() || path.startsWith("__MACOSX/") || fileName.startsWith(".")
+                        || !(lower.endsWith(".xlsx") || lower.endsWith(".xls"))) {
+                    continue;
+                }
+                Path part = Files.createTempFile("import-", ".tmp");
+                temps.add(part);
+                unzipped += copy(zin, part, fileName, MAX_UNZIPPED_BYTES - unzipped);
+                String base = fileName.substring(0, fileName.lastIndexOf('.'));
+                parts.add(new Part(CellParsing.normalizeBuildingCode(base), "Файл «" + fileName + "»", part, 0));
+            }
+        }
+        return parts;
+    }
+
+    private static long copy(InputStream in, Path target, String fileName, long totalLeft) throws IOException {
+        long limit = Math.min(MAX_PART_BYTES, totalLeft);
+        long copied = 0;
+        byte[] buf = new byte[1 << 16];
+        try (OutputStream out = Files.newOutputStream(target)) {
+            for (int n; (n = in.read(buf)) > 0; ) {
+                copied += n;
+                if (copied > limit) {
+                    throw new RuntimeException(limit == MAX_PART_BYTES
+                            ? "Файл «" + fileName + "» в архиве больше " + (MAX_PART_BYTES >> 20) + " МБ"
+                            : "Архив распаковывается больше чем в " + (MAX_UNZIPPED_BYTES >> 20) + " МБ");
+                }
+                out.write(buf, 0, n);
+            }
+        }
+        return copied;
+    }
+
+    // Проверяем всё до начала загрузки: неизвестный или повторный корпус — ошибка всего пакета.
+    // Два параллельных импорта одного корпуса писали бы одни и те же строки остатков
+    private void checkParts(List<Part> parts) {
+        if (parts.isEmpty()) throw new RuntimeException("В файле не найдено ни одного реестра корпуса");
+        Map<String, String> seen = new HashMap<>();
+        for (Part p : parts) {
+            if (buildings.findByCode(p.buildingCode()).isEmpty()) {
+                throw new RuntimeException(p.label() + ": не найден корпус с кодом «" + p.buildingCode() + "»");
+            }
+            String other = seen.putIfAbsent(p.buildingCode(), p.label());
+            if (other != null) {
+                throw new RuntimeException(other + " и " + p.label() + ": один и тот же корпус " + p.buildingCode());
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Пакетный импорт прерван", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ex ? ex : new RuntimeException(e.getCause());
+        }
+    }
+}
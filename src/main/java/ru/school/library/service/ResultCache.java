@@ -0,0 +1,42 @@
+package ru.school.library.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+// Кэш результатов сверки, планирования и сводки админ-панели. В ключ входит DataVersion, поэтому после любой записи
+// старые записи просто перестают запрашиваться и вытесняются по размеру/простою
+@Component
+public class ResultCache {
+
+    public record Key(String kind, Long buildingId, int academicYear, long version) {}
+
+    private final DataVersion dataVersion;
+    private final Cache<Key, Object> cache = Caffeine.newBuilder()
+            .maximumSize(500)
+            .expireAfterAccess(Duration.ofMinutes(15))
+            .recordStats()
+            .build();
+
+    public ResultCache(DataVersion dataVersion) {
+        this.dataVersion = dataVersion;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> T get(String kind, Long buildingId, int academicYear, Supplier<T> loader) {
+        Key key = new Key(kind, buildingId, academicYear, dataVersion.current());
+        return (T) cache.get(key, k -> loader.get());
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+}
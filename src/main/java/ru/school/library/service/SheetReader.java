@@ -0,0 +1,291 @@
+package ru.school.library.service;
+
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.MissingRecordAwareHSSFListener;
+import org.apache.poi.hssf.eventusermodel.dummyrecord.LastCellOfRowDummyRecord;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Построчное чтение листа книги (по умолчанию первого).
+// .xlsx читаем потоково (XSSFReader + SAX, общие строки через ReadOnlySharedStringsTable), .xls — через
+// событийный API HSSF (записи BIFF по одной): в памяти только текущая строка (и таблица строк .xls),
+// поэтому расход heap не зависит от числа строк. Прочие форматы открываем через WorkbookFactory.
+public final class SheetReader {
+
+    @FunctionalInterface
+    public interface RowHandler {
+        // false — дальше не читать
+        boolean row(SheetRow row) throws Exception;
+    }
+
+    private SheetReader() {}
+
+    public static void read(Path file, RowHandler handler) throws Exception {
+        read(file, 0, handler);
+    }
+
+    public static void read(Path file, int sheet, RowHandler handler) throws Exception {
+        FileMagic magic = magic(file);
+        try {
+            if (magic == FileMagic.OOXML) {
+                readXlsx(file, sheet, handler);
+            } else if (magic == FileMagic.OLE2) {
+                readXls(file, sheet, handler);
+            } else {
+                readWorkbook(file, sheet, handler);
+            }
+        } catch (Stop stop) {
+            if (stop.getCause() != null) throw (Exception) stop.getCause();
+        }
+    }
+
+    // Имена листов по порядку, без чтения самих листов
+    public static List<String> sheetNames(Path file) throws Exception {
+        List<String> names = new ArrayList<>();
+        FileMagic magic = magic(file);
+        if (magic == FileMagic.OOXML) {
+            try (OPCPackage pkg = OPCPackage.open(file.toFile(), PackageAccess.READ)) {
+                XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) new XSSFReader(pkg).getSheetsData();
+                while (sheets.hasNext()) {
+                    sheets.next().close();
+                    names.add(sheets.getSheetName());
+                }
+            }
+        } else if (magic == FileMagic.OLE2) {
+            // BoundSheetRecord — в заголовке книги, до первого листа
+            try (POIFSFileSystem fs = new POIFSFileSystem(file.toFile(), true)) {
+                HSSFRequest request = new HSSFRequest();
+                request.addListenerForAllRecords(record -> {
+                    if (record instanceof BoundSheetRecord bs) names.add(bs.getSheetname());
+                    else if (record instanceof EOFRecord) throw new Stop(null);
+                });
+                new HSSFEventFactory().processWorkbookEvents(request, fs);
+            } catch (Stop ignored) {
+                // заголовок прочитан
+            }
+        } else {
+            try (Workbook wb = WorkbookFactory.create(file.toFile(), null, true)) {
+                for (Sheet sh : wb) names.add(sh.getSheetName());
+            }
+        }
+        return names;
+    }
+
+    private static FileMagic magic(Path file) throws Exception {
+        try (InputStream in = FileMagic.prepareToCheckMagic(Files.newInputStream(file))) {
+            return FileMagic.valueOf(in);
+        }
+    }
+
+    // Текст ячейки: целые числа без ".0", строки без пробелов по краям
+    public static String cellText(Cell c) {
+        if (c == null) return "";
+        CellType type = c.getCellType() == CellType.FORMULA ? c.getCachedFormulaResultType() : c.getCellType();
+        return switch (type) {
+            case NUMERIC -> number(c.getNumericCellValue());
+            case BOOLEAN -> String.valueOf(c.getBooleanCellValue());
+            case STRING -> c.getStringCellValue().trim();
+            default -> "";
+        };
+    }
+
+    static String number(double d) {
+        long l = (long) d;
+        if (Math.abs(d - l) < 1e-9) return String.valueOf(l);
+        return String.valueOf(d);
+    }
+
+    private static void readWorkbook(Path file, int sheet, RowHandler handler) throws Exception {
+        try (Workbook wb = WorkbookFactory.create(file.toFile(), null, true)) {
+            Sheet sh = wb.getSheetAt(sheet);
+            for (Row r : sh) {
+                List<String> cells = new ArrayList<>();
+                for (int i = 0; i < r.getLastCellNum(); i++) cells.add(cellText(r.getCell(i)));
+                if (!handler.row(new SheetRow(r.getRowNum(), cells))) return;
+            }
+        }
+    }
+
+    private static void readXlsx(Path file, int sheet, RowHandler handler) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(file.toFile(), PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            for (int i = 0; i < sheet && sheets.hasNext(); i++) sheets.next().close();
+            if (!sheets.hasNext()) return;
+            try (InputStream data = sheets.next()) {
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new XSSFSheetXMLHandler(
+                        reader.getStylesTable(), null, strings, new RowCollector(handler), new RawNumbers(), false));
+                parser.parse(new InputSource(data));
+            }
+        }
+    }
+
+    private static void readXls(Path file, int sheet, RowHandler handler) throws Exception {
+        try (POIFSFileSystem fs = new POIFSFileSystem(file.toFile(), true)) {
+            HSSFRequest request = new HSSFRequest();
+            request.addListenerForAllRecords(new MissingRecordAwareHSSFListener(new XlsRowCollector(sheet, handler)));
+            new HSSFEventFactory().processWorkbookEvents(request, fs);
+        }
+    }
+
+    // То же для записей .xls: значения ячеек нужного листа копятся до конца строки (LastCellOfRowDummyRecord).
+    // RK/MulRK фабрика записей уже превращает в NumberRecord; у формул берём сохранённый результат
+    private static final class XlsRowCollector implements HSSFListener {
+        private final int sheet;
+        private final RowHandler handler;
+        private final List<String> cells = new ArrayList<>();
+        private SSTRecord strings;
+        private int sheets;
+        private boolean inSheet;
+        // строковый результат формулы лежит в следующей записи StringRecord
+        private int pendingFormulaColumn = -1;
+
+        XlsRowCollector(int sheet, RowHandler handler) {
+            this.sheet = sheet;
+            this.handler = handler;
+        }
+
+        @Override
+        public void processRecord(org.apache.poi.hssf.record.Record record) {
+            switch (record) {
+                case BOFRecord bof when bof.getType() == BOFRecord.TYPE_WORKSHEET -> inSheet = sheets++ == sheet;
+                case SSTRecord sst -> strings = sst;
+                case EOFRecord eof when inSheet -> throw new Stop(null);
+                default -> {
+                    if (inSheet) sheetRecord(record);
+                }
+            }
+        }
+
+        private void sheetRecord(org.apache.poi.hssf.record.Record record) {
+            switch (record) {
+                case LabelSSTRecord r -> put(r.getColumn(), strings.getString(r.getSSTIndex()).getString());
+                case LabelRecord r -> put(r.getColumn(), r.getValue());
+                case NumberRecord r -> put(r.getColumn(), number(r.getValue()));
+                case BoolErrRecord r -> put(r.getColumn(), r.isBoolean() ? String.valueOf(r.getBooleanValue()) : "");
+                case FormulaRecord r -> {
+                    switch (r.getCachedResultTypeEnum()) {
+                        case NUMERIC -> put(r.getColumn(), number(r.getValue()));
+                        case BOOLEAN -> put(r.getColumn(), String.valueOf(r.getCachedBooleanValue()));
+                        case STRING -> pendingFormulaColumn = r.getColumn();
+                        default -> put(r.getColumn(), "");
+                    }
+                }
+                case StringRecord r when pendingFormulaColumn >= 0 -> {
+                    put(pendingFormulaColumn, r.getString());
+                    pendingFormulaColumn = -1;
+                }
+                case LastCellOfRowDummyRecord r -> endRow(r.getRow());
+                default -> {
+                }
+            }
+        }
+
+        private void put(int col, String value) {
+            while (cells.size() < col) cells.add("");
+            String v = value == null ? "" : value.trim();
+            if (cells.size() == col) cells.add(v);
+            else cells.set(col, v);
+        }
+
+        // Строки без ячеек пропускаем, как и при чтении .xlsx
+        private void endRow(int rowNum) {
+            if (cells.isEmpty()) return;
+            boolean more;
+            try {
+                more = handler.row(new SheetRow(rowNum, List.copyOf(cells)));
+            } catch (Exception e) {
+                throw new Stop(e);
+            }
+            cells.clear();
+            if (!more) throw new Stop(null);
+        }
+    }
+
+    // Собирает ячейки строки из SAX-событий и отдаёт строку обработчику
+    private static final class RowCollector implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final RowHandler handler;
+        private final List<String> cells = new ArrayList<>();
+        private int rowNum;
+
+        RowCollector(RowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            this.rowNum = rowNum;
+            cells.clear();
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int col = cellReference == null ? cells.size() : new CellReference(cellReference).getCol();
+            while (cells.size() < col) cells.add("");
+            cells.add(formattedValue == null ? "" : formattedValue.trim());
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            boolean more;
+            try {
+                more = handler.row(new SheetRow(this.rowNum, List.copyOf(cells)));
+            } catch (Exception e) {
+                throw new Stop(e);
+            }
+            if (!more) throw new Stop(null);
+        }
+    }
+
+    // Числа отдаём как есть, без формата ячейки ("1234", а не "1 234" или "1,234.00") —
+    // так же, как cellText для .xls
+    private static final class RawNumbers extends DataFormatter {
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString) {
+            return number(value);
+        }
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+            return number(value);
+        }
+    }
+
+    // Досрочная остановка разбора: обработчик вернул false или бросил исключение
+    private static final class Stop extends RuntimeException {
+        Stop(Exception cause) {
+            super(null, cause, false, false);
+        }
+    }
+}
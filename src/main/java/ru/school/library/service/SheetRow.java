@@ -0,0 +1,22 @@
+package ru.school.library.service;
+
+import java.util.List;
+
+// Строка листа в виде текстов ячеек; rowNum — номер строки в листе (с нуля)
+public record SheetRow(int rowNum, List<String> cells) {
+
+    public String cell(int idx) {
+        return idx < cells.size() ? cells.get(idx) : "";
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    public boolean isBlank() {
+        for (String c : cells) {
+            if (!c.isBlank()) return false;
+        }
+        return true;
+    }
+}
@@ -15,11 +15,14 @@ public class WriteOffService {
     private final WriteOffRepository writeOffs;
     private final StockRepository stocks;
     private final MovementRepository movements;
+    private final ReconLineService reconLines;
 
-    public WriteOffService(WriteOffRepository writeOffs, StockRepository stocks, MovementRepository movements) {
+    public WriteOffService(WriteOffRepository writeOffs, StockRepository stocks, MovementRepository movements,
+                           ReconLineService reconLines) {
         this.writeOffs = writeOffs;
         this.stocks = stocks;
         this.movements = movements;
+        this.reconLines = reconLines;
     }
 
     @Transactional
@@ -70,6 +73,7 @@ public class WriteOffService {
         st.setAvailable(st.getAvailable() - w.getCount());
         st.setTotal(Math.max(0, st.getTotal() - w.getCount()));
         stocks.save(st);
+        reconLines.stockChanged(st.getBuilding().getId(), st.getBookTitle().getId());
 
         Movement m = new Movement();
         m.setType(Movement.Type.ADJUSTMENT);
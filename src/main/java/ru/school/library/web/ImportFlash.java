@@ -0,0 +1,23 @@
+package ru.school.library.web;
+
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.school.library.service.ImportReport;
+
+// Итог импорта на страницу: что добавится/изменится и ошибки пробного прогона
+// (при настоящем импорте ошибки приходят исключением)
+public final class ImportFlash {
+    private ImportFlash() {
+    }
+
+    public static void report(RedirectAttributes ra, ImportReport report, boolean dryRun, String okMessage) {
+        ra.addFlashAttribute("diff", report.getDiff());
+        if (!dryRun) {
+            ra.addFlashAttribute("success", okMessage);
+            return;
+        }
+        ra.addFlashAttribute("success", "Пробный прогон: обработано строк " + report.getProcessed() + ", изменения не сохранены");
+        if (!report.getErrors().isEmpty()) {
+            ra.addFlashAttribute("error", "Найдены ошибки:\n" + String.join("\n", report.getErrors()));
+        }
+    }
+}
@@ -14,6 +14,8 @@ import ru.school.library.entity.FutureClassGroup;
 import ru.school.library.repo.BuildingRepository;
 import ru.school.library.repo.ClassGroupRepository;
 import ru.school.library.repo.FutureClassGroupRepository;
+import ru.school.library.service.DataVersion;
+import ru.school.library.service.ReconLineService;
 
 import java.util.Comparator;
 import java.util.Locale;
@@ -28,6 +30,8 @@ public class AdminClassGroupsController {
     private final FutureClassGroupRepository futureClasses;
     private final ru.school.library.repo.UserRepository users;
     private final ru.school.library.repo.EnrollmentChangeLogRepository logs;
+    private final ReconLineService reconLines;
+    private final DataVersion dataVersion;
 
     @GetMapping
     public String page(@RequestParam(required = false) Long buildingId,
@@ -64,6 +68,7 @@ public class AdminClassGroupsController {
             cg.setLetter(l);
             cg.setStudents(Math.max(0, students));
             classes.save(cg);
+            reconLines.classesChanged(buildingId, grade);
 
             ra.addFlashAttribute("success", "Сохранено");
         } catch (Exception e) {
@@ -79,6 +84,7 @@ public class AdminClassGroupsController {
             Long bId = cg.getBuilding().getId();
             int old = cg.getStudents();
             classes.deleteById(id);
+            reconLines.classesChanged(bId, cg.getGrade());
 
             var actor = users.findByUsername(principal.getName()).orElse(null);
             var log = new ru.school.library.entity.EnrollmentChangeLog();
@@ -154,6 +160,7 @@ public class AdminClassGroupsController {
                 futureCg.setLetter(oldLetterNormalized);
                 futureCg.setStudents(oldCg.getStudents());
                 futureClasses.save(futureCg);
+                dataVersion.bump();
                 promotedToFuture++;
 
                 var log = new ru.school.library.entity.EnrollmentChangeLog();
@@ -223,6 +230,7 @@ public class AdminClassGroupsController {
             cg.setStudents(Math.max(0, students));
             int old = existing != null ? existing.getStudents() : 0;
             futureClasses.save(cg);
+            dataVersion.bump();
 
             var actor = users.findByUsername(principal.getName()).orElse(null);
             var log = new ru.school.library.entity.EnrollmentChangeLog();
@@ -256,6 +264,7 @@ public class AdminClassGroupsController {
             Long bId = cg.getBuilding().getId();
             int old = cg.getStudents();
             futureClasses.deleteById(id);
+            dataVersion.bump();
 
             var actor = users.findByUsername(principal.getName()).orElse(null);
             var log = new ru.school.library.entity.EnrollmentChangeLog();
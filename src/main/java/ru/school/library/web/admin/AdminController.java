@@ -1,18 +1,33 @@
 package ru.school.library.web.admin;
 
 import lombok.RequiredArgsConstructor;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
 import ru.school.library.dto.BuildingStockSummary;
+import ru.school.library.dto.ImportJobStatus;
 import ru.school.library.repo.BuildingRepository;
 import ru.school.library.repo.StockRepository;
+import ru.school.library.service.ExcelExportUtil;
+import ru.school.library.service.CsvRegistryImportService;
 import ru.school.library.service.ExcelImportService;
+import ru.school.library.service.ImportJobService;
+import ru.school.library.service.ReconSummary;
 import ru.school.library.service.ReconciliationService;
+import ru.school.library.service.RegistryBatchImportService;
+import ru.school.library.service.ResultCache;
+import ru.school.library.web.ImportFlash;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 @Controller
 @RequiredArgsConstructor
@@ -22,33 +37,42 @@ public class AdminController {
     private final BuildingRepository buildings;
     private final StockRepository stocks;
     private final ExcelImportService excel;
+    private final CsvRegistryImportService csvImport;
+    private final RegistryBatchImportService batchImport;
+    private final ImportJobService importJobs;
     private final ReconciliationService recon;
+    private final ResultCache resultCache;
 
+    // Суммы по корпусам — один агрегатный запрос; кэш сбрасывается любой записью остатков (DataVersion).
+    // Названия корпусов берём отдельно, чтобы переименование было видно сразу
     @GetMapping("/dashboard")
     public String dashboard(Model model) {
         var bs = buildings.findAll();
         model.addAttribute("buildings", bs);
-        long totalPositions = stocks.count();
-        long totalBooks = stocks.findAll().stream().mapToLong(s -> s.getTotal()).sum();
-        model.addAttribute("totalPositions", totalPositions);
-        model.addAttribute("totalBooks", totalBooks);
+        Map<Long, StockRepository.BuildingTotals> totals = resultCache.get("dashboard", null, 0, () ->
+                stocks.buildingTotals().stream()
+                        .collect(Collectors.toMap(StockRepository.BuildingTotals::getBuildingId, t -> t)));
         var byBuilding = bs.stream().map(b -> {
-            var list = stocks.findByBuilding_Id(b.getId());
-            long qty = list.stream().mapToLong(s -> s.getTotal()).sum();
-            return new BuildingStockSummary(
-                    b.getName(),
-                    b.getCode(),
-                    list.size(),
-                    qty
-            );
+            var t = totals.get(b.getId());
+            return t == null
+                    ? new BuildingStockSummary(b.getName(), b.getCode(), 0, 0, 0, 0, 0)
+                    : new BuildingStockSummary(b.getName(), b.getCode(), t.getPositions(), t.getBooks(),
+                            t.getAvailable(), t.getDeficitPositions(), t.getDeficit());
         }).toList();
+        model.addAttribute("totalPositions", byBuilding.stream().mapToLong(BuildingStockSummary::getPositions).sum());
+        model.addAttribute("totalBooks", byBuilding.stream().mapToLong(BuildingStockSummary::getBooks).sum());
+        model.addAttribute("totalAvailable", byBuilding.stream().mapToLong(BuildingStockSummary::getAvailable).sum());
+        model.addAttribute("totalDeficit", byBuilding.stream().mapToLong(BuildingStockSummary::getDeficit).sum());
         model.addAttribute("stockByBuilding", byBuilding);
+        model.addAttribute("cacheStats", resultCache.stats());
+        model.addAttribute("cacheSize", resultCache.size());
         return "admin/dashboard";
     }
 
     @GetMapping("/import")
     public String importPage(Model model) {
         model.addAttribute("buildings", buildings.findAll());
+        model.addAttribute("jobs", importJobs.recent());
         return "admin/import";
     }
 
@@ -58,47 +82,101 @@ public class AdminController {
         return "admin/buildings";
     }
 
+    // Реестр импортируется в фоне: сразу отвечаем номером задачи, прогресс — на /admin/import/jobs/{id}.
+    // Пробный прогон выполняется сразу, чтобы показать итог изменений на странице импорта
     @PostMapping("/import/registry")
     public String importRegistry(@RequestParam("file") MultipartFile file,
                                  @RequestParam("buildingCode") String buildingCode,
+                                 @RequestParam(defaultValue = "false") boolean dryRun,
+                                 Authentication a,
                                  RedirectAttributes ra) {
         try {
-            excel.importRegistry(file, buildingCode);
-            ra.addFlashAttribute("success", "Реестр загружен");
+            if (dryRun) {
+                ImportFlash.report(ra, excel.importRegistry(file, buildingCode, true), true, null);
+                return "redirect:/admin/import";
+            }
+            Long jobId = importJobs.submitRegistry(file, buildingCode, a.getName());
+            ra.addFlashAttribute("success", "Реестр поставлен в очередь импорта, задача №" + jobId);
+        } catch (Exception e) {
+            ra.addFlashAttribute("error", e.getMessage());
+        }
+        return "redirect:/admin/import";
+    }
+
+    // CSV-реестр грузится через COPY целиком за несколько запросов, поэтому без очереди задач
+    @PostMapping("/import/registry-csv")
+    public String importRegistryCsv(@RequestParam("file") MultipartFile file,
+                                    @RequestParam("buildingCode") String buildingCode,
+                                    @RequestParam(defaultValue = "false") boolean dryRun,
+                                    RedirectAttributes ra) {
+        try {
+            ImportFlash.report(ra, csvImport.importRegistry(file, buildingCode, dryRun), dryRun, "Реестр CSV загружен");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
         }
         return "redirect:/admin/import";
     }
 
+    // Реестры всех корпусов одним файлом (ZIP или книга с листом на корпус), корпуса грузятся параллельно
+    @PostMapping("/import/registry-batch")
+    public String importRegistryBatch(@RequestParam("file") MultipartFile file,
+                                      @RequestParam(defaultValue = "false") boolean dryRun,
+                                      RedirectAttributes ra) {
+        try {
+            ImportFlash.report(ra, batchImport.importBatch(file, dryRun), dryRun, "Реестры корпусов загружены");
+        } catch (Exception e) {
+            ra.addFlashAttribute("error", e.getMessage());
+        }
+        return "redirect:/admin/import";
+    }
+
+    @GetMapping(value = "/import/jobs/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<ImportJobStatus> importJob(@PathVariable Long id) {
+        return ResponseEntity.of(importJobs.status(id));
+    }
+
     @PostMapping("/import/legacy-registry")
     public String importLegacyRegistry(@RequestParam("file") MultipartFile file,
                                        @RequestParam("buildingCode") String buildingCode,
+                                       @RequestParam(defaultValue = "false") boolean dryRun,
                                        RedirectAttributes ra) {
         try {
-            excel.importLegacyRegistry(file, buildingCode);
-            ra.addFlashAttribute("success", "Старый реестр загружен успешно");
+            ImportFlash.report(ra, excel.importLegacyRegistry(file, buildingCode, dryRun), dryRun, "Старый реестр загружен успешно");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
         }
         return "redirect:/admin/import";
     }
 
+    // Книга пишется уже после выхода из метода, поэтому загруженный файл копируем во временный
+    // и удаляем его, когда конвертация закончится (или если файл не прошёл проверку)
     @PostMapping("/import/legacy-to-mesh")
-    public ResponseEntity<byte[]> convertLegacyToMesh(@RequestParam("file") MultipartFile file,
-                                                      @RequestParam("buildingCode") String buildingCode) throws Exception {
-        byte[] bytes = excel.convertLegacyToMesh(file, buildingCode);
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=suuf_to_mesh.xlsx")
-                .body(bytes);
+    public ResponseEntity<StreamingResponseBody> convertLegacyToMesh(@RequestParam("file") MultipartFile file,
+                                                                     @RequestParam("buildingCode") String buildingCode) throws Exception {
+        Path tmp = ExcelImportService.copyToTemp(file);
+        ExcelExportUtil.WorkbookWriter writer;
+        try {
+            writer = excel.convertLegacyToMesh(tmp, buildingCode);
+        } catch (Exception e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return ExcelExportUtil.streamXlsx("suuf_to_mesh.xlsx", wb -> {
+            try {
+                writer.write(wb);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        });
     }
 
     @PostMapping("/import/curriculum")
     public String importCurriculum(@RequestParam("file") MultipartFile file,
+                                   @RequestParam(defaultValue = "false") boolean dryRun,
                                    RedirectAttributes ra) {
         try {
-            excel.importCurriculum(file);
-            ra.addFlashAttribute("success", "Учебный план загружен");
+            ImportFlash.report(ra, excel.importCurriculum(file, dryRun), dryRun, "Учебный план загружен");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
         }
@@ -107,10 +185,11 @@ public class AdminController {
 
     @PostMapping("/import/classes")
     public String importClasses(@RequestParam("file") MultipartFile file,
+                                @RequestParam(defaultValue = "false") boolean dryRun,
+                                Authentication a,
                                 RedirectAttributes ra) {
         try {
-            excel.importClasses(file);
-            ra.addFlashAttribute("success", "Численность загружена");
+            ImportFlash.report(ra, excel.importClasses(file, a.getName(), dryRun), dryRun, "Численность загружена");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
         }
@@ -120,10 +199,11 @@ public class AdminController {
     @PostMapping("/import/future-classes")
     public String importFutureClasses(@RequestParam("file") MultipartFile file,
                                       @RequestParam("academicYear") int academicYear,
+                                      @RequestParam(defaultValue = "false") boolean dryRun,
+                                      Authentication a,
                                       RedirectAttributes ra) {
         try {
-            excel.importFutureClasses(file, academicYear);
-            ra.addFlashAttribute("success", "Будущий контингент загружен успешно");
+            ImportFlash.report(ra, excel.importFutureClasses(file, academicYear, a.getName(), dryRun), dryRun, "Будущий контингент загружен успешно");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
         }
@@ -150,24 +230,34 @@ public class AdminController {
         return "redirect:/admin/buildings";
     }
 
+    @GetMapping("/reconciliation/all")
+    public String reconciliationAll(Model model) {
+        model.addAttribute("matrix", recon.calcAllBuildings());
+        return "admin/reconciliation_all";
+    }
+
+    @GetMapping("/reconciliation/all.xlsx")
+    public ResponseEntity<StreamingResponseBody> reconciliationAllXlsx() {
+        var matrix = recon.calcAllBuildings();
+        return ExcelExportUtil.streamXlsx("reconciliation_all.xlsx", wb -> recon.writeAllExcel(wb, matrix));
+    }
+
     @GetMapping("/reconciliation/{buildingId}")
     public String reconciliation(@PathVariable Long buildingId, Model model) {
         var b = buildings.findById(buildingId).orElseThrow();
         var rows = recon.calcForBuilding(b.getId(), b.getCode());
         model.addAttribute("building", b);
         model.addAttribute("rows", rows);
-        model.addAttribute("bySubject", recon.summarize(rows, r -> r.subject()));
-        model.addAttribute("byGrade", recon.summarize(rows, r -> String.valueOf(r.grade())));
+        var summary = ReconSummary.of(rows);
+        model.addAttribute("bySubject", summary.bySubject());
+        model.addAttribute("byGrade", summary.byGrade());
         return "admin/reconciliation";
     }
 
     @GetMapping("/reconciliation/{buildingId}.xlsx")
-    public ResponseEntity<byte[]> reconciliationXlsx(@PathVariable Long buildingId) throws Exception {
+    public ResponseEntity<StreamingResponseBody> reconciliationXlsx(@PathVariable Long buildingId) {
         var b = buildings.findById(buildingId).orElseThrow();
         var rows = recon.calcForBuilding(b.getId(), b.getCode());
-        byte[] bytes = recon.exportExcel(b.getCode(), rows);
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=reconciliation_" + b.getCode() + ".xlsx")
-                .body(bytes);
+        return ExcelExportUtil.streamXlsx("reconciliation_" + b.getCode() + ".xlsx", wb -> recon.writeExcel(wb, b.getCode(), rows));
     }
 }
@@ -4,12 +4,16 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.school.library.dto.StockFilter;
 import ru.school.library.repo.BookTitleRepository;
+import ru.school.library.repo.BuildingRepository;
 import ru.school.library.repo.StockRepository;
+import ru.school.library.service.DataVersion;
 import ru.school.library.service.InventoryService;
 
 @Controller
@@ -18,14 +22,20 @@ public class AdminInventoryController {
 
     private final InventoryService inventory;
     private final StockRepository stocks;
+    private final BuildingRepository buildings;
     private final BookTitleRepository bookTitles;
+    private final DataVersion dataVersion;
 
+    // Фильтры и листание — GET-параметры, каждая страница — один запрос на PAGE_SIZE строк
     @GetMapping("/admin/inventory")
-    public String page(Model model) {
-        var rows = inventory.all();
-        long problems = rows.stream().filter(r -> r.diff() != 0).count();
-        model.addAttribute("rows", rows);
-        model.addAttribute("problems", problems);
+    public String page(@ModelAttribute("filter") StockFilter filter,
+                       @RequestParam(required = false) String after,
+                       Model model) {
+        var page = inventory.inventoryPage(filter, after);
+        model.addAttribute("rows", page.rows());
+        model.addAttribute("next", page.next());
+        model.addAttribute("problems", inventory.problems(filter));
+        model.addAttribute("buildings", buildings.findAll());
         return "admin/inventory";
     }
 
@@ -40,6 +50,7 @@ public class AdminInventoryController {
         }
         st.getBookTitle().setApprovedByOrder(approvedByOrder);
         bookTitles.save(st.getBookTitle());
+        dataVersion.bump();
         ra.addFlashAttribute("success", "Статус «разрешён приказом» обновлён");
         return "redirect:/admin/inventory";
     }
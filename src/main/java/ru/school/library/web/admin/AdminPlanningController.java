@@ -1,12 +1,12 @@
 package ru.school.library.web.admin;
 
 import lombok.RequiredArgsConstructor;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.school.library.repo.BuildingRepository;
 import ru.school.library.service.ExcelExportUtil;
 import ru.school.library.service.PlanningService;
@@ -40,44 +40,41 @@ public class AdminPlanningController {
     }
 
     @GetMapping(value = "/export.xlsx", produces = MediaType.APPLICATION_OCTET_STREAM_VALUE)
-    public ResponseEntity<byte[]> export(@RequestParam Long buildingId,
-                                         @RequestParam int academicYear) throws Exception {
+    public ResponseEntity<StreamingResponseBody> export(@RequestParam Long buildingId,
+                                                        @RequestParam int academicYear) {
 
         List<PlanRow> rows = planning.calcForBuilding(buildingId, academicYear);
 
-        var wb = ExcelExportUtil.workbookWithHeader(
-                "План закупки",
-                new String[]{
-                        "Параллель",
-                        "Предмет",
-                        "Учебник",
-                        "ISBN / ключ",
-                        "На ученика",
-                        "Численность",
-                        "Нужно",
-                        "В наличии",
-                        "Дефицит"
-                }
-        );
+        return ExcelExportUtil.streamXlsx("plan_" + academicYear + ".xlsx", wb -> {
+            var sh = ExcelExportUtil.sheetWithHeader(
+                    wb,
+                    "План закупки",
+                    new String[]{
+                            "Параллель",
+                            "Предмет",
+                            "Учебник",
+                            "ISBN / ключ",
+                            "На ученика",
+                            "Численность",
+                            "Нужно",
+                            "В наличии",
+                            "Дефицит"
+                    }
+            );
 
-        var sh = wb.getSheetAt(0);
-        int r = 1;
-        for (PlanRow row : rows) {
-            var rr = sh.createRow(r++);
-            rr.createCell(0).setCellValue(row.grade());
-            rr.createCell(1).setCellValue(row.subject());
-            rr.createCell(2).setCellValue(row.title());
-            rr.createCell(3).setCellValue(row.isbnOrKey());
-            rr.createCell(4).setCellValue(row.perStudent());
-            rr.createCell(5).setCellValue(row.students());
-            rr.createCell(6).setCellValue(row.needed());
-            rr.createCell(7).setCellValue(row.available());
-            rr.createCell(8).setCellValue(row.deficit());
-        }
-
-        return ExcelExportUtil.okXlsx(
-                "plan_" + academicYear + ".xlsx",
-                wb
-        );
+            int r = 1;
+            for (PlanRow row : rows) {
+                var rr = sh.createRow(r++);
+                rr.createCell(0).setCellValue(row.grade());
+                rr.createCell(1).setCellValue(row.subject());
+                rr.createCell(2).setCellValue(row.title());
+                rr.createCell(3).setCellValue(row.isbnOrKey());
+                rr.createCell(4).setCellValue(row.perStudent());
+                rr.createCell(5).setCellValue(row.students());
+                rr.createCell(6).setCellValue(row.needed());
+                rr.createCell(7).setCellValue(row.available());
+                rr.createCell(8).setCellValue(row.deficit());
+            }
+        });
     }
 }
@@ -0,0 +1,158 @@
+package ru.school.library.web.librarian;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.school.library.dto.AuditCount;
+import ru.school.library.dto.StockFilter;
+import ru.school.library.entity.AuditSession;
+import ru.school.library.service.AuditScanService;
+import ru.school.library.service.AuditService;
+import ru.school.library.service.AuthService;
+import ru.school.library.service.InventoryService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+@Controller
+@RequiredArgsConstructor
+@RequestMapping("/librarian/audit")
+public class AuditController {
+
+    private final AuthService auth;
+    private final AuditService audits;
+    private final InventoryService inventory;
+    private final AuditScanService scans;
+
+    @GetMapping
+    public String list(Authentication a, Model model) {
+        var u = auth.requireUser(a.getName());
+        if (u.getBuilding() == null) throw new RuntimeException("No building assigned");
+        model.addAttribute("building", u.getBuilding());
+        model.addAttribute("sessions", audits.forBuilding(u.getBuilding().getId()));
+        return "librarian/audit";
+    }
+
+    @PostMapping
+    public String open(Authentication a, RedirectAttributes ra) {
+        var u = auth.requireUser(a.getName());
+        try {
+            AuditSession s = audits.open(u);
+            return "redirect:/librarian/audit/" + s.getId();
+        } catch (Exception ex) {
+            ra.addFlashAttribute("error", ex.getMessage());
+            return "redirect:/librarian/audit";
+        }
+    }
+
+    // Форма пересчёта — те же страницы остатков корпуса (PAGE_SIZE строк, поиск), что и на странице «Остатки»
+    @GetMapping("/{id}")
+    public String session(@PathVariable Long id,
+                          @ModelAttribute("filter") StockFilter f,
+                          @RequestParam(required = false) String after,
+                          Authentication a, Model model) {
+        var u = auth.requireUser(a.getName());
+        AuditSession s = audits.session(id, u);
+        var filter = new StockFilter(s.getBuilding().getId(), f.grade(), f.subject(), f.title(), false, f.desc());
+        var page = inventory.stockPage(filter, after);
+        model.addAttribute("building", s.getBuilding());
+        model.addAttribute("auditSession", s);
+        model.addAttribute("stocks", page.rows());
+        model.addAttribute("next", page.next());
+        model.addAttribute("counts", audits.counts(id));
+        if (s.getStatus() != AuditSession.Status.DRAFT) {
+            model.addAttribute("variance", audits.variance(id));
+        }
+        return "librarian/audit_session";
+    }
+
+    // Вся страница формы одним запросом; строки с пустым «На полках» не посчитаны и пропускаются.
+    // Поля строк — параллельные списки одноимённых параметров (MultiValueMap: одиночное значение с запятой не дробится)
+    @PostMapping("/{id}/counts")
+    public String saveCounts(@PathVariable Long id,
+                             @RequestParam MultiValueMap<String, String> form,
+                             Authentication a, RedirectAttributes ra) {
+        var u = auth.requireUser(a.getName());
+        try {
+            List<String> bookTitleIds = form.getOrDefault("bookTitleId", List.of());
+            List<AuditCount> counts = new ArrayList<>();
+            for (int i = 0; i < bookTitleIds.size(); i++) {
+                String fact = at(form, "countFact", i);
+                if (fact.isBlank()) continue;
+                counts.add(new AuditCount(Long.valueOf(bookTitleIds.get(i)), number(fact),
+                        numberOrNull(at(form, "issuedToStudents", i)), numberOrNull(at(form, "inCabinets", i)),
+                        at(form, "comment", i), 0));
+            }
+            int saved = audits.saveCounts(id, u, counts);
+            ra.addFlashAttribute("success", "Сохранено строк: " + saved);
+        } catch (Exception ex) {
+            ra.addFlashAttribute("error", ex.getMessage());
+        }
+        return "redirect:/librarian/audit/" + id;
+    }
+
+    // Пачка кодов со сканера (JSON-массив строк). Ответ сразу: запись в БД идёт фоном (AuditScanService)
+    @PostMapping(value = "/{id}/scans", consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<?> scan(@PathVariable Long id, @RequestBody List<String> codes, Authentication a) {
+        var u = auth.requireUser(a.getName());
+        try {
+            return ResponseEntity.ok(scans.scan(id, u, codes));
+        } catch (RuntimeException ex) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", ex.getMessage()));
+        }
+    }
+
+    @PostMapping("/{id}/submit")
+    public String submit(@PathVariable Long id, Authentication a, RedirectAttributes ra) {
+        var u = auth.requireUser(a.getName());
+        try {
+            var variance = audits.submit(id, u);
+            long differ = variance.stream().filter(v -> v.getVariance() != 0).count();
+            ra.addFlashAttribute("success", "Посчитано книг: " + variance.size() + ", с расхождением: " + differ);
+        } catch (Exception ex) {
+            ra.addFlashAttribute("error", ex.getMessage());
+        }
+        return "redirect:/librarian/audit/" + id;
+    }
+
+    @PostMapping("/{id}/close")
+    public String close(@PathVariable Long id, Authentication a, RedirectAttributes ra) {
+        var u = auth.requireUser(a.getName());
+        try {
+            int adjusted = audits.close(id, u);
+            ra.addFlashAttribute("success", "Инвентаризация закрыта, остатки обновлены. Корректировок: " + adjusted);
+        } catch (Exception ex) {
+            ra.addFlashAttribute("error", ex.getMessage());
+        }
+        return "redirect:/librarian/audit/" + id;
+    }
+
+    private static String at(MultiValueMap<String, String> form, String name, int i) {
+        List<String> values = form.get(name);
+        return values == null || i >= values.size() || values.get(i) == null ? "" : values.get(i).trim();
+    }
+
+    // Пустое «У учеников»/«В кабинетах» — не вводили (null), а не ноль: иначе закрытие обнулило бы остатки
+    private static Integer numberOrNull(String raw) {
+        return raw.isBlank() ? null : number(raw);
+    }
+
+    private static int number(String raw) {
+        if (raw.isBlank()) return 0;
+        try {
+            return Integer.parseInt(raw);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Неверное число: " + raw);
+        }
+    }
+}
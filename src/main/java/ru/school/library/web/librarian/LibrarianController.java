@@ -2,14 +2,18 @@ package ru.school.library.web.librarian;
 
 import lombok.RequiredArgsConstructor;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
+import ru.school.library.dto.StockFilter;
 import ru.school.library.entity.BookTitle;
 import ru.school.library.entity.Stock;
 import ru.school.library.entity.Subject;
@@ -18,16 +22,24 @@ import ru.school.library.repo.BookTitleRepository;
 import ru.school.library.repo.StockRepository;
 import ru.school.library.repo.SubjectRepository;
 import ru.school.library.service.AuthService;
+import ru.school.library.service.DataVersion;
+import ru.school.library.service.ExcelExportUtil;
 import ru.school.library.service.ExcelImportService;
 import ru.school.library.service.InventoryService;
+import ru.school.library.service.ReconLineService;
+import ru.school.library.service.ReconSummary;
 import ru.school.library.service.ReconciliationService;
+import ru.school.library.web.ImportFlash;
 
 import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Locale;
 
 @Controller
 @RequiredArgsConstructor
 @RequestMapping("/librarian")
 public class LibrarianController {
+    private static final int TITLE_OPTIONS = 20;
 
     private final AuthService auth;
     private final StockRepository stocks;
@@ -36,6 +48,8 @@ public class LibrarianController {
     private final InventoryService inventory;
     private final ReconciliationService recon;
     private final ExcelImportService excel;
+    private final ReconLineService reconLines;
+    private final DataVersion dataVersion;
 
     @GetMapping("/dashboard")
     public String dashboard(Authentication a, Model model) {
@@ -45,20 +59,35 @@ public class LibrarianController {
         return "librarian/dashboard";
     }
 
+    // Остатки листаются по PAGE_SIZE строк, поиск — GET-параметры; корпус всегда свой
     @GetMapping("/stock")
-    public String stock(Authentication a, Model model) {
+    public String stock(@ModelAttribute("filter") StockFilter f,
+                        @RequestParam(required = false) String after,
+                        Authentication a, Model model) {
         var u = auth.requireUser(a.getName());
-        var list = stocks.findByBuilding_Id(u.getBuilding().getId());
+        var filter = new StockFilter(u.getBuilding().getId(), f.grade(), f.subject(), f.title(), false, f.desc());
+        var page = inventory.stockPage(filter, after);
         model.addAttribute("building", u.getBuilding());
-        model.addAttribute("stocks", list);
-        model.addAttribute("bookTitles", bookTitles.findAll().stream()
-                .sorted(java.util.Comparator.comparing((BookTitle bt) -> bt.getSubject().getName(), String.CASE_INSENSITIVE_ORDER)
-                        .thenComparing(BookTitle::getGrade)
-                        .thenComparing(BookTitle::getTitle, String.CASE_INSENSITIVE_ORDER))
-                .toList());
+        model.addAttribute("stocks", page.rows());
+        model.addAttribute("next", page.next());
         return "librarian/stock";
     }
 
+    public record TitleOption(Long id, String label) {}
+
+    // Подсказки для «Добавить из списка учебников»: не больше TITLE_OPTIONS совпадений,
+    // чтобы страница остатков не тянула весь справочник книг
+    @GetMapping(value = "/book-titles", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public List<TitleOption> bookTitleOptions(@RequestParam(defaultValue = "") String q) {
+        String query = q.trim().toLowerCase(Locale.ROOT);
+        if (query.length() < 2) return List.of();
+        return bookTitles.search("%" + query + "%", PageRequest.of(0, TITLE_OPTIONS)).stream()
+                .map(bt -> new TitleOption(bt.getId(), bt.getSubject().getName() + " — " + bt.getGrade() + " кл — "
+                        + bt.getTitle() + (bt.getYear() != null ? " (" + bt.getYear() + ")" : "")))
+                .toList();
+    }
+
     @PostMapping("/stocks/{id}/extra")
     public String updateStockExtra(@PathVariable Long id,
                                    @RequestParam(defaultValue = "0") int issuedToStudents,
@@ -92,20 +121,18 @@ public class LibrarianController {
         var rows = recon.calcForBuilding(b.getId(), b.getCode());
         model.addAttribute("building", b);
         model.addAttribute("rows", rows);
-        model.addAttribute("bySubject", recon.summarize(rows, r -> r.subject()));
-        model.addAttribute("byGrade", recon.summarize(rows, r -> String.valueOf(r.grade())));
+        var summary = ReconSummary.of(rows);
+        model.addAttribute("bySubject", summary.bySubject());
+        model.addAttribute("byGrade", summary.byGrade());
         return "librarian/reconciliation";
     }
 
     @GetMapping("/reconciliation.xlsx")
-    public ResponseEntity<byte[]> reconciliationXlsx(Authentication a) throws Exception {
+    public ResponseEntity<StreamingResponseBody> reconciliationXlsx(Authentication a) {
         var u = auth.requireUser(a.getName());
         var b = u.getBuilding();
         var rows = recon.calcForBuilding(b.getId(), b.getCode());
-        byte[] bytes = recon.exportExcel(b.getCode(), rows);
-        return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=reconciliation_" + b.getCode() + ".xlsx")
-                .body(bytes);
+        return ExcelExportUtil.streamXlsx("reconciliation_" + b.getCode() + ".xlsx", wb -> recon.writeExcel(wb, b.getCode(), rows));
     }
 
     @GetMapping("/inventory")
@@ -141,6 +168,7 @@ public class LibrarianController {
         st.setAvailable(Math.max(0, available));
         st.setInUse(Math.max(0, inUse));
         stocks.save(st);
+        reconLines.stockChanged(st.getBuilding().getId(), st.getBookTitle().getId());
 
         ra.addFlashAttribute("success", "Количество экземпляров обновлено");
         return "redirect:/librarian/stock";
@@ -163,6 +191,7 @@ public class LibrarianController {
         if (st.getBookTitle() != null) {
             st.getBookTitle().setApprovedByOrder(approvedByOrder);
             bookTitles.save(st.getBookTitle());
+            dataVersion.bump();
             ra.addFlashAttribute("success", "Статус «разрешён приказом» обновлён");
         }
         return "redirect:/librarian/stock";
@@ -185,6 +214,7 @@ public class LibrarianController {
             st.setAvailable(Math.max(0, available));
             st.setInUse(Math.max(0, inUse));
             stocks.save(st);
+            reconLines.stockChanged(u.getBuilding().getId(), bt.getId());
             ra.addFlashAttribute("success", "Книга добавлена из списка");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
@@ -194,12 +224,13 @@ public class LibrarianController {
 
     @PostMapping("/import/stock")
     public String importStock(@RequestParam("file") MultipartFile file,
+                              @RequestParam(defaultValue = "false") boolean dryRun,
                               Authentication a,
                               RedirectAttributes ra) {
         try {
             var u = auth.requireUser(a.getName());
-            excel.importLibrarianStock(file, u.getBuilding().getId());
-            ra.addFlashAttribute("success", "Остатки загружены");
+            var report = excel.importLibrarianStock(file, u.getBuilding().getId(), dryRun);
+            ImportFlash.report(ra, report, dryRun, "Остатки загружены");
         } catch (Exception e) {
             ra.addFlashAttribute("error", e.getMessage());
         }
@@ -256,6 +287,7 @@ public class LibrarianController {
             st.setAvailable(Math.max(0, available));
             st.setInUse(Math.max(0, inUse));
             stocks.save(st);
+            reconLines.stockChanged(u.getBuilding().getId(), bt.getId());
 
             ra.addFlashAttribute("success", "Позиция сохранена");
         } catch (Exception e) {
@@ -0,0 +1,32 @@
+package ru.school.library;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Интеграционные тесты на настоящем PostgreSQL: встроенный сервер (zonky), один на все тесты, схему создаёт Hibernate.
+// Сервисы пишут своими транзакциями, поэтому тесты не откатываются: у каждого теста свои книги и сессии
+@SpringBootTest
+public abstract class PostgresTest {
+    private static final EmbeddedPostgres PG = start();
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> PG.getJdbcUrl("postgres", "postgres"));
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "postgres");
+    }
+
+    private static EmbeddedPostgres start() {
+        try {
+            // UTF-8 локаль, как у рабочей базы: иначе lower() не меняет регистр кириллицы и поиск без учёта регистра не работает
+            return EmbeddedPostgres.builder().setLocaleConfig("locale", "C.UTF-8").start();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.school.library.PostgresTest;
+import ru.school.library.dto.AuditCount;
+import ru.school.library.entity.AuditSession;
+import ru.school.library.entity.User;
+import ru.school.library.repo.AuditSessionRepository;
+import ru.school.library.repo.BuildingRepository;
+import ru.school.library.repo.UserRepository;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+// Сканы и ручной пересчёт на настоящей базе. У каждого теста свой корпус: незакрытая инвентаризация на корпус одна.
+// Книги заводятся до первого скана — индекс кодов грузится один раз, дальше перестраивается фоном
+class AuditScanFlowTest extends PostgresTest {
+    private static final String ISBN_A = "9780306406157";
+    private static final String ISBN_B = "9780804429573";
+    private static Long titleA;
+    private static Long titleB;
+
+    @Autowired
+    AuditService audits;
+    @Autowired
+    AuditScanService scans;
+    @Autowired
+    AuditSessionRepository sessions;
+    @Autowired
+    BuildingRepository buildings;
+    @Autowired
+    UserRepository users;
+    @Autowired
+    DataVersion dataVersion;
+    @Autowired
+    JdbcTemplate jdbc;
+    @Autowired
+    PlatformTransactionManager txManager;
+
+    @BeforeEach
+    void seedTitles() {
+        if (titleA != null) return;
+        Long subjectId = jdbc.queryForObject("insert into subject (name) values ('Сканирование') returning id", Long.class);
+        titleA = title(subjectId, "Учебник А", ISBN_A);
+        titleB = title(subjectId, "Учебник Б", ISBN_B);
+    }
+
+    // ON CONFLICT сканов прибавляет к scanned, ручной ввод заменяет count_fact: одно не стирает другое
+    @Test
+    void manualCountsAndScansAreKeptApart() {
+        User u = librarian("6");
+        AuditSession s = audits.open(u);
+
+        var result = scans.scan(s.getId(), u, List.of(ISBN_A, "978-0-306-40615-7", "0-306-40615-2", "нет такого"));
+        assertThat(result.accepted()).isEqualTo(3);
+        assertThat(result.unknown()).containsExactly("нет такого");
+        scans.flush(s.getId());
+
+        audits.saveCounts(s.getId(), u, List.of(new AuditCount(titleA, 2, 1, 0, "полка 3", 0)));
+        scans.scan(s.getId(), u, List.of(ISBN_A));
+        scans.flush(s.getId());
+        audits.saveCounts(s.getId(), u, List.of(new AuditCount(titleA, 5, 1, 0, null, 0)));
+
+        assertThat(line(s.getId(), titleA)).containsEntry("count_fact", 5).containsEntry("scanned", 4)
+                .containsEntry("issued_to_students", 1);
+        assertThat(audits.counts(s.getId()).get(titleA).scanned()).isEqualTo(4);
+        var v = audits.submit(s.getId(), u).get(0);
+        assertThat(v.getCountFact()).isEqualTo(9);
+        assertThat(v.getScanned()).isEqualTo(4);
+        assertThat(v.getFactTotal()).isEqualTo(10);
+    }
+
+    @Test
+    void closeAppliesScansAndLaterScansAreRejected() {
+        User u = librarian("7");
+        AuditSession s = audits.open(u);
+        scans.scan(s.getId(), u, List.of(ISBN_A, ISBN_A, ISBN_B));
+        audits.saveCounts(s.getId(), u, List.of(new AuditCount(titleA, 1, 0, 0, null, 0)));
+        audits.submit(s.getId(), u);
+
+        // новый скан после расчёта — расхождения пересчитываются заново
+        scans.scan(s.getId(), u, List.of(ISBN_B));
+        assertThatThrownBy(() -> audits.close(s.getId(), u)).hasMessage("Сначала рассчитайте расхождения");
+        audits.submit(s.getId(), u);
+        audits.close(s.getId(), u);
+
+        Long buildingId = u.getBuilding().getId();
+        assertThat(stock(buildingId, titleA)).containsEntry("available", 3).containsEntry("total", 3);
+        assertThat(stock(buildingId, titleB)).containsEntry("available", 2).containsEntry("total", 2);
+        assertThatThrownBy(() -> scans.scan(s.getId(), u, List.of(ISBN_A))).hasMessage("Инвентаризация уже закрыта");
+        scans.flush(s.getId());
+        assertThat(line(s.getId(), titleA)).containsEntry("scanned", 2);
+    }
+
+    // Пустые «У учеников»/«В кабинетах» не обнуляют остаток и не дают мнимой недостачи
+    @Test
+    void blankIssuedAndCabinetsKeepStockValues() {
+        User u = librarian("2");
+        Long buildingId = u.getBuilding().getId();
+        jdbc.update("""
+                insert into stock (id, building_id, book_title_id, total, available, in_use,
+                                   mesh_total, suuf_total, issued_to_students, in_cabinets)
+                values (nextval('stock_seq'), ?, ?, 10, 4, 6, 0, 0, 3, 3)
+                """, buildingId, titleA);
+        AuditSession s = audits.open(u);
+        audits.saveCounts(s.getId(), u, List.of(new AuditCount(titleA, 4, null, null, null, 0)));
+
+        assertThat(audits.counts(s.getId()).get(titleA).issuedToStudents()).isNull();
+        var v = audits.submit(s.getId(), u).get(0);
+        assertThat(v.getFactIssued()).isEqualTo(3);
+        assertThat(v.getFactTotal()).isEqualTo(10);
+        assertThat(v.getVariance()).isZero();
+        audits.close(s.getId(), u);
+
+        assertThat(stock(buildingId, titleA)).containsEntry("available", 4).containsEntry("issued_to_students", 3)
+                .containsEntry("in_cabinets", 3).containsEntry("in_use", 6).containsEntry("total", 10);
+        assertThat(jdbc.queryForObject("select count(*) from movement where type = 'ADJUSTMENT' and from_building_id = ?",
+                Integer.class, buildingId)).isZero();
+    }
+
+    // Строка, заведённая только сканами, закрывается в «на полках», не трогая выданное и кабинеты
+    @Test
+    void scanOnlyLineKeepsIssuedAndCabinets() {
+        User u = librarian("1");
+        Long buildingId = u.getBuilding().getId();
+        jdbc.update("""
+                insert into stock (id, building_id, book_title_id, total, available, in_use,
+                                   mesh_total, suuf_total, issued_to_students, in_cabinets)
+                values (nextval('stock_seq'), ?, ?, 5, 2, 3, 0, 0, 2, 1)
+                """, buildingId, titleB);
+        AuditSession s = audits.open(u);
+        scans.scan(s.getId(), u, List.of(ISBN_B, ISBN_B));
+        scans.flush(s.getId());
+
+        assertThat(line(s.getId(), titleB)).containsEntry("issued_to_students", null).containsEntry("in_cabinets", null);
+        assertThat(audits.submit(s.getId(), u).get(0).getVariance()).isZero();
+        audits.close(s.getId(), u);
+
+        assertThat(stock(buildingId, titleB)).containsEntry("available", 2).containsEntry("issued_to_students", 2)
+                .containsEntry("in_cabinets", 1).containsEntry("total", 5);
+    }
+
+    // Откат закрытия возвращает забранные сканы и снова открывает приём
+    @Test
+    void rolledBackCloseRestoresScans() {
+        User u = librarian("8");
+        AuditSession s = audits.open(u);
+        scans.scan(s.getId(), u, List.of(ISBN_A, ISBN_A, ISBN_A));
+
+        new TransactionTemplate(txManager).executeWithoutResult(tx -> {
+            sessions.findForUpdate(s.getId());
+            scans.beginClose(s.getId());
+            assertThat(line(s.getId(), titleA)).containsEntry("scanned", 3);
+            assertThatThrownBy(() -> scans.scan(s.getId(), u, List.of(ISBN_A)))
+                    .hasMessage("Инвентаризация закрывается, сканы больше не принимаются");
+            tx.setRollbackOnly();
+        });
+
+        assertThat(scans.scan(s.getId(), u, List.of(ISBN_A)).accepted()).isEqualTo(1);
+        scans.flush(s.getId());
+        assertThat(line(s.getId(), titleA)).containsEntry("scanned", 4);
+    }
+
+    // Закрытие закоммитилось между чтением сессии и взятием счётчиков: статус в базе не меняем,
+    // чтобы скан прошёл первую проверку, — он всё равно должен быть отклонён, а не потерян
+    @Test
+    void scanRacingCommittedCloseIsRejected() {
+        User u = librarian("3");
+        AuditSession s = audits.open(u);
+        scans.scan(s.getId(), u, List.of(ISBN_A));
+
+        new TransactionTemplate(txManager).executeWithoutResult(tx -> {
+            sessions.findForUpdate(s.getId());
+            scans.beginClose(s.getId());
+        });
+
+        assertThatThrownBy(() -> scans.scan(s.getId(), u, List.of(ISBN_A))).hasMessage("Инвентаризация уже закрыта");
+        assertThat(line(s.getId(), titleA)).containsEntry("scanned", 1);
+    }
+
+    // Индекс перестраивается фоном: новая книга находится вскоре после изменения справочника
+    @Test
+    void newTitleIsFoundAfterCatalogChange() throws InterruptedException {
+        User u = librarian("4");
+        AuditSession s = audits.open(u);
+        scans.scan(s.getId(), u, List.of(ISBN_A));
+        Long subjectId = jdbc.queryForObject("select id from subject where name = 'Сканирование'", Long.class);
+        title(subjectId, "Учебник В", "5090876541");
+        dataVersion.bump();
+
+        int accepted = 0;
+        for (int i = 0; i < 100 && accepted == 0; i++) {
+            accepted = scans.scan(s.getId(), u, List.of("978-5-09-087654-4")).accepted();
+            if (accepted == 0) Thread.sleep(50);
+        }
+        assertThat(accepted).isEqualTo(1);
+    }
+
+    private User librarian(String buildingCode) {
+        User u = new User();
+        u.setUsername("scan-" + buildingCode + "-" + System.nanoTime());
+        u.setPasswordHash("-");
+        u.setRole(User.Role.LIBRARIAN);
+        u.setBuilding(buildings.findByCode(buildingCode).orElseThrow());
+        return users.save(u);
+    }
+
+    private Long title(Long subjectId, String name, String isbn) {
+        return jdbc.queryForObject("""
+                insert into book_title (id, title, subject_id, grade, isbn, approved_by_order)
+                values (nextval('book_title_seq'), ?, ?, 9, ?, false) returning id
+                """, Long.class, name, subjectId, isbn);
+    }
+
+    private Map<String, Object> line(Long sessionId, Long titleId) {
+        return jdbc.queryForMap("select * from audit_line where audit_session_id = ? and book_title_id = ?",
+                sessionId, titleId);
+    }
+
+    private Map<String, Object> stock(Long buildingId, Long titleId) {
+        return jdbc.queryForMap("select * from stock where building_id = ? and book_title_id = ?", buildingId, titleId);
+    }
+}
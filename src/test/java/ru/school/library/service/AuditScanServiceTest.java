@@ -0,0 +1,41 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuditScanServiceTest {
+
+    @Test
+    void normalizeDropsSeparatorsAndUppercases() {
+        assertThat(AuditScanService.normalize("978-5-09-087654-3")).isEqualTo("9785090876543");
+        assertThat(AuditScanService.normalize(" 080 442 957x ")).isEqualTo("080442957X");
+        assertThat(AuditScanService.normalize("ФПУ 1.1.2.3")).isEqualTo("ФПУ1.1.2.3");
+        assertThat(AuditScanService.normalize("")).isEmpty();
+    }
+
+    @Test
+    void isbn10ToIsbn13() {
+        assertThat(AuditScanService.isbn13("0306406152")).isEqualTo("9780306406157");
+        assertThat(AuditScanService.isbn13("080442957X")).isEqualTo("9780804429573");
+        // контрольная цифра ISBN-10 не нужна: у EAN-13 своя
+        assertThat(AuditScanService.isbn13("0306406150")).isEqualTo("9780306406157");
+        assertThat(AuditScanService.isbn13("03064A6152")).isNull();
+    }
+
+    @Test
+    void isbn13ToIsbn10() {
+        assertThat(AuditScanService.isbn10("9780306406157")).isEqualTo("0306406152");
+        assertThat(AuditScanService.isbn10("9780804429573")).isEqualTo("080442957X");
+        // у 979 нет формы ISBN-10
+        assertThat(AuditScanService.isbn10("9791032300824")).isNull();
+        assertThat(AuditScanService.isbn10("978030640615X")).isNull();
+    }
+
+    @Test
+    void conversionsRoundTrip() {
+        for (String isbn10 : new String[]{"0306406152", "080442957X", "5090876541", "1861972717"}) {
+            assertThat(AuditScanService.isbn10(AuditScanService.isbn13(isbn10))).isEqualTo(isbn10);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CellParsingTest {
+
+    @Test
+    void parseGradeTakesFirstOneOrTwoDigitNumber() {
+        assertThat(CellParsing.parseGrade("5")).isEqualTo(5);
+        assertThat(CellParsing.parseGrade("5 класс")).isEqualTo(5);
+        assertThat(CellParsing.parseGrade("10-11")).isEqualTo(10);
+        assertThat(CellParsing.parseGrade("класс 7")).isEqualTo(7);
+        assertThat(CellParsing.parseGrade("")).isZero();
+        assertThat(CellParsing.parseGrade(null)).isZero();
+    }
+
+    @Test
+    void parseIntNullableFastPath() {
+        assertThat(CellParsing.parseIntNullable("42")).isEqualTo(42);
+        assertThat(CellParsing.parseIntNullable("1 200")).isEqualTo(1200);
+        assertThat(CellParsing.parseIntNullable("1\u00A0200")).isEqualTo(1200);
+        assertThat(CellParsing.parseIntNullable("")).isNull();
+        assertThat(CellParsing.parseIntNullable("   ")).isNull();
+        assertThat(CellParsing.parseIntNullable(null)).isNull();
+    }
+
+    // Знак, дробь и запятая уходят на медленный путь; дробная часть отбрасывается
+    @Test
+    void parseIntNullableSlowPath() {
+        assertThat(CellParsing.parseIntNullable("12.0")).isEqualTo(12);
+        assertThat(CellParsing.parseIntNullable("12,7")).isEqualTo(12);
+        assertThat(CellParsing.parseIntNullable("-3")).isEqualTo(-3);
+        assertThat(CellParsing.parseIntNullable("1234567890")).isEqualTo(1234567890);
+        assertThatThrownBy(() -> CellParsing.parseIntNullable("abc")).isInstanceOf(NumberFormatException.class);
+    }
+
+    @Test
+    void parseIntTreatsEmptyAsZero() {
+        assertThat(CellParsing.parseInt("")).isZero();
+        assertThat(CellParsing.parseInt("7")).isEqualTo(7);
+    }
+
+    @Test
+    void parseYearCandidatesFindsDistinctYears() {
+        assertThat(CellParsing.parseYearCandidates("2019, 2021")).containsExactly(2019, 2021);
+        assertThat(CellParsing.parseYearCandidates("2020 / 2020")).containsExactly(2020);
+        assertThat(CellParsing.parseYearCandidates("изд. 1998 г.")).containsExactly(1998);
+        // без года — одно значение: само число или null
+        assertThat(CellParsing.parseYearCandidates("15")).containsExactly(15);
+        assertThat(CellParsing.parseYearCandidates("")).isEqualTo(Arrays.asList((Integer) null));
+        assertThat(CellParsing.parseYearCandidates(null)).isEqualTo(Arrays.asList((Integer) null));
+    }
+
+    @Test
+    void looksLikeClassName() {
+        assertThat(CellParsing.looksLikeClassName("10-А")).isTrue();
+        assertThat(CellParsing.looksLikeClassName("10 А")).isTrue();
+        assertThat(CellParsing.looksLikeClassName("5б")).isTrue();
+        assertThat(CellParsing.looksLikeClassName("10–B")).isTrue();
+        assertThat(CellParsing.looksLikeClassName("sp1")).isFalse();
+        assertThat(CellParsing.looksLikeClassName("100А")).isFalse();
+    }
+
+    @Test
+    void normalizeBuildingCode() {
+        assertThat(CellParsing.normalizeBuildingCode("сп1")).isEqualTo("1");
+        assertThat(CellParsing.normalizeBuildingCode("SP 2")).isEqualTo("2");
+        assertThat(CellParsing.normalizeBuildingCode("Корпус 3")).isEqualTo("3");
+        assertThat(CellParsing.normalizeBuildingCode(" 4 ")).isEqualTo("4");
+        assertThat(CellParsing.normalizeBuildingCode("центр")).isEqualTo("центр");
+        assertThat(CellParsing.normalizeBuildingCode(null)).isEmpty();
+    }
+
+    @Test
+    void removeWhitespace() {
+        assertThat(CellParsing.removeWhitespace(" 10 - А\t")).isEqualTo("10-А");
+    }
+}
@@ -0,0 +1,63 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CsvRecordReaderTest {
+
+    @Test
+    void splitsRecordsOnDelimiter() throws IOException {
+        assertThat(readAll("a;b;c\n1;2;3\n", ';')).containsExactly(List.of("a", "b", "c"), List.of("1", "2", "3"));
+    }
+
+    @Test
+    void keepsEmptyFields() throws IOException {
+        assertThat(readAll(";x;\n", ';')).containsExactly(List.of("", "x", ""));
+    }
+
+    @Test
+    void quotedValuesMayContainDelimiterQuotesAndNewlines() throws IOException {
+        var records = readAll("\"Иванов, Петров\",\"сказал \"\"да\"\"\",\"две\nстроки\"\nпоследняя,1\n", ',');
+
+        assertThat(records).containsExactly(
+                List.of("Иванов, Петров", "сказал \"да\"", "две\nстроки"),
+                List.of("последняя", "1"));
+    }
+
+    @Test
+    void acceptsAllLineEndingsAndMissingLastNewline() throws IOException {
+        assertThat(readAll("a\r\nb\rc\nd", ',')).containsExactly(List.of("a"), List.of("b"), List.of("c"), List.of("d"));
+    }
+
+    @Test
+    void skipsByteOrderMark() throws IOException {
+        assertThat(readAll("\uFEFFкорпус;1\n", ';')).containsExactly(List.of("корпус", "1"));
+    }
+
+    // Номер строки файла — по началу записи: многострочное значение сдвигает следующие записи
+    @Test
+    void reportsLineWhereRecordStarted() throws IOException {
+        CsvRecordReader reader = new CsvRecordReader(new StringReader("h\n\"a\nb\nc\"\nx\n"), ',');
+
+        reader.next();
+        assertThat(reader.recordLine()).isZero();
+        reader.next();
+        assertThat(reader.recordLine()).isEqualTo(1);
+        reader.next();
+        assertThat(reader.recordLine()).isEqualTo(4);
+        assertThat(reader.next()).isNull();
+    }
+
+    private static List<List<String>> readAll(String csv, char delimiter) throws IOException {
+        CsvRecordReader reader = new CsvRecordReader(new StringReader(csv), delimiter);
+        List<List<String>> out = new ArrayList<>();
+        for (List<String> r = reader.next(); r != null; r = reader.next()) out.add(r);
+        return out;
+    }
+}
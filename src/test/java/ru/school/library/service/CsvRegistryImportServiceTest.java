@@ -0,0 +1,152 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.school.library.PostgresTest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CsvRegistryImportServiceTest extends PostgresTest {
+    private static final String HEADER = "buildingCode;grade;subject;title;authors;year;isbn;total;available;inUse";
+
+    @Autowired
+    CsvRegistryImportService csv;
+    @Autowired
+    JdbcTemplate jdbc;
+    @TempDir
+    Path dir;
+
+    // Повторный импорт: ON CONFLICT обновляет ту же строку остатков, а не заводит новую; неизменённые не пишутся
+    @Test
+    void reimportUpdatesExistingStockRows() throws IOException {
+        String a = isbn();
+        String b = isbn();
+        ImportReport first = load(HEADER,
+                "3;5;Математика;Учебник А;Иванов;2021;" + a + ";10;8;2",
+                "3;5;Математика;Учебник Б;Петров;2020;" + b + ";5;5;0");
+
+        assertThat(first.getErrors()).isEmpty();
+        assertThat(first.getDiff().getSections().get(ImportDiff.building("3")).getInserts()).isEqualTo(2);
+        Map<String, Object> before = stock(a);
+
+        ImportReport second = load(HEADER,
+                "3;5;Математика;Учебник А;Иванов;2021;" + a + ";12;10;2",
+                "3;5;Математика;Учебник Б;Петров;2020;" + b + ";5;5;0");
+
+        var counts = second.getDiff().getSections().get(ImportDiff.building("3"));
+        assertThat(counts.getInserts()).isZero();
+        assertThat(counts.getUpdates()).isEqualTo(1);
+        assertThat(counts.getUnchanged()).isEqualTo(1);
+        Map<String, Object> after = stock(a);
+        assertThat(after.get("id")).isEqualTo(before.get("id"));
+        assertThat(after).containsEntry("total", 12).containsEntry("available", 10).containsEntry("in_use", 2);
+        assertThat(stock(b)).containsEntry("total", 5);
+    }
+
+    // Последняя из повторяющихся строк файла побеждает
+    @Test
+    void lastDuplicateRowWins() throws IOException {
+        String a = isbn();
+        load(HEADER,
+                "3;6;Физика;Учебник В;Сидоров;2022;" + a + ";7;7;0",
+                "3;6;Физика;Учебник В;Сидоров;2022;" + a + ";9;6;3");
+
+        assertThat(stock(a)).containsEntry("total", 9).containsEntry("in_use", 3);
+    }
+
+    @Test
+    void rowWithWrongColumnCountIsReportedAndOthersAreLoaded() throws IOException {
+        String a = isbn();
+        String b = isbn();
+        ImportReport report = load(HEADER,
+                "3;7;Химия;Учебник Г;Козлов;2019;" + a + ";4;4;0",
+                "3;7;Химия",
+                "3;7;Химия;Учебник Д;Козлов;2019;" + b + ";6;6;0");
+
+        assertThat(report.getErrors()).containsExactly("Строка 3: Неверное число столбцов: 3 вместо 10");
+        assertThat(stock(a)).containsEntry("total", 4);
+        assertThat(stock(b)).containsEntry("total", 6);
+    }
+
+    // Огромное число не срывает COPY-транзакцию: как и в Java-разборе, оно упирается в границу integer
+    @Test
+    void hugeNumbersSaturateInsteadOfFailing() throws IOException {
+        String a = isbn();
+        ImportReport report = load(HEADER, "3;9;Химия;Учебник З;Козлов;2019;" + a + ";3000000000;2 500 000 000,5;0");
+
+        assertThat(report.getErrors()).isEmpty();
+        assertThat(stock(a)).containsEntry("total", Integer.MAX_VALUE).containsEntry("available", Integer.MAX_VALUE);
+        assertThat(CellParsing.parseInt("2 500 000 000,5")).isEqualTo(Integer.MAX_VALUE);
+    }
+
+    // Пробный прогон считает то же, что настоящий, но не трогает ни справочники, ни последовательности
+    @Test
+    void dryRunCountsChangesWithoutWriting() throws IOException {
+        String a = isbn();
+        String b = isbn();
+        String subject = "Астрономия " + System.nanoTime();
+        load(HEADER, "3;8;Физика;Учебник Е;Орлов;2018;" + a + ";3;3;0");
+        long titleSeq = jdbc.queryForObject("select last_value from book_title_seq", Long.class);
+        long stockSeq = jdbc.queryForObject("select last_value from stock_seq", Long.class);
+
+        String[] lines = {HEADER,
+                "3;8;Физика;Учебник Е;Орлов;2018;" + a + ";5;5;0",
+                "3;8;" + subject + ";Учебник Ж;Орлов;2018;" + b + ";2;2;0",
+                "3;8;" + subject + ";Учебник Ж;Орлов;2018;" + b + ";4;4;0",
+                "3;8;" + subject + ";Без ISBN;Орлов;2018;;1;1;0"};
+        ImportReport dry = load(true, lines);
+
+        var titles = dry.getDiff().getSections().get(ImportDiff.TITLES);
+        assertThat(titles.getInserts()).isEqualTo(2);
+        assertThat(titles.getUnchanged()).isEqualTo(1);
+        var stocks = dry.getDiff().getSections().get(ImportDiff.building("3"));
+        assertThat(stocks.getInserts()).isEqualTo(2);
+        assertThat(stocks.getUpdates()).isEqualTo(1);
+        assertThat(stock(a)).containsEntry("total", 3);
+        assertThat(jdbc.queryForObject("select count(*) from book_title where isbn = ?", Integer.class, b)).isZero();
+        assertThat(jdbc.queryForObject("select count(*) from subject where name = ?", Integer.class, subject)).isZero();
+        assertThat(jdbc.queryForObject("select last_value from book_title_seq", Long.class)).isEqualTo(titleSeq);
+        assertThat(jdbc.queryForObject("select last_value from stock_seq", Long.class)).isEqualTo(stockSeq);
+
+        ImportReport real = load(false, lines);
+        assertThat(real.getDiff().getSections().get(ImportDiff.TITLES)).usingRecursiveComparison().isEqualTo(titles);
+        assertThat(real.getDiff().getSections().get(ImportDiff.building("3"))).usingRecursiveComparison().isEqualTo(stocks);
+    }
+
+    private ImportReport load(String... lines) throws IOException {
+        return load(false, lines);
+    }
+
+    private ImportReport load(boolean dryRun, String... lines) throws IOException {
+        Path file = Files.createTempFile(dir, "registry", ".csv");
+        Files.writeString(file, String.join("\n", lines) + "\n", StandardCharsets.UTF_8);
+        ImportReport report = new ImportReport();
+        csv.importRegistry(file, "3", dryRun, report);
+        return report;
+    }
+
+    private Map<String, Object> stock(String isbn) {
+        List<Map<String, Object>> rows = jdbc.queryForList("""
+                select s.id, s.total, s.available, s.in_use
+                from stock s
+                         join book_title bt on bt.id = s.book_title_id
+                         join building b on b.id = s.building_id
+                where bt.isbn = ? and b.code = '3'
+                """, isbn);
+        assertThat(rows).hasSize(1);
+        return rows.get(0);
+    }
+
+    private static String isbn() {
+        return "978" + System.nanoTime() % 10_000_000_000L;
+    }
+}
@@ -0,0 +1,109 @@
+package ru.school.library.service;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+import ru.school.library.PostgresTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+// Будущий контингент: у каждого теста свой учебный год, поэтому классы тестов не пересекаются
+class EnrollmentImportTest extends PostgresTest {
+    private static final AtomicInteger YEAR = new AtomicInteger(3000);
+
+    @Autowired
+    ExcelImportService imports;
+    @Autowired
+    JdbcTemplate jdbc;
+
+    @Test
+    void fileReplacesClassesOfItsBuildingsOnly() throws Exception {
+        int year = YEAR.incrementAndGet();
+        imports.importFutureClasses(xlsx(new Object[]{"1", 5, "А", 25}, new Object[]{"1", 5, "Б", 24},
+                new Object[]{"2", 6, "А", 20}), year, "test", false);
+
+        ImportReport report = imports.importFutureClasses(xlsx(new Object[]{"1", 5, "а", 26}), year, "test", false);
+
+        var counts = report.getDiff().getSections().get(ImportDiff.building("1"));
+        assertThat(counts.getUpdates()).isEqualTo(1);
+        assertThat(counts.getDeletes()).isEqualTo(1);
+        // корпуса 2 в файле нет — его классы остаются
+        assertThat(classes(year)).containsExactly(Map.entry("1|5|А", 26), Map.entry("2|6|А", 20));
+        assertThat(jdbc.queryForObject("""
+                select count(*) from enrollment_change_log where scope = 'FUTURE' and academic_year = ? and action = 'BULK'
+                """, Integer.class, year)).isEqualTo(5);
+    }
+
+    @Test
+    void lastDuplicateRowWins() throws Exception {
+        int year = YEAR.incrementAndGet();
+        imports.importFutureClasses(xlsx(new Object[]{"3", 8, "В", 20}, new Object[]{"3", 8, "в", 22}), year, "test", false);
+
+        assertThat(classes(year)).containsExactly(Map.entry("3|8|В", 22));
+    }
+
+    // Непрочитанная строка не должна превратиться в удаление класса
+    @Test
+    void rowErrorsPreventDeletes() throws Exception {
+        int year = YEAR.incrementAndGet();
+        imports.importFutureClasses(xlsx(new Object[]{"1", 7, "А", 20}, new Object[]{"1", 7, "Б", 21}), year, "test", false);
+
+        assertThatThrownBy(() -> imports.importFutureClasses(
+                xlsx(new Object[]{"1", 7, "А", 23}, new Object[]{"99", 7, "Б", 21}), year, "test", false))
+                .hasMessageContaining("Unknown building code: 99");
+
+        assertThat(classes(year)).containsExactly(Map.entry("1|7|А", 23), Map.entry("1|7|Б", 21));
+    }
+
+    @Test
+    void dryRunWritesNothing() throws Exception {
+        int year = YEAR.incrementAndGet();
+        ImportReport report = imports.importFutureClasses(xlsx(new Object[]{"1", 9, "А", 30}), year, "test", true);
+
+        assertThat(report.getDiff().getSections().get(ImportDiff.building("1")).getInserts()).isEqualTo(1);
+        assertThat(classes(year)).isEmpty();
+    }
+
+    private Map<String, Integer> classes(int year) {
+        Map<String, Integer> out = new TreeMap<>();
+        jdbc.query("""
+                select b.code, c.grade, c.letter, c.students
+                from future_class_group c join building b on b.id = c.building_id
+                where c.academic_year = ?
+                """, rs -> {
+            out.put(rs.getString(1) + "|" + rs.getInt(2) + "|" + rs.getString(3), rs.getInt(4));
+        }, year);
+        return out;
+    }
+
+    // Формат A: buildingCode | grade | letter | students, первая строка — заголовок
+    private static MockMultipartFile xlsx(Object[]... rows) throws IOException {
+        try (XSSFWorkbook wb = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            Sheet sh = wb.createSheet();
+            Row header = sh.createRow(0);
+            String[] names = {"buildingCode", "grade", "letter", "students"};
+            for (int c = 0; c < names.length; c++) header.createCell(c).setCellValue(names[c]);
+            for (int r = 0; r < rows.length; r++) {
+                Row row = sh.createRow(r + 1);
+                for (int c = 0; c < rows[r].length; c++) {
+                    Object v = rows[r][c];
+                    if (v instanceof Number n) row.createCell(c).setCellValue(n.doubleValue());
+                    else row.createCell(c).setCellValue(String.valueOf(v));
+                }
+            }
+            wb.write(out);
+            return new MockMultipartFile("file", "classes.xlsx", null, out.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FingerprintTest {
+
+    @Test
+    void sameValuesGiveSameFingerprint() {
+        String a = Fingerprint.of("Алгебра", 7, "Макарычев", 2021, 30);
+        String b = Fingerprint.of("Алгебра", 7, "Макарычев", 2021, 30);
+
+        assertThat(a).isEqualTo(b).hasSize(40).matches("[0-9a-f]{40}");
+    }
+
+    @Test
+    void anyChangedValueChangesFingerprint() {
+        String base = Fingerprint.of("Алгебра", 7, "Макарычев", 2021, 30);
+
+        assertThat(Fingerprint.of("Алгебра", 7, "Макарычев", 2021, 31)).isNotEqualTo(base);
+        assertThat(Fingerprint.of("Алгебра", 8, "Макарычев", 2021, 30)).isNotEqualTo(base);
+        assertThat(Fingerprint.of("алгебра", 7, "Макарычев", 2021, 30)).isNotEqualTo(base);
+    }
+
+    // Значения разделены, поэтому перенос символов из одного поля в соседнее — другая строка
+    @Test
+    void valueBoundariesMatter() {
+        assertThat(Fingerprint.of("ab", "c")).isNotEqualTo(Fingerprint.of("a", "bc"));
+        assertThat(Fingerprint.of("a", null)).isNotEqualTo(Fingerprint.of("a"));
+    }
+}
@@ -0,0 +1,110 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ImportPipelineTest {
+    private static ExecutorService pool;
+
+    @BeforeAll
+    static void startPool() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void stopPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void writesRowsInFileOrderAcrossChunks() throws Exception {
+        int total = ImportPipeline.CHUNK * 10 + 17;
+        List<Integer> written = new ArrayList<>();
+        ImportReport report = new ImportReport();
+
+        new ImportPipeline<Integer>(pool, 3).run(rows(total, new AtomicInteger()), row -> ImportPipeline.Route.PARSE,
+                row -> {
+                    // пачки разбираются с разной скоростью, порядок записи от этого не зависит
+                    if (ThreadLocalRandom.current().nextInt(50) == 0) Thread.sleep(1);
+                    return Integer.parseInt(row.cell(0));
+                },
+                written::add, report);
+
+        assertThat(written).hasSize(total);
+        for (int i = 0; i < total; i++) assertThat(written.get(i)).isEqualTo(i);
+        assertThat(report.getProcessed()).isEqualTo(total);
+        assertThat(report.getErrors()).isEmpty();
+    }
+
+    @Test
+    void gateSkipsAndStops() throws Exception {
+        List<Integer> written = new ArrayList<>();
+        AtomicInteger read = new AtomicInteger();
+
+        new ImportPipeline<Integer>(pool, 2).run(rows(1000, read),
+                row -> row.rowNum() == 0 ? ImportPipeline.Route.SKIP
+                        : row.rowNum() == 500 ? ImportPipeline.Route.STOP : ImportPipeline.Route.PARSE,
+                row -> Integer.parseInt(row.cell(0)), written::add, new ImportReport());
+
+        assertThat(written).hasSize(499).first().isEqualTo(1);
+        assertThat(written).last().isEqualTo(499);
+        assertThat(read.get()).isEqualTo(501);
+    }
+
+    @Test
+    void reportsParseAndWriteErrorsWithRowNumbers() throws Exception {
+        ImportReport report = new ImportReport();
+
+        new ImportPipeline<Integer>(pool, 2).run(rows(10, new AtomicInteger()), row -> ImportPipeline.Route.PARSE,
+                row -> {
+                    if (row.rowNum() == 3) throw new IllegalArgumentException("плохая строка");
+                    return Integer.parseInt(row.cell(0));
+                },
+                value -> {
+                    if (value == 7) throw new IllegalStateException("не записалось");
+                    return value != 9;
+                },
+                report);
+
+        assertThat(report.getErrors()).containsExactly("Строка 4: плохая строка", "Строка 8: не записалось");
+        // строка 9 пустая для писателя (false), в обработанные не идёт
+        assertThat(report.getProcessed()).isEqualTo(7);
+    }
+
+    @Test
+    void stopsReadingOnceErrorLimitIsReached() throws Exception {
+        int total = ImportPipeline.CHUNK * 50;
+        AtomicInteger read = new AtomicInteger();
+        ImportReport report = new ImportReport();
+
+        new ImportPipeline<Integer>(pool, 2).run(rows(total, read), row -> ImportPipeline.Route.PARSE,
+                row -> {
+                    throw new IllegalArgumentException("ошибка");
+                },
+                value -> true, report);
+
+        assertThat(report.getErrors()).hasSize(ImportReport.MAX_ERRORS);
+        assertThat(report.getProcessed()).isZero();
+        // дочитывается не больше пачек, чем помещается в конвейер
+        assertThat(read.get()).isLessThanOrEqualTo(ImportPipeline.CHUNK * 4);
+    }
+
+    private static ImportPipeline.Source rows(int count, AtomicInteger read) {
+        return handler -> {
+            for (int i = 0; i < count; i++) {
+                read.incrementAndGet();
+                if (!handler.row(new SheetRow(i, List.of(String.valueOf(i))))) return;
+            }
+        };
+    }
+}
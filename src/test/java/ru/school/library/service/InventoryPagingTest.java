@@ -0,0 +1,107 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import ru.school.library.PostgresTest;
+import ru.school.library.dto.KeysetPage;
+import ru.school.library.dto.StockFilter;
+import ru.school.library.entity.Stock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Листание по ключу на настоящей базе: страницы подряд дают тот же порядок, что и один запрос, без пропусков и повторов
+class InventoryPagingTest extends PostgresTest {
+    private static final int ROWS = InventoryService.PAGE_SIZE * 2 + 37;
+
+    @Autowired
+    InventoryService inventory;
+    @Autowired
+    JdbcTemplate jdbc;
+
+    private String subject;
+    private Long buildingId;
+
+    // Названия в разном регистре: побайтовый порядок и порядок без учёта регистра расходятся
+    @BeforeEach
+    void seed() {
+        subject = "Листание " + System.nanoTime();
+        buildingId = jdbc.queryForObject("select id from building where code = '5'", Long.class);
+        Long subjectId = jdbc.queryForObject("insert into subject (name) values (?) returning id", Long.class, subject);
+        String[] words = {"алгебра", "Алгебра", "БИОЛОГИЯ", "биология", "Ёж", "яблоко", "Яблоко", "zoo", "Zoo", "2 часть"};
+        for (int i = 0; i < ROWS; i++) {
+            Long titleId = jdbc.queryForObject("""
+                    insert into book_title (id, title, subject_id, grade, approved_by_order)
+                    values (nextval('book_title_seq'), ?, ?, 6, false) returning id
+                    """, Long.class, words[i % words.length] + (i % 3 == 0 ? "" : " " + (i % 7)), subjectId);
+            jdbc.update("""
+                    insert into stock (id, building_id, book_title_id, total, available, in_use,
+                                       mesh_total, suuf_total, issued_to_students, in_cabinets)
+                    values (nextval('stock_seq'), ?, ?, 1, 1, 0, 0, 0, 0, 0)
+                    """, buildingId, titleId);
+        }
+    }
+
+    @Test
+    void pagesFollowCaseInsensitiveOrder() {
+        assertThat(pagedIds(false)).hasSize(ROWS).doesNotHaveDuplicates().isEqualTo(expectedIds("asc"));
+    }
+
+    @Test
+    void descendingPagesFollowReverseOrder() {
+        assertThat(pagedIds(true)).hasSize(ROWS).doesNotHaveDuplicates().isEqualTo(expectedIds("desc"));
+    }
+
+    // Ключ порядка хранится в stock: правка книги, предмета или корпуса должна сразу попасть в порядок страниц
+    @Test
+    void renamesReachTheStoredSortKey() {
+        Long subjectId = jdbc.queryForObject("select id from subject where name = ?", Long.class, subject);
+        jdbc.update("""
+                update book_title set title = 'Ааа первая' where id = (
+                    select max(bt.id) from book_title bt where bt.subject_id = ?)
+                """, subjectId);
+        subject = subject + " (новое)";
+        jdbc.update("update subject set name = ? where id = ?", subject, subjectId);
+
+        assertThat(pagedIds(false)).isEqualTo(expectedIds("asc"));
+        assertThat(jdbc.queryForObject("""
+                select count(*) from stock s
+                         join building b on b.id = s.building_id
+                         join book_title bt on bt.id = s.book_title_id
+                         join subject subj on subj.id = bt.subject_id
+                where (s.sort_building, s.sort_grade, s.sort_subject, s.sort_title)
+                          is distinct from (lower(b.name), bt.grade, lower(subj.name), lower(bt.title))
+                """, Integer.class)).isZero();
+    }
+
+    private List<Long> pagedIds(boolean desc) {
+        StockFilter filter = new StockFilter(buildingId, null, subject, null, false, desc);
+        List<Long> ids = new ArrayList<>();
+        String after = null;
+        int pages = 0;
+        do {
+            KeysetPage<Stock> page = inventory.stockPage(filter, after);
+            assertThat(page.rows().size()).isLessThanOrEqualTo(InventoryService.PAGE_SIZE);
+            page.rows().forEach(s -> ids.add(s.getId()));
+            after = page.next();
+            pages++;
+        } while (after != null);
+        assertThat(pages).isEqualTo(3);
+        return ids;
+    }
+
+    private List<Long> expectedIds(String dir) {
+        return jdbc.queryForList("""
+                select s.id
+                from stock s
+                         join book_title bt on bt.id = s.book_title_id
+                         join subject subj on subj.id = bt.subject_id
+                where s.building_id = ? and subj.name = ?
+                order by lower(bt.title) %1$s, s.id %1$s
+                """.formatted(dir), Long.class, buildingId, subject);
+    }
+}
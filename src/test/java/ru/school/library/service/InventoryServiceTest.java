@@ -0,0 +1,35 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class InventoryServiceTest {
+
+    @Test
+    void keyRoundTrip() {
+        String key = InventoryService.key("Корпус 1", 7, "Алгебра", "Алгебра, 7 класс; часть 1", 42L);
+
+        assertThat(key).matches("[A-Za-z0-9_-]+");
+        assertThat(InventoryService.decode(key)).containsExactly("Корпус 1", "7", "Алгебра", "Алгебра, 7 класс; часть 1", "42");
+    }
+
+    @Test
+    void missingBuildingAndTitleBecomeEmpty() {
+        assertThat(InventoryService.decode(InventoryService.key(null, 5, "Физика", null, 1L)))
+                .containsExactly("", "5", "Физика", "", "1");
+    }
+
+    @Test
+    void brokenKeyIsRejected() {
+        String fourParts = Base64.getUrlEncoder().withoutPadding()
+                .encodeToString("a\u001Fb\u001Fc\u001Fd".getBytes(StandardCharsets.UTF_8));
+
+        assertThatThrownBy(() -> InventoryService.decode("не base64!")).hasMessage("Неверная ссылка на страницу");
+        assertThatThrownBy(() -> InventoryService.decode(fourParts)).hasMessage("Неверная ссылка на страницу");
+    }
+}
@@ -0,0 +1,85 @@
+package ru.school.library.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RegistryBatchImportServiceTest {
+    @TempDir
+    Path dir;
+
+    private final List<Path> temps = new ArrayList<>();
+
+    @AfterEach
+    void deleteTemps() throws IOException {
+        for (Path p : temps) Files.deleteIfExists(p);
+    }
+
+    @Test
+    void registriesAreTakenFromFileNames() throws Exception {
+        Path zip = zip(out -> {
+            entry(out, "корпуса/1.xlsx", 10);
+            entry(out, "сп2.xls", 10);
+            entry(out, "readme.txt", 10);
+            entry(out, "__MACOSX/корпуса/._1.xlsx", 10);
+        });
+
+        var parts = RegistryBatchImportService.unzip(zip, temps);
+
+        assertThat(parts).extracting(RegistryBatchImportService.Part::buildingCode).containsExactly("1", "2");
+        assertThat(Files.size(parts.get(0).file())).isEqualTo(10);
+    }
+
+    @Test
+    void tooManyEntriesFailTheImport() throws Exception {
+        Path zip = zip(out -> {
+            for (int i = 0; i <= RegistryBatchImportService.MAX_ZIP_ENTRIES; i++) entry(out, i + ".txt", 1);
+        });
+
+        assertThatThrownBy(() -> RegistryBatchImportService.unzip(zip, temps))
+                .hasMessage("В архиве больше " + RegistryBatchImportService.MAX_ZIP_ENTRIES + " файлов");
+    }
+
+    // Нули сжимаются почти в ничто: архив маленький, а распаковка упирается в предел на файл
+    @Test
+    void oversizedEntryIsCutOff() throws Exception {
+        Path zip = zip(out -> entry(out, "1.xlsx", RegistryBatchImportService.MAX_PART_BYTES + 1));
+        assertThat(Files.size(zip)).isLessThan(1 << 20);
+
+        assertThatThrownBy(() -> RegistryBatchImportService.unzip(zip, temps))
+                .hasMessage("Файл «1.xlsx» в архиве больше 128 МБ");
+        assertThat(temps).hasSize(1);
+        assertThat(Files.size(temps.get(0))).isLessThanOrEqualTo(RegistryBatchImportService.MAX_PART_BYTES);
+    }
+
+    private interface Entries {
+        void write(ZipOutputStream out) throws IOException;
+    }
+
+    private Path zip(Entries entries) throws IOException {
+        Path zip = dir.resolve("batch.zip");
+        try (OutputStream os = Files.newOutputStream(zip); ZipOutputStream out = new ZipOutputStream(os)) {
+            entries.write(out);
+        }
+        return zip;
+    }
+
+    private static void entry(ZipOutputStream out, String name, long size) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        byte[] zeros = new byte[1 << 16];
+        for (long left = size; left > 0; left -= zeros.length) out.write(zeros, 0, (int) Math.min(left, zeros.length));
+        out.closeEntry();
+    }
+}